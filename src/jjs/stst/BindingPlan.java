@@ -0,0 +1,195 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.stringtemplate.v4.ModelAdaptor;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.compiler.FormalArgument;
+
+import org.json.JSONObject;
+
+/**
+ * How the top level properties of a record are bound to the attributes of a template.
+ * A plan for a template with formal arguments looks up just the declared arguments in
+ * the record so properties the template doesn't declare cost nothing and no exception
+ * is thrown for them. A template without formal arguments takes every property except
+ * those with a . in the name which can't be attributes.
+ * 
+ * A plan is made once for each compiled template and is immutable so it can be used by
+ * any number of threads. RenderEngine keeps them.
+ */
+public final class BindingPlan
+{
+    /**
+     * Plan for templates without formal arguments.
+     */
+    public static final BindingPlan ALL = new BindingPlan(null);
+
+    private final String[] names;
+    private final Set<String> declared;
+
+    private BindingPlan(String[] names)
+    {
+        this.names = names;
+        if (names != null)
+        {
+            declared = new HashSet<String>(names.length * 2);
+            for (String name: names)
+            {
+                declared.add(name);
+            }
+        }
+        else
+        {
+            declared = null;
+        }
+    }
+
+    /**
+     * @param impl compiled template
+     * @return plan that binds the formal arguments of the template
+     */
+    public static BindingPlan create(CompiledST impl)
+    {
+        if (!impl.hasFormalArgs || impl.formalArguments == null)
+        {
+            return ALL;
+        }
+        List<String> args = new ArrayList<String>(impl.formalArguments.size());
+        for (FormalArgument arg: impl.formalArguments.values())
+        {
+            args.add(arg.name);
+        }
+        return new BindingPlan(args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * @return the names of the attributes that are bound or null if all properties are bound
+     */
+    public String[] getNames()
+    {
+        return names == null ? null : names.clone();
+    }
+
+    /**
+     * Add the properties of a record to a template instance.
+     * @param st template instance
+     * @param source JSONObject, CSVRecord, XMLElement or MappedObject
+     * @param adaptor the group model adaptor for the source class
+     */
+    public void bind(ST st, Object source, ModelAdaptor adaptor)
+    {
+        String[] keys = names;
+        if (keys == null)
+        {
+            keys = getNames(source);
+            if (keys == null)
+            {
+                return;
+            }
+        }
+        for (String k: keys)
+        {
+            if (names == null ? isAttributeName(k) : has(source, k))
+            {
+                st.add(k, adaptor.getProperty(null, st, source, k, k));
+            }
+        }
+    }
+
+    /**
+     * @param source JSONObject, CSVRecord, XMLElement or MappedObject
+     * @return names of the properties of the source that this plan doesn't bind or null if there are none
+     */
+    public List<String> getIgnored(Object source)
+    {
+        String[] keys = getNames(source);
+        List<String> ignored = null;
+        if (keys != null)
+        {
+            for (String k: keys)
+            {
+                if (names == null ? !isAttributeName(k) : !declared.contains(k))
+                {
+                    if (ignored == null)
+                    {
+                        ignored = new ArrayList<String>();
+                    }
+                    ignored.add(k);
+                }
+            }
+        }
+        return ignored;
+    }
+
+    // ST doesn't allow a . in an attribute name
+    private static boolean isAttributeName(String name)
+    {
+        return name.indexOf('.') < 0;
+    }
+
+    private static boolean has(Object source, String name)
+    {
+        if (source instanceof CSVRecord)
+        {
+            return ((CSVRecord)source).has(name);
+        }
+        else if (source instanceof XMLElement)
+        {
+            return ((XMLElement)source).get(name) != null;
+        }
+        else if (source instanceof MappedObject)
+        {
+            return ((MappedObject)source).indexOf(name) >= 0;
+        }
+        return ((JSONObject)source).has(name);
+    }
+
+    private static String[] getNames(Object source)
+    {
+        if (source instanceof CSVRecord)
+        {
+            return ((CSVRecord)source).getHeader().getNames();
+        }
+        else if (source instanceof XMLElement)
+        {
+            return ((XMLElement)source).getNames();
+        }
+        else if (source instanceof MappedObject)
+        {
+            return ((MappedObject)source).getNames();
+        }
+        return JSONObject.getNames((JSONObject)source);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.ModelAdaptor;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.misc.STNoSuchPropertyException;
+
+/**
+ * Gives templates access to the columns of a CSV record by column name.
+ * All the records of a file share one header so the column of each property
+ * is cached.
+ */
+public class CSVAdaptor implements ModelAdaptor
+{
+    private final PropertySlotCache columns = new PropertySlotCache();
+
+    @Override
+    public Object getProperty(Interpreter interp, ST self, Object o, Object property, String propertyName)
+        throws STNoSuchPropertyException
+    {
+        CSVRecord r = (CSVRecord)o;
+        if (property == null)
+        {
+            throw new MissingPropertyException(propertyName);
+        }
+        CSVHeader header = r.getHeader();
+        int column = columns.get(propertyName, header);
+        if (column == PropertySlotCache.MISS)
+        {
+            column = header.indexOf(propertyName);
+            columns.put(propertyName, header, column);
+        }
+
+        if (column < 0)
+        {
+            throw new MissingPropertyException(propertyName);
+        }
+        return r.get(column);
+    }
+}
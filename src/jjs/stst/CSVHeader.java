@@ -0,0 +1,163 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * The column names of a CSV file. All the records read from the same file share
+ * one header so a property name is resolved to a column index with a single lookup.
+ * 
+ * The header also remembers the type inferred for each column. The type of a column
+ * is taken from the first non empty value in that column. An integer column becomes a
+ * number column at the first value with a fraction or exponent. Numbers and booleans are
+ * converted the same way as unquoted JSON values. A value that doesn't fit the column
+ * type is left as a string.
+ */
+public class CSVHeader
+{
+    static final int TYPE_UNKNOWN = 0;
+    static final int TYPE_STRING = 1;
+    static final int TYPE_INTEGER = 2;
+    static final int TYPE_NUMBER = 3;
+    static final int TYPE_BOOLEAN = 4;
+
+    private final String[] names;
+    private final Map<String, Integer> index;
+    private final int[] types;
+
+    public CSVHeader(String[] names)
+    {
+        this.names = names;
+        this.index = new HashMap<String, Integer>(names.length * 2);
+        this.types = new int[names.length];
+        for (int i = 0; i < names.length; i++)
+        {
+            // if a name is repeated the first column wins
+            if (!index.containsKey(names[i]))
+            {
+                index.put(names[i], i);
+            }
+        }
+    }
+
+    /**
+     * @return the column names in file order. The array must not be modified.
+     */
+    public String[] getNames()
+    {
+        return names;
+    }
+
+    /**
+     * @return number of columns
+     */
+    public int size()
+    {
+        return names.length;
+    }
+
+    /**
+     * @param name column name
+     * @return column index or -1 if there is no such column
+     */
+    public int indexOf(String name)
+    {
+        Integer i = index.get(name);
+        return i == null ? -1 : i.intValue();
+    }
+
+    /**
+     * @param column column index
+     * @return column name
+     */
+    public String getName(int column)
+    {
+        return names[column];
+    }
+
+    /**
+     * Convert the text of a field to a typed value based on the column type.
+     * Empty fields are null.
+     */
+    Object toValue(int column, String text)
+    {
+        if (text.length() == 0)
+        {
+            return null;
+        }
+        int type = types[column];
+        if (type == TYPE_UNKNOWN)
+        {
+            type = typeOf(text);
+            types[column] = type;
+        }
+        if (type == TYPE_STRING)
+        {
+            return text;
+        }
+        Object value = JSONObject.stringToValue(text);
+        int valueType = typeOf(value);
+        if (type == TYPE_INTEGER && valueType == TYPE_NUMBER)
+        {
+            // a column of integers with some decimals is a number column
+            types[column] = TYPE_NUMBER;
+            return value;
+        }
+        if (valueType != type && !(type == TYPE_NUMBER && valueType == TYPE_INTEGER))
+        {
+            return text;
+        }
+        return value;
+    }
+
+    private static int typeOf(String text)
+    {
+        return typeOf(JSONObject.stringToValue(text));
+    }
+
+    private static int typeOf(Object value)
+    {
+        if (value instanceof Integer || value instanceof Long)
+        {
+            return TYPE_INTEGER;
+        }
+        if (value instanceof Double)
+        {
+            return TYPE_NUMBER;
+        }
+        if (value instanceof Boolean)
+        {
+            return TYPE_BOOLEAN;
+        }
+        return TYPE_STRING;
+    }
+}
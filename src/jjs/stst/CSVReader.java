@@ -0,0 +1,249 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads comma separated values (CSV) one record at a time. The first row is the
+ * header and gives the property names used by templates to access the columns
+ * of each row. Fields can be quoted with double quotes, a double quote inside a
+ * quoted field is written as two double quotes and quoted fields may span lines.
+ * 
+ * Records are read on demand so a file of any size can be processed with a
+ * fixed amount of memory as long as the records are not all kept.
+ */
+public class CSVReader implements Iterator<CSVRecord>, Closeable
+{
+    private final Reader reader;
+    private final char separator;
+    private final char[] buffer = new char[FileUtil.BLKSIZE];
+    private final StringBuilder field = new StringBuilder();
+    private int pos = 0;
+    private int limit = 0;
+    private long line = 1;
+
+    private final CSVHeader header;
+    private CSVRecord nextRecord = null;
+
+    /**
+     * Create a reader for comma separated data and read the header row
+     * @param reader source of CSV text
+     */
+    public CSVReader(Reader reader)
+    {
+        this(reader, ',');
+    }
+
+    /**
+     * Create a reader and read the header row
+     * @param reader source of CSV text
+     * @param separator the field separator character
+     */
+    public CSVReader(Reader reader, char separator)
+    {
+        this.reader = reader;
+        this.separator = separator;
+        String[] names = readRowOrFail();
+        if (names == null)
+        {
+            throw new DataException("Missing header row");
+        }
+        // ignore a byte order mark
+        if (names[0].length() > 0 && names[0].charAt(0) == '\uFEFF')
+        {
+            names[0] = names[0].substring(1);
+        }
+        for (int i = 0; i < names.length; i++)
+        {
+            names[i] = names[i].trim();
+        }
+        header = new CSVHeader(names);
+    }
+
+    /**
+     * @return the header shared by all records
+     */
+    public CSVHeader getHeader()
+    {
+        return header;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (nextRecord == null)
+        {
+            String[] fields = readRowOrFail();
+            if (fields == null)
+            {
+                return false;
+            }
+            Object[] values = new Object[Math.min(fields.length, header.size())];
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = header.toValue(i, fields[i]);
+            }
+            nextRecord = new CSVRecord(header, values);
+        }
+        return true;
+    }
+
+    @Override
+    public CSVRecord next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        CSVRecord r = nextRecord;
+        nextRecord = null;
+        return r;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Read all the remaining records
+     * @return list of records
+     */
+    public List<CSVRecord> readAll()
+    {
+        List<CSVRecord> records = new ArrayList<CSVRecord>();
+        while (hasNext())
+        {
+            records.add(next());
+        }
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+
+    private String[] readRowOrFail()
+    {
+        try
+        {
+            return readRow();
+        }
+        catch (IOException ioe)
+        {
+            throw new DataException(ioe.getLocalizedMessage(), ioe);
+        }
+    }
+
+    private String[] readRow() throws IOException
+    {
+        int c = read();
+        // skip blank lines and the \n of a \r\n pair
+        while (c == '\n' || c == '\r')
+        {
+            c = read();
+        }
+        if (c == -1)
+        {
+            return null;
+        }
+        ArrayList<String> fields = new ArrayList<String>(header != null ? header.size() : 16);
+        for (;;)
+        {
+            field.setLength(0);
+            if (c == '"')
+            {
+                c = readQuoted();
+            }
+            while (c != -1 && c != separator && c != '\n' && c != '\r')
+            {
+                field.append((char)c);
+                c = read();
+            }
+            fields.add(field.toString());
+            if (c != separator)
+            {
+                break;
+            }
+            c = read();
+        }
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    private int readQuoted() throws IOException
+    {
+        long startLine = line;
+        for (;;)
+        {
+            int c = read();
+            if (c == -1)
+            {
+                throw new DataException("Unterminated quoted field starting on line " + startLine);
+            }
+            if (c == '"')
+            {
+                c = read();
+                if (c != '"')
+                {
+                    return c;
+                }
+            }
+            field.append((char)c);
+        }
+    }
+
+    private int read() throws IOException
+    {
+        if (pos == limit)
+        {
+            pos = 0;
+            limit = reader.read(buffer, 0, buffer.length);
+            if (limit <= 0)
+            {
+                limit = 0;
+                return -1;
+            }
+        }
+        char c = buffer[pos++];
+        if (c == '\n')
+        {
+            line++;
+        }
+        return c;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+/**
+ * One row of a CSV file. The values are held in column order and the column names
+ * come from the header shared by all rows of the file.
+ */
+public class CSVRecord
+{
+    private final CSVHeader header;
+    private final Object[] values;
+
+    CSVRecord(CSVHeader header, Object[] values)
+    {
+        this.header = header;
+        this.values = values;
+    }
+
+    /**
+     * @return the header this row belongs to
+     */
+    public CSVHeader getHeader()
+    {
+        return header;
+    }
+
+    /**
+     * @param column column index
+     * @return the value or null if the row doesn't have a value for the column
+     */
+    public Object get(int column)
+    {
+        return column < values.length ? values[column] : null;
+    }
+
+    /**
+     * @param name column name
+     * @return the value or null if there is no such column or no value for it
+     */
+    public Object get(String name)
+    {
+        int column = header.indexOf(name);
+        return column < 0 ? null : get(column);
+    }
+
+    /**
+     * @param name column name
+     * @return true if the header has a column with this name
+     */
+    public boolean has(String name)
+    {
+        return header.indexOf(name) >= 0;
+    }
+
+    /**
+     * The row as a line of comma separated values
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(',');
+            }
+            if (values[i] != null)
+            {
+                sb.append(values[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A bounded cache of parsed JSON data files. When the same file is used again and
+ * it has not changed the parsed data is taken from the cache rather than reading and
+ * parsing the file again. This helps a long running program that renders with the
+ * same data files many times.
+ * 
+ * The key is the canonical path, length, last modified time and encoding of the file
+ * and the property names used to skip unused properties (if any). The least recently
+ * used entries are evicted to keep the estimated size of the cached data under the limit.
+ * Data estimated to be bigger than a quarter of the limit is not cached.
+ * 
+ * Cached data is shared and must not be changed. Get returns a new top level object
+ * that can be added to. The cache is thread safe.
+ */
+public class DataCache
+{
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes maximum estimated size of all cached data
+     */
+    public DataCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Make the key for a data file as it is now.
+     * @param f the data file
+     * @param encoding the file encoding
+     * @param projection names of the properties that are parsed or null if all are
+     * @return the key
+     * @throws IOException if the canonical path can't be found
+     */
+    public static Key keyOf(File f, String encoding, Set<String> projection)
+        throws IOException
+    {
+        return new Key(f.getCanonicalPath(), f.length(), f.lastModified(), encoding, projection);
+    }
+
+    /**
+     * @param key key from keyOf
+     * @return a copy of the top level object of the cached data or null if the data is not cached
+     */
+    public JSONObject get(Key key)
+    {
+        Entry e;
+        synchronized (this)
+        {
+            e = entries.get(key);
+            if (e != null)
+            {
+                hits++;
+            }
+            else
+            {
+                misses++;
+            }
+        }
+        return e != null ? copyOf(e.data) : null;
+    }
+
+    /**
+     * Add parsed data to the cache. Nothing is added if the file changed since the key was made.
+     * The data must not be changed after it is added; use copyOf to get an object that can be.
+     * @param key key made before the file was read
+     * @param data the data parsed from the file
+     */
+    public void put(Key key, JSONObject data)
+    {
+        if (!key.isCurrent())
+        {
+            return;
+        }
+        long size = sizeOf(data);
+        if (size > maxBytes / 4)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            Entry old = entries.put(key, new Entry(data, size));
+            if (old != null)
+            {
+                bytes -= old.size;
+            }
+            bytes += size;
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext())
+            {
+                bytes -= it.next().size;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * @param data cached data
+     * @return a new object with the same top level properties
+     */
+    public static JSONObject copyOf(JSONObject data)
+    {
+        String[] names = JSONObject.getNames(data);
+        return names != null ? new JSONObject(data, names) : new JSONObject();
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return fraction of gets that found the data in the cache or 0 if there were none
+     */
+    public synchronized double getHitRate()
+    {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated size in bytes of all cached data
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    //
+    // Implementation
+    //
+
+    /*
+     * Rough estimate of the heap used by parsed data. Keys of objects with shapes are
+     * shared but are counted anyway.
+     */
+    static long sizeOf(Object value)
+    {
+        if (value instanceof String)
+        {
+            return 40 + 2L * ((String)value).length();
+        }
+        else if (value instanceof JSONObject)
+        {
+            JSONObject jo = (JSONObject)value;
+            String[] names = JSONObject.getNames(jo);
+            long size = 64;
+            if (names != null)
+            {
+                for (String name : names)
+                {
+                    size += 32 + sizeOf(name) + sizeOf(jo.opt(name));
+                }
+            }
+            return size;
+        }
+        else if (value instanceof JSONArray)
+        {
+            JSONArray ja = (JSONArray)value;
+            long size = 40;
+            for (int i = 0; i < ja.length(); i++)
+            {
+                size += 8 + sizeOf(ja.opt(i));
+            }
+            return size;
+        }
+        return 16;
+    }
+
+    private static class Entry
+    {
+        final JSONObject data;
+        final long size;
+
+        Entry(JSONObject data, long size)
+        {
+            this.data = data;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Identifies a data file and the way it is parsed.
+     */
+    public static final class Key
+    {
+        private final String path;
+        private final long length;
+        private final long lastModified;
+        private final String encoding;
+        private final Set<String> projection;
+        private final int hash;
+
+        Key(String path, long length, long lastModified, String encoding, Set<String> projection)
+        {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.encoding = encoding;
+            this.projection = projection == null ? null : new HashSet<String>(projection);
+            this.hash = Arrays.hashCode(new Object[] {path, length, lastModified, encoding, this.projection});
+        }
+
+        /**
+         * @return true if the file still has the length and last modified time of the key
+         */
+        boolean isCurrent()
+        {
+            File f = new File(path);
+            return f.length() == length && f.lastModified() == lastModified;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key k = (Key)o;
+            return length == k.length && lastModified == k.lastModified && path.equals(k.path) &&
+                (encoding == null ? k.encoding == null : encoding.equals(k.encoding)) &&
+                (projection == null ? k.projection == null : projection.equals(k.projection));
+        }
+    }
+}
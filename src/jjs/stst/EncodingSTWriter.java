@@ -0,0 +1,481 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.stringtemplate.v4.STWriter;
+
+/**
+ * A template writer that encodes directly to an output stream. It indents and wraps
+ * exactly like AutoIndentWriter or, with noIndent, writes like NoIndentWriter so the
+ * bytes are the same as using those writers with an OutputStreamWriter. It avoids
+ * the per character calls and locking of Writer.
+ * 
+ * UTF-8, US-ASCII and ISO-8859-1 are encoded directly. Other charsets use one
+ * CharsetEncoder for the life of the writer. Like OutputStreamWriter characters that
+ * can't be encoded are replaced with '?'. Output is buffered so call flush when done.
+ * A writer is used by one thread at a time.
+ */
+public class EncodingSTWriter implements STWriter, Closeable
+{
+    private static final int UTF8 = 0;
+    private static final int ASCII = 1;
+    private static final int LATIN1 = 2;
+    private static final int OTHER = 3;
+
+    private final OutputStream out;
+    private final boolean noIndent;
+    private final String newline;
+    private final int mode;
+    private final CharsetEncoder encoder;
+
+    private final byte[] bytes = new byte[FileUtil.BLKSIZE];
+    private int byteCount = 0;
+    // bytes written to the stream since the last flush
+    private long unflushedBytes = 0;
+    // characters waiting for the encoder when mode is OTHER
+    private final CharBuffer chars;
+    private char highSurrogate = 0;
+
+    // same state as AutoIndentWriter
+    private final List<String> indents = new ArrayList<String>();
+    private int[] anchors = new int[10];
+    private int anchors_sp = -1;
+    private boolean atStartOfLine = true;
+    private int charPosition = 0;
+    private int charIndex = 0;
+    private int lineWidth = NO_WRAP;
+
+    /**
+     * @param out where the encoded output goes
+     * @param charset the output encoding
+     * @param noIndent true to write like NoIndentWriter
+     */
+    public EncodingSTWriter(OutputStream out, Charset charset, boolean noIndent)
+    {
+        this(out, charset, noIndent, System.getProperty("line.separator"));
+    }
+
+    /**
+     * @param out where the encoded output goes
+     * @param charset the output encoding
+     * @param noIndent true to write like NoIndentWriter
+     * @param newline the newline sequence
+     */
+    public EncodingSTWriter(OutputStream out, Charset charset, boolean noIndent, String newline)
+    {
+        this.out = out;
+        this.noIndent = noIndent;
+        this.newline = newline;
+        indents.add(null);
+        String name = charset.name();
+        if (name.equals("UTF-8"))
+        {
+            mode = UTF8;
+        }
+        else if (name.equals("US-ASCII"))
+        {
+            mode = ASCII;
+        }
+        else if (name.equals("ISO-8859-1"))
+        {
+            mode = LATIN1;
+        }
+        else
+        {
+            mode = OTHER;
+        }
+        if (mode == OTHER)
+        {
+            encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            chars = CharBuffer.allocate(FileUtil.BLKSIZE);
+        }
+        else
+        {
+            encoder = null;
+            chars = null;
+        }
+    }
+
+    /**
+     * @return true if writing like NoIndentWriter
+     */
+    public boolean getNoIndent()
+    {
+        return noIndent;
+    }
+
+    @Override
+    public void setLineWidth(int lineWidth)
+    {
+        this.lineWidth = lineWidth;
+    }
+
+    @Override
+    public void pushIndentation(String indent)
+    {
+        indents.add(indent);
+    }
+
+    @Override
+    public String popIndentation()
+    {
+        return indents.remove(indents.size() - 1);
+    }
+
+    @Override
+    public void pushAnchorPoint()
+    {
+        if ((anchors_sp + 1) >= anchors.length)
+        {
+            int[] a = new int[anchors.length * 2];
+            System.arraycopy(anchors, 0, a, 0, anchors.length - 1);
+            anchors = a;
+        }
+        anchors_sp++;
+        anchors[anchors_sp] = charPosition;
+    }
+
+    @Override
+    public void popAnchorPoint()
+    {
+        anchors_sp--;
+    }
+
+    @Override
+    public int index()
+    {
+        return charIndex;
+    }
+
+    @Override
+    public int write(String str) throws IOException
+    {
+        if (noIndent)
+        {
+            put(str);
+            return str.length();
+        }
+        int n = 0;
+        int nll = newline.length();
+        int sl = str.length();
+        for (int i = 0; i < sl; i++)
+        {
+            char c = str.charAt(i);
+            if (c == '\r')
+            {
+                continue;
+            }
+            if (c == '\n')
+            {
+                atStartOfLine = true;
+                charPosition = -nll;
+                put(newline);
+                n += nll;
+                charIndex += nll;
+                // AutoIndentWriter adds the count so far. Kept so wrapping is the same.
+                charPosition += n;
+                continue;
+            }
+            if (atStartOfLine)
+            {
+                n += indent();
+                atStartOfLine = false;
+            }
+            n++;
+            put(c);
+            charPosition++;
+            charIndex++;
+        }
+        return n;
+    }
+
+    @Override
+    public int writeSeparator(String str) throws IOException
+    {
+        return write(str);
+    }
+
+    @Override
+    public int write(String str, String wrap) throws IOException
+    {
+        int n = writeWrap(wrap);
+        return n + write(str);
+    }
+
+    @Override
+    public int writeWrap(String wrap) throws IOException
+    {
+        int n = 0;
+        if (lineWidth != NO_WRAP && wrap != null && !atStartOfLine && charPosition >= lineWidth)
+        {
+            for (int i = 0; i < wrap.length(); i++)
+            {
+                char c = wrap.charAt(i);
+                if (c == '\r')
+                {
+                    continue;
+                }
+                if (c == '\n')
+                {
+                    put(newline);
+                    n += newline.length();
+                    charPosition = 0;
+                    charIndex += newline.length();
+                    n += indent();
+                    continue;
+                }
+                n++;
+                put(c);
+                charPosition++;
+                charIndex++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Write the buffered output to the stream and flush it. A trailing high surrogate
+     * is kept until the next character or close.
+     * @throws IOException if the stream fails
+     */
+    public void flush() throws IOException
+    {
+        RenderEvents.OutputFlush e = new RenderEvents.OutputFlush();
+        e.begin();
+        if (mode == OTHER)
+        {
+            encodeChars(false);
+        }
+        writeBytes();
+        out.flush();
+        e.commit(null, unflushedBytes);
+        unflushedBytes = 0;
+    }
+
+    /**
+     * Flush and close the stream
+     * @throws IOException if the stream fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (mode == OTHER)
+        {
+            encodeChars(true);
+        }
+        else if (highSurrogate != 0)
+        {
+            highSurrogate = 0;
+            putByte('?');
+        }
+        writeBytes();
+        out.close();
+    }
+
+    private int indent() throws IOException
+    {
+        int n = 0;
+        for (String ind : indents)
+        {
+            if (ind != null)
+            {
+                n += ind.length();
+                put(ind);
+            }
+        }
+        int indentWidth = n;
+        if (anchors_sp >= 0 && anchors[anchors_sp] > indentWidth)
+        {
+            int remainder = anchors[anchors_sp] - indentWidth;
+            for (int i = 1; i <= remainder; i++)
+            {
+                put(' ');
+            }
+            n += remainder;
+        }
+        charPosition += n;
+        charIndex += n;
+        return n;
+    }
+
+    private void put(String str) throws IOException
+    {
+        int len = str.length();
+        for (int i = 0; i < len; i++)
+        {
+            put(str.charAt(i));
+        }
+    }
+
+    private void put(char c) throws IOException
+    {
+        if (c < 0x80 && highSurrogate == 0 && mode != OTHER)
+        {
+            if (byteCount == bytes.length)
+            {
+                writeBytes();
+            }
+            bytes[byteCount++] = (byte)c;
+        }
+        else if (mode == OTHER)
+        {
+            if (!chars.hasRemaining())
+            {
+                encodeChars(false);
+            }
+            chars.put(c);
+        }
+        else
+        {
+            putEncoded(c);
+        }
+    }
+
+    // encode a character that is not ASCII the way the charset encoder would
+    private void putEncoded(char c) throws IOException
+    {
+        if (highSurrogate != 0)
+        {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c))
+            {
+                if (mode == UTF8)
+                {
+                    int cp = Character.toCodePoint(high, c);
+                    putByte(0xF0 | (cp >> 18));
+                    putByte(0x80 | ((cp >> 12) & 0x3F));
+                    putByte(0x80 | ((cp >> 6) & 0x3F));
+                    putByte(0x80 | (cp & 0x3F));
+                }
+                else
+                {
+                    putByte('?');
+                }
+                return;
+            }
+            // unpaired high surrogate
+            putByte('?');
+            if (c < 0x80)
+            {
+                putByte(c);
+                return;
+            }
+        }
+        if (Character.isHighSurrogate(c))
+        {
+            highSurrogate = c;
+        }
+        else if (Character.isLowSurrogate(c))
+        {
+            putByte('?');
+        }
+        else if (mode == UTF8)
+        {
+            if (c < 0x800)
+            {
+                putByte(0xC0 | (c >> 6));
+                putByte(0x80 | (c & 0x3F));
+            }
+            else
+            {
+                putByte(0xE0 | (c >> 12));
+                putByte(0x80 | ((c >> 6) & 0x3F));
+                putByte(0x80 | (c & 0x3F));
+            }
+        }
+        else if (mode == LATIN1 && c < 0x100)
+        {
+            putByte(c);
+        }
+        else
+        {
+            putByte('?');
+        }
+    }
+
+    private void putByte(int b) throws IOException
+    {
+        if (byteCount == bytes.length)
+        {
+            writeBytes();
+        }
+        bytes[byteCount++] = (byte)b;
+    }
+
+    private void encodeChars(boolean endOfInput) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap(bytes, byteCount, bytes.length - byteCount);
+        chars.flip();
+        while (encoder.encode(chars, bb, endOfInput).isOverflow())
+        {
+            bb = drain(bb);
+        }
+        if (endOfInput)
+        {
+            while (encoder.flush(bb).isOverflow())
+            {
+                bb = drain(bb);
+            }
+            encoder.reset();
+        }
+        byteCount = bb.position();
+        // keeps a high surrogate waiting for its pair
+        chars.compact();
+    }
+
+    private ByteBuffer drain(ByteBuffer bb) throws IOException
+    {
+        byteCount = bb.position();
+        writeBytes();
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private void writeBytes() throws IOException
+    {
+        if (byteCount > 0)
+        {
+            out.write(bytes, 0, byteCount);
+            unflushedBytes += byteCount;
+            byteCount = 0;
+        }
+    }
+}
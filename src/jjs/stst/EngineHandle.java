@@ -0,0 +1,187 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.misc.STMessage;
+
+/**
+ * Holds the RenderEngine in use and replaces it when the templates change without
+ * stopping renders. A reload makes a new group, loads and compiles all of its templates
+ * and then publishes a new engine with a single reference swap. If any of the new templates
+ * have errors the current engine is kept.
+ * 
+ * A render should call get once and use that engine to the end so renders in progress
+ * during a reload finish with the templates they started with. Reloads are done one at
+ * a time on the thread that calls reload. The handle is thread safe.
+ */
+public class EngineHandle
+{
+    /**
+     * Makes a new configured group with the latest version of the templates
+     */
+    public interface GroupFactory
+    {
+        STGroup newGroup();
+    }
+
+    private final AtomicReference<RenderEngine> engine;
+    private final GroupFactory factory;
+    private long reloads = 0;
+    private long failedReloads = 0;
+
+    /**
+     * @param engine the engine to start with
+     * @param factory makes the group for a reload or null if the engine can't be reloaded
+     */
+    public EngineHandle(RenderEngine engine, GroupFactory factory)
+    {
+        this.engine = new AtomicReference<RenderEngine>(engine);
+        this.factory = factory;
+    }
+
+    /**
+     * @return the current engine
+     */
+    public RenderEngine get()
+    {
+        return engine.get();
+    }
+
+    /**
+     * @return true if reload can be used
+     */
+    public boolean canReload()
+    {
+        return factory != null;
+    }
+
+    /**
+     * Make a new group, compile all of its templates and if there are no errors publish
+     * an engine for it with the same settings as the current engine.
+     * @return the errors found in the new templates. If there are any the current engine is kept.
+     */
+    public synchronized List<String> reload()
+    {
+        if (factory == null)
+        {
+            throw new IllegalStateException("No group factory");
+        }
+        RenderEngine current = engine.get();
+        STGroup oldGroup = current.getGroup();
+        STGroup group = factory.newGroup();
+        STErrorListener listener = group.getListener();
+        ErrorCollector errors = new ErrorCollector();
+        group.setListener(errors);
+        try
+        {
+            RenderEngine.loadTemplates(group);
+            // anything used from a group loadTemplates can't list such as a jar
+            for (String name : oldGroup.getTemplateNames())
+            {
+                // sub templates and regions are defined by the templates they are in
+                CompiledST code = oldGroup.rawGetTemplate(name);
+                if (code == null || code.isAnonSubtemplate || code.isRegion)
+                {
+                    continue;
+                }
+                // a template removed from the new version is not an error
+                group.lookupTemplate(name);
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            // ST can fail this way on some broken templates
+            errors.messages.add(ex.toString());
+        }
+        finally
+        {
+            group.setListener(listener);
+        }
+        if (!errors.messages.isEmpty())
+        {
+            failedReloads++;
+            return errors.messages;
+        }
+        engine.set(new RenderEngine(group, current.getNoIndent(), current.getLineWidth(), current.getProfile()));
+        reloads++;
+        return errors.messages;
+    }
+
+    /**
+     * @return number of reloads that published a new engine
+     */
+    public synchronized long getReloads()
+    {
+        return reloads;
+    }
+
+    /**
+     * @return number of reloads that kept the current engine because of errors
+     */
+    public synchronized long getFailedReloads()
+    {
+        return failedReloads;
+    }
+
+    // Collects errors from compiling the new templates
+    private static class ErrorCollector implements STErrorListener
+    {
+        final List<String> messages = new ArrayList<String>();
+
+        @Override
+        public void compileTimeError(STMessage msg)
+        {
+            messages.add(msg.toString());
+        }
+
+        @Override
+        public void runTimeError(STMessage msg)
+        {
+            messages.add(msg.toString());
+        }
+
+        @Override
+        public void IOError(STMessage msg)
+        {
+            messages.add(msg.toString());
+        }
+
+        @Override
+        public void internalError(STMessage msg)
+        {
+            messages.add(msg.toString());
+        }
+    }
+}
@@ -66,15 +66,7 @@ public class FileUtil
     public static String getStreamAsString(InputStream is, String encoding)
     throws FileNotFoundException, IOException
     {
-        Reader r = null;
-        if (encoding == null)
-        {
-            r = new InputStreamReader(is);
-        }
-        else
-        {
-            r = new InputStreamReader(is, encoding);
-        }
+        Reader r = getStreamReader(is, encoding);
         try
         {
             StringWriter w = new StringWriter();
@@ -93,4 +85,21 @@ public class FileUtil
             r.close();
         }
     }
+
+    /**
+     * Creates a reader for the given stream.
+     * @param is the stream to read
+     * @param encoding the character encoding of the input stream or null for the default
+     * @return a reader for the stream
+     * @throws UnsupportedEncodingException
+     */
+    public static Reader getStreamReader(InputStream is, String encoding)
+        throws UnsupportedEncodingException
+    {
+        if (encoding == null)
+        {
+            return new InputStreamReader(is);
+        }
+        return new InputStreamReader(is, encoding);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,373 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.ErrorManager;
+
+/**
+ * A bounded set of template groups shared by any number of tools or engines in one JVM,
+ * for example when hosting the templates of many tenants. Getting a group with the same
+ * directory or group file, encoding, delimiters, raw setting and format renderer returns
+ * the same configured group so its templates are compiled once.
+ * 
+ * A new group loads and compiles all of its templates before it is returned. Errors in
+ * them are reported to the listener given by the caller that made the group. Later callers
+ * get the group as it is, including any templates that failed to load, and errors while
+ * rendering go to the listener given to each render. The size of each group is estimated
+ * from its templates. When the total is over the limit the least recently used groups are
+ * removed from the registry. A removed group is not unloaded; renders using it finish
+ * normally and it is garbage once they are done. The most recently used group is never removed.
+ * 
+ * A RemovalListener is told about each removed group, for example so that a RenderCache
+ * can drop the output rendered by it.
+ * 
+ * Groups are shared so don't change them, including their error listener. The registry is
+ * thread safe. A group is made by one thread while others can get different groups.
+ */
+public class GroupRegistry
+{
+    /**
+     * Told about each group removed from the registry
+     */
+    public interface RemovalListener
+    {
+        /**
+         * Called without the registry locked
+         * @param group the removed group. Renders may still be using it.
+         */
+        void removed(STGroup group);
+    }
+
+    private final long maxBytes;
+    private long loads = 0;
+    private long hits = 0;
+    private long evictions = 0;
+    private long evictedLoadNanos = 0;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final List<RemovalListener> removalListeners = new CopyOnWriteArrayList<RemovalListener>();
+
+    /**
+     * @param maxBytes maximum estimated size of the compiled templates of all groups
+     */
+    public GroupRegistry(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the group for a group file making it the first time.
+     * @param fileName path of the group file
+     * @param encoding encoding of the group file or null for the default
+     * @param startChar template expression start delimiter
+     * @param stopChar template expression stop delimiter
+     * @param rendererName name of format renderer: basic, javascript or empty string for none
+     * @param listener where to report errors loading the templates if the group is made
+     * @return the configured group
+     */
+    public STGroup getGroupFile(String fileName, String encoding, char startChar, char stopChar, String rendererName,
+                                STErrorListener listener)
+    {
+        Key key = new Key(canonicalPath(fileName), true, false, encoding, startChar, stopChar, rendererName);
+        return get(key, fileName, listener);
+    }
+
+    /**
+     * Get the group for a directory of template files making it the first time.
+     * @param dirName path of the directory
+     * @param encoding encoding of the template files or null for the default
+     * @param startChar template expression start delimiter
+     * @param stopChar template expression stop delimiter
+     * @param raw true if the template files are raw templates without a template header
+     * @param rendererName name of format renderer: basic, javascript or empty string for none
+     * @param listener where to report errors loading the templates if the group is made
+     * @return the configured group
+     */
+    public STGroup getGroupDir(String dirName, String encoding, char startChar, char stopChar, boolean raw,
+                               String rendererName, STErrorListener listener)
+    {
+        Key key = new Key(canonicalPath(dirName), false, raw, encoding, startChar, stopChar, rendererName);
+        return get(key, dirName, listener);
+    }
+
+    /**
+     * @param listener told about each group removed from now on
+     */
+    public void addRemovalListener(RemovalListener listener)
+    {
+        removalListeners.add(listener);
+    }
+
+    /**
+     * Remove all groups.
+     */
+    public void clear()
+    {
+        List<STGroup> removed = new ArrayList<STGroup>();
+        synchronized (this)
+        {
+            for (Entry e : entries.values())
+            {
+                evictedLoadNanos += e.usage.getLoadNanos();
+                removed.add(e.group);
+            }
+            entries.clear();
+        }
+        notifyRemoved(removed);
+    }
+
+    /**
+     * @return number of groups made
+     */
+    public synchronized long getLoads()
+    {
+        return loads;
+    }
+
+    /**
+     * @return number of times a group was already in the registry
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized int getGroupCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated size in bytes of the compiled templates of all groups in the registry
+     */
+    public synchronized long getBytes()
+    {
+        long bytes = 0;
+        for (Entry e : entries.values())
+        {
+            bytes += e.usage.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return milliseconds spent loading and compiling templates of all groups ever made
+     */
+    public synchronized long getLoadMillis()
+    {
+        long nanos = evictedLoadNanos;
+        for (Entry e : entries.values())
+        {
+            nanos += e.usage.getLoadNanos();
+        }
+        return nanos / 1000000;
+    }
+
+    //
+    // Implementation
+    //
+
+    private STGroup get(Key key, String path, STErrorListener listener)
+    {
+        Entry e;
+        synchronized (this)
+        {
+            e = entries.get(key);
+            if (e != null)
+            {
+                hits++;
+            }
+            else
+            {
+                // loaded below without the registry lock so other groups can be gotten
+                GroupUsage usage = new GroupUsage();
+                e = new Entry(newGroup(key, path, usage), usage);
+                entries.put(key, e);
+                loads++;
+            }
+        }
+        synchronized (e)
+        {
+            if (!e.loaded)
+            {
+                e.group.setListener(listener);
+                try
+                {
+                    RenderEngine.loadTemplates(e.group);
+                }
+                finally
+                {
+                    // only the caller that made the group gets its errors
+                    e.group.setListener(ErrorManager.DEFAULT_ERROR_LISTENER);
+                    e.loaded = true;
+                }
+            }
+        }
+        List<STGroup> removed;
+        synchronized (this)
+        {
+            removed = evict();
+        }
+        notifyRemoved(removed);
+        return e.group;
+    }
+
+    private static STGroup newGroup(Key key, String path, GroupUsage usage)
+    {
+        STGroup group;
+        if (key.groupFile)
+        {
+            group = RenderEvents.newGroupFile(path, key.encoding, key.startChar, key.stopChar, usage);
+        }
+        else if (key.raw)
+        {
+            group = RenderEvents.newRawGroupDir(path, key.encoding, key.startChar, key.stopChar, usage);
+        }
+        else
+        {
+            group = RenderEvents.newGroupDir(path, key.encoding, key.startChar, key.stopChar, usage);
+        }
+        RenderEngine.configureGroup(group, key.rendererName);
+        return group;
+    }
+
+    private List<STGroup> evict()
+    {
+        List<STGroup> removed = new ArrayList<STGroup>();
+        long bytes = getBytes();
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && entries.size() > 1)
+        {
+            Entry e = it.next();
+            bytes -= e.usage.getBytes();
+            evictedLoadNanos += e.usage.getLoadNanos();
+            it.remove();
+            evictions++;
+            removed.add(e.group);
+        }
+        return removed;
+    }
+
+    private void notifyRemoved(List<STGroup> removed)
+    {
+        for (STGroup group : removed)
+        {
+            for (RemovalListener listener : removalListeners)
+            {
+                listener.removed(group);
+            }
+        }
+    }
+
+    private static String canonicalPath(String path)
+    {
+        try
+        {
+            return new File(path).getCanonicalPath();
+        }
+        catch (IOException ioe)
+        {
+            return new File(path).getAbsolutePath();
+        }
+    }
+
+    private static class Entry
+    {
+        final STGroup group;
+        final GroupUsage usage;
+        // guarded by the entry
+        boolean loaded = false;
+
+        Entry(STGroup group, GroupUsage usage)
+        {
+            this.group = group;
+            this.usage = usage;
+        }
+    }
+
+    private static class Key
+    {
+        final String path;
+        final boolean groupFile;
+        final boolean raw;
+        final String encoding;
+        final char startChar;
+        final char stopChar;
+        final String rendererName;
+        private final int hash;
+
+        Key(String path, boolean groupFile, boolean raw, String encoding, char startChar, char stopChar,
+            String rendererName)
+        {
+            this.path = path;
+            this.groupFile = groupFile;
+            this.raw = raw;
+            this.encoding = encoding;
+            this.startChar = startChar;
+            this.stopChar = stopChar;
+            this.rendererName = rendererName;
+            this.hash = Arrays.hashCode(new Object[] {path, groupFile, raw, encoding, startChar, stopChar,
+                                                     rendererName});
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key k = (Key)o;
+            return groupFile == k.groupFile && raw == k.raw && startChar == k.startChar && stopChar == k.stopChar &&
+                path.equals(k.path) && rendererName.equals(k.rendererName) &&
+                (encoding == null ? k.encoding == null : encoding.equals(k.encoding));
+        }
+    }
+}
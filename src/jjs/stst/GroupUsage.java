@@ -0,0 +1,125 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.stringtemplate.v4.compiler.CompiledST;
+
+/**
+ * Counts the templates a group has loaded, their estimated size in memory and the time
+ * spent loading and compiling them. Groups made by RenderEvents with a GroupUsage update
+ * it as templates are loaded. It is thread safe.
+ */
+public class GroupUsage
+{
+    private final AtomicInteger templates = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    /**
+     * @return number of compiled templates including sub templates
+     */
+    public int getTemplateCount()
+    {
+        return templates.get();
+    }
+
+    /**
+     * @return estimated size in bytes of the compiled templates
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * @return nanoseconds spent loading and compiling templates
+     */
+    public long getLoadNanos()
+    {
+        return loadNanos.get();
+    }
+
+    /**
+     * Count the templates of a group after it loaded more of them.
+     * @param codes all the compiled templates of the group including sub templates
+     * @param nanos time taken by this load
+     */
+    void loaded(Collection<CompiledST> codes, long nanos)
+    {
+        long size = 0;
+        for (CompiledST code : codes)
+        {
+            size += sizeOf(code);
+        }
+        loadNanos.addAndGet(nanos);
+        templates.set(codes.size());
+        bytes.set(size);
+    }
+
+    /*
+     * Rough estimate of the heap retained by a compiled template. The tokens and syntax
+     * tree are kept for error reporting and are most of it.
+     */
+    static long sizeOf(CompiledST code)
+    {
+        long size = 160;
+        if (code.template != null)
+        {
+            size += 40 + 2L * code.template.length();
+        }
+        if (code.instrs != null)
+        {
+            size += 16 + code.instrs.length;
+        }
+        if (code.strings != null)
+        {
+            for (String s : code.strings)
+            {
+                size += 8 + (s != null ? 40 + 2L * s.length() : 0);
+            }
+        }
+        if (code.sourceMap != null)
+        {
+            size += 32L * code.sourceMap.length;
+        }
+        if (code.tokens != null)
+        {
+            // a token and its syntax tree node
+            size += 150L * code.tokens.size();
+        }
+        if (code.formalArguments != null)
+        {
+            size += 80L * code.formalArguments.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.ModelAdaptor;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.misc.STNoSuchPropertyException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONShape;
+
+/**
+ * Gives templates access to the properties of a JSON object. JSON arrays are
+ * converted to Java arrays and JSON null to null. For objects parsed with shapes
+ * the slot of each property is cached per shape.
+ */
+public class JSONAdaptor implements ModelAdaptor
+{
+    private final PropertySlotCache slots = new PropertySlotCache();
+
+    @Override
+    public Object getProperty(Interpreter interp, ST self, Object o, Object property, String propertyName)
+        throws STNoSuchPropertyException
+    {
+        JSONObject jo = (JSONObject)o;
+        Object value = null;
+
+        if (property != null)
+        {
+            JSONShape shape = jo.getShape();
+            if (shape != null)
+            {
+                int slot = slots.get(propertyName, shape);
+                if (slot == PropertySlotCache.MISS)
+                {
+                    slot = shape.indexOf(propertyName);
+                    slots.put(propertyName, shape, slot);
+                }
+                if (slot >= 0)
+                {
+                    value = jo.getSlot(slot);
+                }
+            }
+            else
+            {
+                // one lookup. opt returns null only when there is no such key
+                value = jo.opt(propertyName);
+            }
+        }
+
+        if (value == null)
+        {
+            throw new MissingPropertyException(propertyName);
+        }
+        if (value instanceof JSONArray)
+        {
+            value = convertJSONArrayToArray((JSONArray)value);
+        } else if (value == JSONObject.NULL) {
+            value = null;
+        }
+        return value;
+    }
+
+    static Object[] convertJSONArrayToArray(JSONArray ja) {
+        int i;
+        Object item;
+        Object array[] = new Object[ja.length()];
+
+        for (i = 0; i < ja.length(); i++)
+        {
+            item = ja.get(i);
+            if (item == JSONObject.NULL) {
+                item = null;
+            } else if (item instanceof JSONArray) {
+                item = convertJSONArrayToArray((JSONArray)item);
+            }
+            array[i] = item;
+        }
+        return array;
+    }
+}
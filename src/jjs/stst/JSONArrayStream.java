@@ -0,0 +1,171 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.NoSuchElementException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads the items of a JSON array one at a time as they are iterated. Only the
+ * current item is in memory. Use it as the value of an attribute and templates
+ * that iterate the attribute render each item as it is read. It can only be
+ * iterated once. Items that are JSON arrays are converted to Java arrays and
+ * JSON null to null.
+ */
+public class JSONArrayStream implements StreamedIterator<Object>, Closeable
+{
+    private static final int UNKNOWN = 0;
+    private static final int MORE = 1;
+    private static final int END = 2;
+
+    private final JSONTokener x;
+    private final Reader in;
+    private boolean first = true;
+    private int state = UNKNOWN;
+
+    /**
+     * @param x tokener positioned just after the opening [ of the array
+     * @param in the reader the tokener reads from. Closed by close.
+     */
+    public JSONArrayStream(JSONTokener x, Reader in)
+    {
+        this.x = x;
+        this.in = in;
+    }
+
+    /**
+     * Same syntax as the JSONArray constructor.
+     * @throws DataException if the JSON text is not valid
+     */
+    @Override
+    public boolean hasNext()
+    {
+        if (state == UNKNOWN)
+        {
+            try
+            {
+                char c = x.nextClean();
+                if (first)
+                {
+                    first = false;
+                    if (c == ']')
+                    {
+                        state = END;
+                    }
+                    else
+                    {
+                        x.back();
+                        state = MORE;
+                    }
+                }
+                else if (c == ',')
+                {
+                    if (x.nextClean() == ']')
+                    {
+                        state = END;
+                    }
+                    else
+                    {
+                        x.back();
+                        state = MORE;
+                    }
+                }
+                else if (c == ']')
+                {
+                    state = END;
+                }
+                else
+                {
+                    throw x.syntaxError("Expected a ',' or ']'");
+                }
+            }
+            catch (JSONException je)
+            {
+                throw new DataException(je.getLocalizedMessage(), je);
+            }
+        }
+        return state == MORE;
+    }
+
+    /**
+     * @throws DataException if the JSON text is not valid
+     */
+    @Override
+    public Object next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        state = UNKNOWN;
+        try
+        {
+            if (x.nextClean() == ',')
+            {
+                // missing item is null
+                x.back();
+                return null;
+            }
+            x.back();
+            Object value = x.nextValue();
+            if (value instanceof JSONArray)
+            {
+                value = JSONAdaptor.convertJSONArrayToArray((JSONArray)value);
+            }
+            else if (value == JSONObject.NULL)
+            {
+                value = null;
+            }
+            return value;
+        }
+        catch (JSONException je)
+        {
+            throw new DataException(je.getLocalizedMessage(), je);
+        }
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        state = END;
+        in.close();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * A path to a value inside a JSON document in JSON pointer syntax. For example
+ * /payload/items selects the value of property items of the object that is the
+ * value of property payload. Numbers select array items counting from 0. In a
+ * token ~1 stands for / and ~0 for ~. The leading / is optional.
+ * 
+ * The pointer is used to find the value while the document is parsed. Everything
+ * before the value is skipped without building strings, objects or arrays.
+ */
+public class JSONPointer
+{
+    private final String pointer;
+    private final List<String> tokens = new ArrayList<String>();
+
+    /**
+     * @param pointer the path. Empty or / selects the whole document.
+     */
+    public JSONPointer(String pointer)
+    {
+        this.pointer = pointer;
+        int start = pointer.startsWith("/") ? 1 : 0;
+        while (start < pointer.length())
+        {
+            int end = pointer.indexOf('/', start);
+            if (end < 0)
+            {
+                end = pointer.length();
+            }
+            tokens.add(pointer.substring(start, end).replace("~1", "/").replace("~0", "~"));
+            start = end + 1;
+        }
+    }
+
+    /**
+     * @return the last token of the path or null for the whole document
+     */
+    public String getLastToken()
+    {
+        return tokens.isEmpty() ? null : tokens.get(tokens.size() - 1);
+    }
+
+    /**
+     * Skip ahead to the selected value.
+     * @param x tokener positioned before the document
+     * @return true if the tokener is now positioned before the selected value
+     * and false if the document has no such value
+     * @throws JSONException if the JSON text up to the value is not valid
+     */
+    public boolean seek(JSONTokener x) throws JSONException
+    {
+        for (String token : tokens)
+        {
+            char c = x.nextClean();
+            if (c == '{')
+            {
+                if (!seekProperty(x, token))
+                {
+                    return false;
+                }
+            }
+            else if (c == '[')
+            {
+                if (!seekItem(x, token))
+                {
+                    return false;
+                }
+            }
+            else
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // same syntax as the JSONObject constructor
+    private static boolean seekProperty(JSONTokener x, String name) throws JSONException
+    {
+        char c = x.nextClean();
+        while (c != '}')
+        {
+            if (c == 0)
+            {
+                throw x.syntaxError("A JSONObject text must end with '}'");
+            }
+            x.back();
+            boolean found = x.nextKeyEquals(name);
+            if (x.nextClean() != ':')
+            {
+                throw x.syntaxError("Expected a ':' after a key");
+            }
+            if (found)
+            {
+                return true;
+            }
+            x.skipValue();
+            c = x.nextClean();
+            if (c == ',' || c == ';')
+            {
+                c = x.nextClean();
+            }
+            else if (c != '}')
+            {
+                throw x.syntaxError("Expected a ',' or '}'");
+            }
+        }
+        return false;
+    }
+
+    private static boolean seekItem(JSONTokener x, String token) throws JSONException
+    {
+        int index;
+        try
+        {
+            index = Integer.parseInt(token);
+        }
+        catch (NumberFormatException ex)
+        {
+            return false;
+        }
+        if (index < 0 || x.nextClean() == ']')
+        {
+            return false;
+        }
+        x.back();
+        for (int i = 0; i < index; i++)
+        {
+            x.skipValue();
+            char c = x.nextClean();
+            if (c == ']')
+            {
+                return false;
+            }
+            if (c != ',' && c != ';')
+            {
+                throw x.syntaxError("Expected a ',' or ']'");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return pointer;
+    }
+}
@@ -36,10 +36,11 @@ import org.stringtemplate.v4.AttributeRenderer;
 public class JavaScriptFormatRenderer implements AttributeRenderer
 {
 
-    static HashSet<String> reservedWords = new HashSet<String>();
-    static Pattern ident = Pattern.compile("[a-zA-Z_$][a-zA-Z0-9_$]*");
+    static final HashSet<String> reservedWords = new HashSet<String>();
+    static final Pattern ident = Pattern.compile("[a-zA-Z_$][a-zA-Z0-9_$]*");
 
-    {
+    // filled once so that renderers can be used by many threads
+    static {
         reservedWords.add("delete");
         reservedWords.add("default");
         reservedWords.add("else");
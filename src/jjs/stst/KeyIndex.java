@@ -0,0 +1,149 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.stringtemplate.v4.ModelAdaptor;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.STNoSuchPropertyException;
+
+/**
+ * The records of an array indexed by the value of a key field. Templates look up
+ * a record by key in constant time with an indirect property reference such as
+ * $customers.(order.customerId)$ rather than searching the array. The index is
+ * also a collection of all the records in their original order so it can take
+ * the place of the array it indexes.
+ * 
+ * Keys are compared as strings. When two records have the same key the first is
+ * found. Records without the key field are only in the collection.
+ * 
+ * The table uses open addressing with linear probing and holds the position of each
+ * record so it needs no entry objects.
+ */
+public class KeyIndex extends AbstractCollection<Object>
+{
+    private final Object[] items;
+    private final String[] keys;
+    private final int[] positions;
+    private final int mask;
+
+    /**
+     * Build the index in one pass over the records.
+     * @param group the group with the model adaptors used to read the key field of each record
+     * @param records a JSONArray or collection of records
+     * @param keyField the name of the key property
+     */
+    public KeyIndex(STGroup group, Object records, String keyField)
+    {
+        if (records instanceof JSONArray)
+        {
+            items = JSONAdaptor.convertJSONArrayToArray((JSONArray)records);
+        }
+        else
+        {
+            items = ((Collection<?>)records).toArray();
+        }
+        int capacity = Integer.highestOneBit(Math.max(items.length, 1) * 2) * 2; // at most half full
+        keys = new String[capacity];
+        positions = new int[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < items.length; i++)
+        {
+            Object item = items[i];
+            if (item == null)
+            {
+                continue;
+            }
+            ModelAdaptor adaptor = group.getModelAdaptor(item.getClass());
+            Object key;
+            try
+            {
+                key = adaptor.getProperty(null, null, item, keyField, keyField);
+            }
+            catch (STNoSuchPropertyException ex)
+            {
+                continue;
+            }
+            if (key == null)
+            {
+                continue;
+            }
+            String k = key.toString();
+            int slot = find(k);
+            if (keys[slot] == null)
+            {
+                keys[slot] = k;
+                positions[slot] = i;
+            }
+        }
+    }
+
+    /**
+     * @param key the key value. Compared as a string.
+     * @return the first record with the key or null if there is none
+     */
+    public Object get(Object key)
+    {
+        if (key == null)
+        {
+            return null;
+        }
+        int slot = find(key.toString());
+        return keys[slot] != null ? items[positions[slot]] : null;
+    }
+
+    // the slot that holds the key or the empty slot where it goes
+    private int find(String key)
+    {
+        int h = key.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (keys[slot] != null && !keys[slot].equals(key))
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    @Override
+    public Iterator<Object> iterator()
+    {
+        return Arrays.asList(items).iterator();
+    }
+
+    @Override
+    public int size()
+    {
+        return items.length;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A read only view of a JSON array in MappedJSON data. Items are read from the
+ * file as they are iterated so a large array takes almost no heap. Iterating is
+ * the fast way to access items. Getting an item by index is fast when the index
+ * is next to the previous one otherwise the array is scanned from the start.
+ * JSON null items are null.
+ */
+public class MappedArray extends AbstractList<Object>
+{
+    private final MappedJSON store;
+    private final long pos;
+    private final int count;
+    private Cursor cursor;
+
+    MappedArray(MappedJSON store, long pos)
+    {
+        this.store = store;
+        this.pos = pos;
+        this.count = store.getInt(pos + 9);
+        this.cursor = new Cursor(0, pos + 1 + MappedJSON.CONTAINER_HEADER);
+    }
+
+    @Override
+    public int size()
+    {
+        return count;
+    }
+
+    @Override
+    public Object get(int index)
+    {
+        if (index < 0 || index >= count)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        Cursor c = cursor;
+        if (index < c.index)
+        {
+            c = new Cursor(0, pos + 1 + MappedJSON.CONTAINER_HEADER);
+        }
+        long p = c.pos;
+        for (int i = c.index; i < index; i++)
+        {
+            p = store.skipValue(p);
+        }
+        cursor = new Cursor(index, p);
+        return store.readValue(p);
+    }
+
+    @Override
+    public Iterator<Object> iterator()
+    {
+        return new Items();
+    }
+
+    // RenderInterpreter applies templates to the items as they are iterated
+    class Items implements StreamedIterator<Object>
+    {
+        private int next = 0;
+        private long p = pos + 1 + MappedJSON.CONTAINER_HEADER;
+
+        MappedArray getArray()
+        {
+            return MappedArray.this;
+        }
+
+        public boolean hasNext()
+        {
+            return next < count;
+        }
+
+        public Object next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            Object value = store.readValue(p);
+            p = store.skipValue(p);
+            next++;
+            return value;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // immutable so the array can be shared by threads
+    private static final class Cursor
+    {
+        final int index;
+        final long pos;
+
+        Cursor(int index, long pos)
+        {
+            this.index = index;
+            this.pos = pos;
+        }
+    }
+}
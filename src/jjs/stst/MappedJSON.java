@@ -0,0 +1,530 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * JSON data kept in a memory mapped file rather than on the heap. This allows
+ * processing data much larger than the heap. The operating system pages the data
+ * in as the templates use it.
+ * 
+ * The JSON text is parsed as a stream and written to the file in a binary form
+ * without building any objects. The root value and any objects and arrays it
+ * contains are accessed through MappedObject and MappedArray views. A view is
+ * just a position in the file so only the views and values that a template is
+ * currently using take heap space. Register MappedAdaptor with the group to
+ * give templates access to MappedObject properties.
+ * 
+ * File format: each value is a one byte tag followed by its data.
+ * Strings are a four byte UTF-8 length and the bytes. Arrays and objects are
+ * the eight byte file position just after the end of the value, a four byte
+ * count, and then the items. Object items are a key string followed by the
+ * value. The end position is written after the items so any value can be
+ * skipped without reading it.
+ */
+public class MappedJSON
+{
+    static final byte TAG_NULL = 0;
+    static final byte TAG_FALSE = 1;
+    static final byte TAG_TRUE = 2;
+    static final byte TAG_INT = 3;
+    static final byte TAG_LONG = 4;
+    static final byte TAG_DOUBLE = 5;
+    static final byte TAG_STRING = 6;
+    static final byte TAG_ARRAY = 7;
+    static final byte TAG_OBJECT = 8;
+
+    // size of the container header after the tag: end position and count
+    static final int CONTAINER_HEADER = 12;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SEGMENT_SHIFT = 30; // map the file in 1GB segments
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    private MappedJSON(FileChannel channel, long size) throws IOException
+    {
+        this.size = size;
+        int count = (int)((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++)
+        {
+            long start = (long)i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+    }
+
+    /**
+     * Parse JSON text into a file and map the file.
+     * The file is no longer needed by this object once it is returned and can be deleted
+     * on operating systems that allow deleting a mapped file.
+     * 
+     * @param in JSON text
+     * @param file file to write. It is replaced if it exists.
+     * @return the mapped data
+     * @throws IOException if the file can't be written or mapped
+     * @throws JSONException if the JSON text is not valid
+     */
+    public static MappedJSON parse(Reader in, File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(0);
+            Builder builder = new Builder(raf.getChannel());
+            JSONTokener x = new JSONTokener(in);
+            builder.writeValue(x);
+            if (x.nextClean() != 0)
+            {
+                throw x.syntaxError("Unexpected text after the JSON value");
+            }
+            long size = builder.finish();
+            return new MappedJSON(raf.getChannel(), size);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the top level value. A MappedObject for a JSON object.
+     */
+    public Object getRoot()
+    {
+        return readValue(0);
+    }
+
+    /**
+     * @return the size of the data in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    //
+    // Reading
+    //
+
+    Object readValue(long pos)
+    {
+        byte tag = getByte(pos);
+        switch (tag)
+        {
+        case TAG_NULL:
+            return null;
+        case TAG_FALSE:
+            return Boolean.FALSE;
+        case TAG_TRUE:
+            return Boolean.TRUE;
+        case TAG_INT:
+            return getInt(pos + 1);
+        case TAG_LONG:
+            return getLong(pos + 1);
+        case TAG_DOUBLE:
+            return Double.longBitsToDouble(getLong(pos + 1));
+        case TAG_STRING:
+            return getString(pos + 1);
+        case TAG_ARRAY:
+            return new MappedArray(this, pos);
+        case TAG_OBJECT:
+            return new MappedObject(this, pos);
+        default:
+            throw new DataException("Corrupt mapped data at " + pos);
+        }
+    }
+
+    /**
+     * @return position of the value after the one at pos
+     */
+    long skipValue(long pos)
+    {
+        byte tag = getByte(pos);
+        switch (tag)
+        {
+        case TAG_INT:
+            return pos + 5;
+        case TAG_LONG:
+        case TAG_DOUBLE:
+            return pos + 9;
+        case TAG_STRING:
+            return pos + 5 + getInt(pos + 1);
+        case TAG_ARRAY:
+        case TAG_OBJECT:
+            return getLong(pos + 1);
+        default:
+            return pos + 1;
+        }
+    }
+
+    byte getByte(long pos)
+    {
+        return segments[(int)(pos >>> SEGMENT_SHIFT)].get((int)(pos & (SEGMENT_SIZE - 1)));
+    }
+
+    int getInt(long pos)
+    {
+        int offset = (int)(pos & (SEGMENT_SIZE - 1));
+        if (offset <= SEGMENT_SIZE - 4)
+        {
+            return segments[(int)(pos >>> SEGMENT_SHIFT)].getInt(offset);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            value = (value << 8) | (getByte(pos + i) & 0xff);
+        }
+        return value;
+    }
+
+    long getLong(long pos)
+    {
+        int offset = (int)(pos & (SEGMENT_SIZE - 1));
+        if (offset <= SEGMENT_SIZE - 8)
+        {
+            return segments[(int)(pos >>> SEGMENT_SHIFT)].getLong(offset);
+        }
+        return ((long)getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+    }
+
+    /**
+     * @param pos position of the string length
+     */
+    String getString(long pos)
+    {
+        int length = getInt(pos);
+        byte[] bytes = new byte[length];
+        long start = pos + 4;
+        int offset = (int)(start & (SEGMENT_SIZE - 1));
+        if (offset <= SEGMENT_SIZE - length)
+        {
+            ByteBuffer segment = segments[(int)(start >>> SEGMENT_SHIFT)].duplicate();
+            segment.position(offset);
+            segment.get(bytes);
+        }
+        else
+        {
+            for (int i = 0; i < length; i++)
+            {
+                bytes[i] = getByte(start + i);
+            }
+        }
+        return new String(bytes, UTF8);
+    }
+
+    //
+    // Writing
+    //
+
+    // Writes values through a buffer. Container headers are written with a place holder
+    // end position and count which are filled in when the container is done.
+    private static class Builder
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(FileUtil.BLKSIZE * 16);
+        private long flushed = 0; // file position of the start of the buffer
+
+        Builder(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        long finish() throws IOException
+        {
+            flush();
+            return flushed;
+        }
+
+        void writeValue(JSONTokener x) throws IOException
+        {
+            char c = x.nextClean();
+            switch (c)
+            {
+            case '"':
+            case '\'':
+                writeString(TAG_STRING, x.nextString(c));
+                break;
+            case '{':
+                writeObject(x);
+                break;
+            case '[':
+                writeArray(x);
+                break;
+            default:
+                x.back();
+                writeScalar(readUnquoted(x));
+            }
+        }
+
+        // same syntax as the JSONObject constructor. The opening { has been read.
+        private void writeObject(JSONTokener x) throws IOException
+        {
+            long start = beginContainer(TAG_OBJECT);
+            int count = 0;
+            for (;;)
+            {
+                char c = x.nextClean();
+                if (c == 0)
+                {
+                    throw x.syntaxError("A JSONObject text must end with '}'");
+                }
+                if (c == '}')
+                {
+                    break;
+                }
+                String key;
+                if (c == '"' || c == '\'')
+                {
+                    key = x.nextString(c);
+                }
+                else
+                {
+                    x.back();
+                    key = readUnquoted(x).toString();
+                }
+                if (x.nextClean() != ':')
+                {
+                    throw x.syntaxError("Expected a ':' after a key");
+                }
+                writeString(TAG_STRING, key);
+                writeValue(x);
+                count++;
+
+                c = x.nextClean();
+                if (c == ',' || c == ';')
+                {
+                    if (x.nextClean() == '}')
+                    {
+                        break;
+                    }
+                    x.back();
+                }
+                else if (c != '}')
+                {
+                    throw x.syntaxError("Expected a ',' or '}'");
+                }
+                else
+                {
+                    break;
+                }
+            }
+            endContainer(start, count);
+        }
+
+        // same syntax as the JSONArray constructor. The opening [ has been read.
+        private void writeArray(JSONTokener x) throws IOException
+        {
+            long start = beginContainer(TAG_ARRAY);
+            int count = 0;
+            if (x.nextClean() != ']')
+            {
+                x.back();
+                for (;;)
+                {
+                    if (x.nextClean() == ',')
+                    {
+                        x.back();
+                        writeScalar(JSONObject.NULL);
+                    }
+                    else
+                    {
+                        x.back();
+                        writeValue(x);
+                    }
+                    count++;
+                    char c = x.nextClean();
+                    if (c == ',')
+                    {
+                        if (x.nextClean() == ']')
+                        {
+                            break;
+                        }
+                        x.back();
+                    }
+                    else if (c == ']')
+                    {
+                        break;
+                    }
+                    else
+                    {
+                        throw x.syntaxError("Expected a ',' or ']'");
+                    }
+                }
+            }
+            endContainer(start, count);
+        }
+
+        // same as the unquoted text handling of JSONTokener.nextValue
+        private Object readUnquoted(JSONTokener x)
+        {
+            StringBuilder sb = new StringBuilder();
+            char c = x.next();
+            while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0)
+            {
+                sb.append(c);
+                c = x.next();
+            }
+            x.back();
+            String string = sb.toString().trim();
+            if (string.length() == 0)
+            {
+                throw x.syntaxError("Missing value");
+            }
+            return JSONObject.stringToValue(string);
+        }
+
+        private void writeScalar(Object value) throws IOException
+        {
+            if (value == JSONObject.NULL)
+            {
+                putByte(TAG_NULL);
+            }
+            else if (value == Boolean.TRUE)
+            {
+                putByte(TAG_TRUE);
+            }
+            else if (value == Boolean.FALSE)
+            {
+                putByte(TAG_FALSE);
+            }
+            else if (value instanceof Integer)
+            {
+                ensure(5);
+                buffer.put(TAG_INT);
+                buffer.putInt((Integer)value);
+            }
+            else if (value instanceof Long)
+            {
+                ensure(9);
+                buffer.put(TAG_LONG);
+                buffer.putLong((Long)value);
+            }
+            else if (value instanceof Double)
+            {
+                ensure(9);
+                buffer.put(TAG_DOUBLE);
+                buffer.putLong(Double.doubleToRawLongBits((Double)value));
+            }
+            else
+            {
+                writeString(TAG_STRING, value.toString());
+            }
+        }
+
+        private void writeString(byte tag, String s) throws IOException
+        {
+            byte[] bytes = s.getBytes(UTF8);
+            ensure(5);
+            buffer.put(tag);
+            buffer.putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length)
+            {
+                if (!buffer.hasRemaining())
+                {
+                    flush();
+                }
+                int n = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        private long beginContainer(byte tag) throws IOException
+        {
+            ensure(1 + CONTAINER_HEADER);
+            long start = flushed + buffer.position();
+            buffer.put(tag);
+            buffer.putLong(0);
+            buffer.putInt(0);
+            return start;
+        }
+
+        private void endContainer(long start, int count) throws IOException
+        {
+            long end = flushed + buffer.position();
+            if (start >= flushed)
+            {
+                int offset = (int)(start - flushed);
+                buffer.putLong(offset + 1, end);
+                buffer.putInt(offset + 9, count);
+            }
+            else
+            {
+                ByteBuffer header = ByteBuffer.allocate(CONTAINER_HEADER);
+                header.putLong(end);
+                header.putInt(count);
+                header.flip();
+                long pos = start + 1;
+                while (header.hasRemaining())
+                {
+                    pos += channel.write(header, pos);
+                }
+            }
+        }
+
+        private void putByte(byte b) throws IOException
+        {
+            ensure(1);
+            buffer.put(b);
+        }
+
+        private void ensure(int n) throws IOException
+        {
+            if (buffer.remaining() < n)
+            {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                flushed += channel.write(buffer, flushed);
+            }
+            buffer.clear();
+        }
+    }
+}
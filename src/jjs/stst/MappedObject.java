@@ -0,0 +1,186 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read only view of a JSON object in MappedJSON data. The keys are read from
+ * the file the first time a property is accessed. Values are read each time they
+ * are accessed so nothing but the keys are kept on the heap. JSON null is null.
+ */
+public class MappedObject extends AbstractMap<String, Object>
+{
+    private final MappedJSON store;
+    private final long pos;
+    private Index index = null;
+
+    MappedObject(MappedJSON store, long pos)
+    {
+        this.store = store;
+        this.pos = pos;
+    }
+
+    /**
+     * @return the keys in the order they are in the JSON text
+     */
+    public String[] getNames()
+    {
+        return index().keys.clone();
+    }
+
+    /**
+     * @param key property name
+     * @return index of the property or -1 if there is no such property
+     */
+    public int indexOf(String key)
+    {
+        String[] keys = index().keys;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (keys[i].equals(key))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param i index of a property
+     * @return the value of the property
+     */
+    public Object getValue(int i)
+    {
+        return store.readValue(index().valuePositions[i]);
+    }
+
+    @Override
+    public int size()
+    {
+        return store.getInt(pos + 9);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return key instanceof String && indexOf((String)key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        int i = key instanceof String ? indexOf((String)key) : -1;
+        return i >= 0 ? getValue(i) : null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<String, Object>>()
+        {
+            @Override
+            public int size()
+            {
+                return MappedObject.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator()
+            {
+                final String[] keys = index().keys;
+                return new Iterator<Map.Entry<String, Object>>()
+                {
+                    private int next = 0;
+
+                    public boolean hasNext()
+                    {
+                        return next < keys.length;
+                    }
+
+                    public Map.Entry<String, Object> next()
+                    {
+                        if (!hasNext())
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        int i = next++;
+                        return new SimpleImmutableEntry<String, Object>(keys[i], getValue(i));
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    // read the keys and value positions the first time they are needed
+    private Index index()
+    {
+        Index result = index;
+        if (result != null)
+        {
+            return result;
+        }
+        int count = size();
+        String[] k = new String[count];
+        long[] v = new long[count];
+        long p = pos + 1 + MappedJSON.CONTAINER_HEADER;
+        for (int i = 0; i < count; i++)
+        {
+            k[i] = store.getString(p + 1);
+            p = store.skipValue(p);
+            v[i] = p;
+            p = store.skipValue(p);
+        }
+        result = new Index(k, v);
+        index = result;
+        return result;
+    }
+
+    // immutable so the object can be shared by threads
+    private static final class Index
+    {
+        final String[] keys;
+        final long[] valuePositions;
+
+        Index(String[] keys, long[] valuePositions)
+        {
+            this.keys = keys;
+            this.valuePositions = valuePositions;
+        }
+    }
+}
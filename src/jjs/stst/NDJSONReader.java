@@ -0,0 +1,172 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONShape;
+import org.json.JSONTokener;
+
+/**
+ * Reads newline delimited JSON (NDJSON) one record at a time. Each non blank line
+ * is a JSON object. Records are read on demand so a file of any size can be processed
+ * with a fixed amount of memory as long as the records are not all kept. Records with
+ * the same keys share a shape.
+ */
+public class NDJSONReader implements Iterator<JSONObject>, Closeable
+{
+    private final BufferedReader reader;
+    private final JSONShape shapes = JSONShape.newRoot();
+    private Set<String> projection = null;
+    private long line = 0;
+
+    private JSONObject nextRecord = null;
+
+    /**
+     * @param reader source of NDJSON text
+     */
+    public NDJSONReader(Reader reader)
+    {
+        this.reader = new BufferedReader(reader, FileUtil.BLKSIZE);
+    }
+
+    /**
+     * @param names the property names to keep or null to keep all properties
+     * @see JSONTokener#setProjection(Set)
+     */
+    public void setProjection(Set<String> names)
+    {
+        this.projection = names;
+    }
+
+    /**
+     * @throws DataException if a line is not a JSON object
+     */
+    @Override
+    public boolean hasNext()
+    {
+        if (nextRecord == null)
+        {
+            String text = readLineOrFail();
+            while (text != null && text.trim().length() == 0)
+            {
+                text = readLineOrFail();
+            }
+            if (text == null)
+            {
+                return false;
+            }
+            // ignore a byte order mark
+            if (line == 1 && text.charAt(0) == '\uFEFF')
+            {
+                text = text.substring(1);
+            }
+            try
+            {
+                JSONTokener x = new JSONTokener(text);
+                x.setShapes(shapes);
+                x.setProjection(projection);
+                nextRecord = new JSONObject(x);
+                if (x.nextClean() != 0)
+                {
+                    throw x.syntaxError("Expected end of line after the object");
+                }
+            }
+            catch (JSONException je)
+            {
+                throw new DataException("Line " + line + ": " + je.getLocalizedMessage(), je);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public JSONObject next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        JSONObject r = nextRecord;
+        nextRecord = null;
+        return r;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Read all the remaining records
+     * @return list of records
+     */
+    public List<JSONObject> readAll()
+    {
+        List<JSONObject> records = new ArrayList<JSONObject>();
+        while (hasNext())
+        {
+            records.add(next());
+        }
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+
+    private String readLineOrFail()
+    {
+        try
+        {
+            String text = reader.readLine();
+            if (text != null)
+            {
+                line++;
+            }
+            return text;
+        }
+        catch (IOException ioe)
+        {
+            throw new DataException(ioe.getLocalizedMessage(), ioe);
+        }
+    }
+}
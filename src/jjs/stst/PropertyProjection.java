@@ -0,0 +1,135 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.compiler.Bytecode;
+import org.stringtemplate.v4.compiler.BytecodeDisassembler;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.compiler.FormalArgument;
+
+/**
+ * Finds the names a template can use to get at its data by looking at the compiled
+ * code of the template and all the templates it calls. The names are the attribute,
+ * formal argument and property names. When JSON data is parsed the values of any
+ * other properties can be skipped.
+ * 
+ * The names are not tied to where they are used so a property used on one object
+ * is kept on every object.
+ */
+public final class PropertyProjection
+{
+    private PropertyProjection()
+    {
+        // no instances
+    }
+
+    /**
+     * Compiles the template and the templates it calls if needed.
+     * @param group the group the template is rendered from
+     * @param templateName name of the template that is rendered
+     * @return the names used or null if they can't all be known. This is the case when
+     * a property or template name is computed as in $x.(name)$ or $(name)()$ or when
+     * a region calls super. Also null when there is no such template.
+     */
+    public static Set<String> getReferencedNames(STGroup group, String templateName)
+    {
+        CompiledST code = group.lookupTemplate(templateName);
+        if (code == null)
+        {
+            return null;
+        }
+        Set<String> names = new HashSet<String>();
+        Set<CompiledST> seen = Collections.newSetFromMap(new IdentityHashMap<CompiledST, Boolean>());
+        Deque<CompiledST> pending = new ArrayDeque<CompiledST>();
+        pending.push(code);
+        while (!pending.isEmpty())
+        {
+            code = pending.pop();
+            if (!seen.add(code))
+            {
+                continue;
+            }
+            // formal arguments are loaded by index so their names are not in the code
+            if (code.formalArguments != null)
+            {
+                for (FormalArgument arg : code.formalArguments.values())
+                {
+                    names.add(arg.name);
+                    if (arg.compiledDefaultValue != null)
+                    {
+                        pending.push(arg.compiledDefaultValue);
+                    }
+                }
+            }
+            if (code.implicitlyDefinedTemplates != null)
+            {
+                pending.addAll(code.implicitlyDefinedTemplates);
+            }
+
+            int ip = 0;
+            while (ip < code.codeSize)
+            {
+                int opcode = code.instrs[ip];
+                switch (opcode)
+                {
+                case Bytecode.INSTR_LOAD_ATTR:
+                case Bytecode.INSTR_LOAD_PROP:
+                    names.add(code.strings[BytecodeDisassembler.getShort(code.instrs, ip + 1)]);
+                    break;
+                case Bytecode.INSTR_NEW:
+                case Bytecode.INSTR_NEW_BOX_ARGS:
+                {
+                    // a missing template is an error when rendered and uses no names
+                    String name = code.strings[BytecodeDisassembler.getShort(code.instrs, ip + 1)];
+                    CompiledST called = group.lookupTemplate(name);
+                    if (called != null)
+                    {
+                        pending.push(called);
+                    }
+                    break;
+                }
+                case Bytecode.INSTR_LOAD_PROP_IND:
+                case Bytecode.INSTR_NEW_IND:
+                case Bytecode.INSTR_SUPER_NEW:
+                case Bytecode.INSTR_SUPER_NEW_BOX_ARGS:
+                    return null;
+                }
+                ip += 1 + Bytecode.instructions[opcode].nopnds * Bytecode.OPND_SIZE_IN_BYTES;
+            }
+        }
+        return names;
+    }
+}
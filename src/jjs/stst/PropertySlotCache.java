@@ -0,0 +1,93 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+/**
+ * Caches the slot index of a property for objects that share a shape. A shape is
+ * any object that describes the property layout of many data objects such as the
+ * CSVHeader shared by all the records of a CSV file.
+ * 
+ * This is like an inline cache except StringTemplate gives an adaptor no storage
+ * per call site. The property name string that the adaptor is given comes from the
+ * compiled template so it is the same string object each time a given expression is
+ * evaluated. The cache is direct mapped on the name hash and each entry remembers the
+ * name, shape and slot. A hit is a hash read, an array read and two identity compares.
+ * 
+ * Entries are immutable and replaced whole so the cache can be shared by threads
+ * without locking. A lost update only costs a later miss.
+ */
+public final class PropertySlotCache
+{
+    /**
+     * Returned by get when the name and shape are not in the cache
+     */
+    public static final int MISS = -2;
+
+    private static final int SIZE = 64; // must be a power of 2
+
+    private final Entry[] entries = new Entry[SIZE];
+
+    /**
+     * @param name property name
+     * @param shape the shape of the object the property is from
+     * @return the cached slot, -1 if the shape has no such property, or MISS
+     */
+    public int get(String name, Object shape)
+    {
+        Entry e = entries[name.hashCode() & (SIZE - 1)];
+        if (e != null && e.shape == shape && (e.name == name || e.name.equals(name)))
+        {
+            return e.slot;
+        }
+        return MISS;
+    }
+
+    /**
+     * @param name property name
+     * @param shape the shape of the object the property is from
+     * @param slot the slot of the property in objects with this shape or -1 if none
+     */
+    public void put(String name, Object shape, int slot)
+    {
+        entries[name.hashCode() & (SIZE - 1)] = new Entry(name, shape, slot);
+    }
+
+    private static final class Entry
+    {
+        final String name;
+        final Object shape;
+        final int slot;
+
+        Entry(String name, Object shape, int slot)
+        {
+            this.name = name;
+            this.shape = shape;
+            this.slot = slot;
+        }
+    }
+}
@@ -0,0 +1,647 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.stringtemplate.v4.ModelAdaptor;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.STNoSuchPropertyException;
+
+/**
+ * Selects records with a simple expression. Each record is tested after it has been
+ * read and parsed and records that are not wanted are dropped rather than given to the
+ * template. Because templates can't compute this keeps logic out of the templates
+ * without a separate step to filter the data. For example
+ * <pre>
+ *   year &gt;= 2000 and (genre in ('jazz', 'blues') or not reissue)
+ * </pre>
+ * A field is a property name or a path of names separated by dots. Properties are
+ * read with the model adaptors of the group so the same expression works for JSON,
+ * CSV and XML records. The operators are = != &lt; &lt;= &gt; &gt;= and in. A field
+ * alone is true when it is not missing, false or empty. The keywords and, or and not
+ * can also be written &amp;&amp; || and !.
+ * 
+ * When the value is a number the field is compared as a number and otherwise as a
+ * string. A missing field is only equal to null.
+ */
+public class RecordFilter
+{
+    private final String expression;
+    private final Set<String> fieldNames = new HashSet<String>();
+    private final Node root;
+
+    // parser state
+    private int pos = 0;
+
+    /**
+     * @param expression the filter expression
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public RecordFilter(String expression)
+    {
+        this.expression = expression;
+        root = parseOr();
+        skipSpace();
+        if (pos < expression.length())
+        {
+            throw error("Unexpected text");
+        }
+    }
+
+    /**
+     * @return all the property names used by the expression
+     */
+    public Set<String> getFieldNames()
+    {
+        return fieldNames;
+    }
+
+    /**
+     * @param group the group with the model adaptors for the record
+     * @param record the record to test
+     * @return true if the record is selected
+     */
+    public boolean accept(STGroup group, Object record)
+    {
+        return root.test(group, record);
+    }
+
+    /**
+     * @param group the group with the model adaptors for the records
+     * @param records the records to filter
+     * @return an iterator over the selected records. Closing it closes records if
+     * it is Closeable.
+     */
+    public <T> Iterator<T> filter(STGroup group, Iterator<T> records)
+    {
+        return new FilteredIterator<T>(group, records);
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+
+    private class FilteredIterator<T> implements StreamedIterator<T>, Closeable
+    {
+        private final STGroup group;
+        private final Iterator<T> records;
+        private T nextRecord = null;
+        private boolean ready = false;
+
+        FilteredIterator(STGroup group, Iterator<T> records)
+        {
+            this.group = group;
+            this.records = records;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (!ready && records.hasNext())
+            {
+                T record = records.next();
+                if (accept(group, record))
+                {
+                    nextRecord = record;
+                    ready = true;
+                }
+            }
+            return ready;
+        }
+
+        @Override
+        public T next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            T record = nextRecord;
+            nextRecord = null;
+            ready = false;
+            return record;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (records instanceof Closeable)
+            {
+                ((Closeable)records).close();
+            }
+        }
+    }
+
+    //
+    // Expression tree
+    //
+
+    private interface Node
+    {
+        boolean test(STGroup group, Object record);
+    }
+
+    private static class Or implements Node
+    {
+        final Node left;
+        final Node right;
+
+        Or(Node left, Node right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(STGroup group, Object record)
+        {
+            return left.test(group, record) || right.test(group, record);
+        }
+    }
+
+    private static class And implements Node
+    {
+        final Node left;
+        final Node right;
+
+        And(Node left, Node right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(STGroup group, Object record)
+        {
+            return left.test(group, record) && right.test(group, record);
+        }
+    }
+
+    private static class Not implements Node
+    {
+        final Node operand;
+
+        Not(Node operand)
+        {
+            this.operand = operand;
+        }
+
+        @Override
+        public boolean test(STGroup group, Object record)
+        {
+            return !operand.test(group, record);
+        }
+    }
+
+    // a field alone is tested the same way as an ST if condition
+    private static class Present implements Node
+    {
+        final String[] path;
+
+        Present(String[] path)
+        {
+            this.path = path;
+        }
+
+        @Override
+        public boolean test(STGroup group, Object record)
+        {
+            Object value = getField(group, record, path);
+            if (value == null)
+            {
+                return false;
+            }
+            if (value instanceof Boolean)
+            {
+                return (Boolean)value;
+            }
+            if (value instanceof Collection)
+            {
+                return !((Collection<?>)value).isEmpty();
+            }
+            if (value.getClass().isArray())
+            {
+                return Array.getLength(value) > 0;
+            }
+            return value.toString().length() > 0;
+        }
+    }
+
+    private static class Compare implements Node
+    {
+        final String[] path;
+        final String op;
+        final Literal literal;
+
+        Compare(String[] path, String op, Literal literal)
+        {
+            this.path = path;
+            this.op = op;
+            this.literal = literal;
+        }
+
+        @Override
+        public boolean test(STGroup group, Object record)
+        {
+            Object value = getField(group, record, path);
+            if (value == null || literal.value == null)
+            {
+                boolean same = value == literal.value;
+                return op.equals("=") ? same : op.equals("!=") && !same;
+            }
+            int c = literal.compareTo(value);
+            if (op.equals("="))
+            {
+                return c == 0;
+            }
+            if (op.equals("!="))
+            {
+                return c != 0;
+            }
+            if (op.equals("<"))
+            {
+                return c < 0;
+            }
+            if (op.equals("<="))
+            {
+                return c <= 0;
+            }
+            if (op.equals(">"))
+            {
+                return c > 0;
+            }
+            return c >= 0;
+        }
+    }
+
+    private static class In implements Node
+    {
+        final String[] path;
+        final List<Literal> literals;
+
+        In(String[] path, List<Literal> literals)
+        {
+            this.path = path;
+            this.literals = literals;
+        }
+
+        @Override
+        public boolean test(STGroup group, Object record)
+        {
+            Object value = getField(group, record, path);
+            for (Literal literal : literals)
+            {
+                if (value == null || literal.value == null)
+                {
+                    if (value == literal.value)
+                    {
+                        return true;
+                    }
+                }
+                else if (literal.compareTo(value) == 0)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Literal
+    {
+        final Object value; // String, Long, Double, Boolean or null
+        final String text;
+
+        Literal(Object value, String text)
+        {
+            this.value = value;
+            this.text = text;
+        }
+
+        // compare a field value to this literal. the result has the sign of value - literal
+        int compareTo(Object fieldValue)
+        {
+            if (value instanceof Number)
+            {
+                Number n = toNumber(fieldValue);
+                if (n != null)
+                {
+                    if (value instanceof Long && (n instanceof Long || n instanceof Integer))
+                    {
+                        return Long.compare(n.longValue(), (Long)value);
+                    }
+                    return Double.compare(n.doubleValue(), ((Number)value).doubleValue());
+                }
+            }
+            else if (value instanceof Boolean)
+            {
+                return fieldValue.toString().equalsIgnoreCase(text) ? 0 : fieldValue.toString().compareTo(text);
+            }
+            return fieldValue.toString().compareTo(text);
+        }
+    }
+
+    /**
+     * Get a property of a record using the model adaptors of the group.
+     * @return the value or null if it is missing
+     */
+    static Object getField(STGroup group, Object record, String[] path)
+    {
+        Object o = record;
+        for (String name : path)
+        {
+            if (o == null)
+            {
+                return null;
+            }
+            ModelAdaptor adaptor = group.getModelAdaptor(o.getClass());
+            try
+            {
+                o = adaptor.getProperty(null, null, o, name, name);
+            }
+            catch (STNoSuchPropertyException ex)
+            {
+                return null;
+            }
+        }
+        return o;
+    }
+
+    // a number or a string that is a number as a Long or Double otherwise null
+    static Number toNumber(Object o)
+    {
+        if (o instanceof Number)
+        {
+            return (Number)o;
+        }
+        String s = o.toString().trim();
+        try
+        {
+            return Long.valueOf(s);
+        }
+        catch (NumberFormatException ex)
+        {
+            // not an integer
+        }
+        try
+        {
+            return Double.valueOf(s);
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+
+    //
+    // Parser
+    //
+
+    private Node parseOr()
+    {
+        Node node = parseAnd();
+        while (keyword("or") || symbol("||"))
+        {
+            node = new Or(node, parseAnd());
+        }
+        return node;
+    }
+
+    private Node parseAnd()
+    {
+        Node node = parseNot();
+        while (keyword("and") || symbol("&&"))
+        {
+            node = new And(node, parseNot());
+        }
+        return node;
+    }
+
+    private Node parseNot()
+    {
+        if (keyword("not") || (!peek("!=") && symbol("!")))
+        {
+            return new Not(parseNot());
+        }
+        if (symbol("("))
+        {
+            Node node = parseOr();
+            expect(")");
+            return node;
+        }
+        String[] path = parseField();
+        if (keyword("in"))
+        {
+            expect("(");
+            List<Literal> literals = new ArrayList<Literal>();
+            do
+            {
+                literals.add(parseLiteral());
+            }
+            while (symbol(","));
+            expect(")");
+            return new In(path, literals);
+        }
+        String[] ops = {"==", "!=", "<>", "<=", ">=", "=", "<", ">"};
+        for (String op : ops)
+        {
+            if (symbol(op))
+            {
+                if (op.equals("=="))
+                {
+                    op = "=";
+                }
+                else if (op.equals("<>"))
+                {
+                    op = "!=";
+                }
+                return new Compare(path, op, parseLiteral());
+            }
+        }
+        return new Present(path);
+    }
+
+    private String[] parseField()
+    {
+        List<String> names = new ArrayList<String>();
+        do
+        {
+            skipSpace();
+            int start = pos;
+            while (pos < expression.length() && isNameChar(expression.charAt(pos)))
+            {
+                pos++;
+            }
+            if (start == pos)
+            {
+                throw error("Expected a field name");
+            }
+            names.add(expression.substring(start, pos));
+        }
+        while (symbol("."));
+        fieldNames.addAll(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    private Literal parseLiteral()
+    {
+        skipSpace();
+        if (pos >= expression.length())
+        {
+            throw error("Expected a value");
+        }
+        char c = expression.charAt(pos);
+        if (c == '"' || c == '\'')
+        {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (pos < expression.length() && expression.charAt(pos) != c)
+            {
+                if (expression.charAt(pos) == '\\' && pos + 1 < expression.length())
+                {
+                    pos++;
+                }
+                sb.append(expression.charAt(pos++));
+            }
+            if (pos >= expression.length())
+            {
+                throw error("Unterminated string");
+            }
+            pos++;
+            return new Literal(sb.toString(), sb.toString());
+        }
+        int start = pos;
+        while (pos < expression.length() && (isNameChar(c = expression.charAt(pos)) || c == '.' || c == '+'))
+        {
+            pos++;
+        }
+        String text = expression.substring(start, pos);
+        if (text.length() == 0)
+        {
+            throw error("Expected a value");
+        }
+        if (text.equals("null"))
+        {
+            return new Literal(null, text);
+        }
+        if (text.equals("true") || text.equals("false"))
+        {
+            return new Literal(Boolean.valueOf(text), text);
+        }
+        try
+        {
+            return new Literal(Long.valueOf(text), text);
+        }
+        catch (NumberFormatException ex)
+        {
+            // not an integer
+        }
+        try
+        {
+            return new Literal(Double.valueOf(text), text);
+        }
+        catch (NumberFormatException ex)
+        {
+            // a bare word is a string
+            return new Literal(text, text);
+        }
+    }
+
+    private static boolean isNameChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '$';
+    }
+
+    private boolean keyword(String word)
+    {
+        skipSpace();
+        int end = pos + word.length();
+        if (expression.regionMatches(true, pos, word, 0, word.length())
+            && (end == expression.length() || !isNameChar(expression.charAt(end))))
+        {
+            pos = end;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean peek(String s)
+    {
+        skipSpace();
+        return expression.startsWith(s, pos);
+    }
+
+    private boolean symbol(String s)
+    {
+        if (peek(s))
+        {
+            pos += s.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String s)
+    {
+        if (!symbol(s))
+        {
+            throw error("Expected " + s);
+        }
+    }
+
+    private void skipSpace()
+    {
+        while (pos < expression.length() && Character.isWhitespace(expression.charAt(pos)))
+        {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message)
+    {
+        return new IllegalArgumentException(message + " at position " + (pos + 1));
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.stringtemplate.v4.AutoIndentWriter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STWriter;
+
+/**
+ * Renders a template once for each record of a record stream with reading, rendering
+ * and writing overlapped. A parser thread reads the records and hands them in batches
+ * to a pool of render threads. The calling thread writes the rendered batches in record
+ * order. The number of batches in progress is bounded so memory use does not depend on
+ * the number of records. Throughput is limited by the slowest stage rather than the sum
+ * of all of them.
+ * 
+ * The records can come from any iterator that only the pipeline uses such as CSVReader,
+ * XMLDataReader, NDJSONReader or JSONArrayStream. Each batch is rendered with its own
+ * writer that doesn't know the column the previous batch ended at so the engine must not
+ * wrap lines. When the output is a ShardedWriter the end of each record is marked so files
+ * are split between records.
+ */
+public class RecordPipeline
+{
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    private final RenderEngine engine;
+    private final String templateName;
+    private final int threads;
+    private final int batchSize;
+
+    /**
+     * @param engine the engine to render with
+     * @param templateName the template to render for each record
+     * @param threads number of render threads
+     */
+    public RecordPipeline(RenderEngine engine, String templateName, int threads)
+    {
+        this(engine, templateName, threads, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param engine the engine to render with
+     * @param templateName the template to render for each record
+     * @param threads number of render threads
+     * @param batchSize number of records given to a render thread at a time
+     * @throws IllegalArgumentException if the engine wraps lines
+     */
+    public RecordPipeline(RenderEngine engine, String templateName, int threads, int batchSize)
+    {
+        if (threads < 1 || batchSize < 1)
+        {
+            throw new IllegalArgumentException("Threads and batch size must be at least 1");
+        }
+        if (!engine.getNoIndent() && engine.getLineWidth() != AutoIndentWriter.NO_WRAP)
+        {
+            throw new IllegalArgumentException("Line wrapping is not supported");
+        }
+        this.engine = engine;
+        this.templateName = templateName;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Render the template for each record and write the output in record order.
+     * Returns when all the records are written or when reading or rendering fails.
+     * The records are not used after this returns so they can be closed.
+     * @param records the records. Only the parser thread uses the iterator.
+     * @param out where to write the output. It is not flushed or closed.
+     * @param listener where to report template errors. Called from the render threads.
+     * @return number of records rendered
+     * @throws IOException if writing fails
+     * @throws DataException if reading a record fails
+     */
+    public long run(final Iterator<?> records, Writer out, final STErrorListener listener) throws IOException
+    {
+        // holds the batches in record order. Its capacity bounds the work in progress.
+        final BlockingQueue<Future<Batch>> pending = new ArrayBlockingQueue<Future<Batch>>(threads * 2);
+        final ExecutorService renderers = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "stst-render");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Thread parser = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                parse(records, renderers, pending, listener);
+            }
+        }, "stst-parse");
+        parser.setDaemon(true);
+        parser.start();
+
+        long count = 0;
+        try
+        {
+            for (;;)
+            {
+                Batch batch = getBatch(pending.take());
+                if (batch == null)
+                {
+                    break;
+                }
+                if (out instanceof ShardedWriter)
+                {
+                    ShardedWriter sharded = (ShardedWriter)out;
+                    int start = 0;
+                    for (int end : batch.ends)
+                    {
+                        sharded.write(batch.text, start, end - start);
+                        sharded.endRecord();
+                        start = end;
+                    }
+                }
+                else
+                {
+                    out.write(batch.text);
+                }
+                count += batch.ends.length;
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        finally
+        {
+            parser.interrupt();
+            renderers.shutdownNow();
+            // wait so the caller can safely close the records
+            boolean interrupted = false;
+            for (;;)
+            {
+                try
+                {
+                    parser.join();
+                    break;
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add the record properties to the template instance. Called from the render threads.
+     * @param st template instance
+     * @param record the record
+     */
+    protected void addAttributes(ST st, Object record)
+    {
+        engine.bindAttributes(st, record);
+    }
+
+    // runs on the parser thread. A null batch marks the end.
+    private void parse(Iterator<?> records, ExecutorService renderers, BlockingQueue<Future<Batch>> pending,
+                       STErrorListener listener)
+    {
+        try
+        {
+            try
+            {
+                List<Object> batch = new ArrayList<Object>(batchSize);
+                while (records.hasNext())
+                {
+                    batch.add(records.next());
+                    if (batch.size() == batchSize)
+                    {
+                        pending.put(renderers.submit(new RenderTask(batch, listener)));
+                        batch = new ArrayList<Object>(batchSize);
+                    }
+                }
+                if (!batch.isEmpty())
+                {
+                    pending.put(renderers.submit(new RenderTask(batch, listener)));
+                }
+                pending.put(completed(null, null));
+            }
+            catch (Throwable ex)
+            {
+                // any failure must reach the writer or it waits forever
+                pending.put(completed(null, ex));
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            // the writer stopped
+        }
+    }
+
+    private static Future<Batch> completed(final Batch batch, final Throwable error)
+    {
+        FutureTask<Batch> f = new FutureTask<Batch>(new Callable<Batch>()
+        {
+            @Override
+            public Batch call() throws Exception
+            {
+                if (error instanceof Error)
+                {
+                    throw (Error)error;
+                }
+                if (error != null)
+                {
+                    throw (Exception)error;
+                }
+                return batch;
+            }
+        });
+        f.run();
+        return f;
+    }
+
+    private static Batch getBatch(Future<Batch> f) throws InterruptedException
+    {
+        try
+        {
+            return f.get();
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static class Batch
+    {
+        final String text;
+        // where the output of each record ends in text
+        final int[] ends;
+
+        Batch(String text, int[] ends)
+        {
+            this.text = text;
+            this.ends = ends;
+        }
+    }
+
+    private class RenderTask implements Callable<Batch>
+    {
+        private final List<Object> records;
+        private final STErrorListener listener;
+
+        RenderTask(List<Object> records, STErrorListener listener)
+        {
+            this.records = records;
+            this.listener = listener;
+        }
+
+        @Override
+        public Batch call()
+        {
+            StringWriter text = new StringWriter();
+            STWriter writer = engine.createWriter(text);
+            int[] ends = new int[records.size()];
+            int i = 0;
+            for (Object record : records)
+            {
+                ST st = engine.getInstanceOf(templateName);
+                addAttributes(st, record);
+                engine.write(st, writer, listener);
+                ends[i++] = text.getBuffer().length();
+            }
+            return new Batch(text.toString(), ends);
+        }
+    }
+}
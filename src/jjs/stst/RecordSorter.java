@@ -0,0 +1,525 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.stringtemplate.v4.STGroup;
+
+/**
+ * Sorts and groups records before they are rendered because templates can't. Records
+ * are sorted by one or more fields each ascending or descending. Numbers and strings
+ * that are numbers compare as numbers and anything else as strings. Missing values
+ * sort last. The sort is stable.
+ * 
+ * Any number of records can be sorted. Records are sorted in memory in runs of at most
+ * the run size. When there is more than one run each run is written to a temporary file
+ * as NDJSON and the runs are merged as the records are read. JSON and CSV records can be
+ * written to a run file. Other records are all sorted in memory.
+ * 
+ * Grouping puts records with the same value of a field together. Each group is a record
+ * with properties key and items. The groups are made one at a time from sorted records
+ * so only one group needs to be in memory.
+ */
+public class RecordSorter
+{
+    public static final int DEFAULT_RUN_SIZE = 50000;
+
+    private final String keys;
+    private final List<String[]> paths = new ArrayList<String[]>();
+    private final List<Boolean> descending = new ArrayList<Boolean>();
+    private int runSize = DEFAULT_RUN_SIZE;
+
+    /**
+     * @param keys the fields to sort by separated by commas. A field is a property name or
+     * a path of names separated by dots optionally followed by asc or desc.
+     * For example "year desc, author.name".
+     * @throws IllegalArgumentException if keys is not valid
+     */
+    public RecordSorter(String keys)
+    {
+        this.keys = keys;
+        for (String key : keys.split(","))
+        {
+            String[] words = key.trim().split("\\s+");
+            if (words[0].length() == 0 || words.length > 2
+                || (words.length == 2 && !words[1].equalsIgnoreCase("asc") && !words[1].equalsIgnoreCase("desc")))
+            {
+                throw new IllegalArgumentException("Invalid sort field \"" + key.trim() + "\"");
+            }
+            String[] path = words[0].split("\\.");
+            for (String name : path)
+            {
+                if (name.length() == 0)
+                {
+                    throw new IllegalArgumentException("Invalid sort field \"" + key.trim() + "\"");
+                }
+            }
+            paths.add(path);
+            descending.add(words.length == 2 && words[1].equalsIgnoreCase("desc"));
+        }
+    }
+
+    /**
+     * @param runSize the most records to sort in memory at a time
+     */
+    public void setRunSize(int runSize)
+    {
+        this.runSize = runSize;
+    }
+
+    public int getRunSize()
+    {
+        return runSize;
+    }
+
+    /**
+     * @return all the property names used by the sort fields
+     */
+    public Set<String> getFieldNames()
+    {
+        Set<String> names = new HashSet<String>();
+        for (String[] path : paths)
+        {
+            Collections.addAll(names, path);
+        }
+        return names;
+    }
+
+    /**
+     * @param group the group with the model adaptors for the records
+     * @return a comparator that orders records by the sort fields
+     */
+    public Comparator<Object> comparator(final STGroup group)
+    {
+        return new Comparator<Object>()
+        {
+            @Override
+            public int compare(Object a, Object b)
+            {
+                for (int i = 0; i < paths.size(); i++)
+                {
+                    String[] path = paths.get(i);
+                    int c = compareValues(RecordFilter.getField(group, a, path), RecordFilter.getField(group, b, path));
+                    if (c != 0)
+                    {
+                        // missing values are last either way
+                        return descending.get(i) && c != Integer.MAX_VALUE && c != Integer.MIN_VALUE ? -c : c;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Sort records. All the records are read before this returns. If records is Closeable
+     * it is closed.
+     * @param group the group with the model adaptors for the records
+     * @param records the records to sort
+     * @return the sorted records. When the records didn't fit in one run the iterator is
+     * Closeable and reads the run files. Close it to delete them.
+     * @throws IOException if a run file can't be written
+     */
+    public Iterator<Object> sort(STGroup group, Iterator<?> records) throws IOException
+    {
+        Comparator<Object> comparator = comparator(group);
+        List<File> runs = new ArrayList<File>();
+        List<Object> run = new ArrayList<Object>();
+        try
+        {
+            boolean canSpill = true;
+            while (records.hasNext())
+            {
+                Object record = records.next();
+                canSpill = canSpill && (record instanceof JSONObject || record instanceof CSVRecord);
+                run.add(record);
+                if (run.size() >= runSize && canSpill)
+                {
+                    Collections.sort(run, comparator);
+                    runs.add(writeRun(run));
+                    run.clear();
+                }
+            }
+            Collections.sort(run, comparator);
+            if (runs.isEmpty())
+            {
+                return run.iterator();
+            }
+            if (!run.isEmpty())
+            {
+                runs.add(writeRun(run));
+                run.clear();
+            }
+            return new MergedRuns(runs, comparator);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            deleteRuns(runs);
+            throw ex;
+        }
+        finally
+        {
+            if (records instanceof Closeable)
+            {
+                ((Closeable)records).close();
+            }
+        }
+    }
+
+    /**
+     * Group sorted records by a field.
+     * @param group the group with the model adaptors for the records
+     * @param records records sorted by the field
+     * @param field the property name or path of names separated by dots to group by
+     * @return the groups. Each group is a JSONObject with the field value as key and a
+     * list of the records as items. Closing it closes records if it is Closeable.
+     */
+    public static Iterator<Object> group(STGroup group, Iterator<?> records, String field)
+    {
+        return new Groups(group, records, field.split("\\."));
+    }
+
+    @Override
+    public String toString()
+    {
+        return keys;
+    }
+
+    // the result has the sign of a - b. A missing value is greater than any other
+    // value and the result is MAX_VALUE or MIN_VALUE so it is not reversed
+    static int compareValues(Object a, Object b)
+    {
+        if (a == null || b == null)
+        {
+            return a == b ? 0 : (a == null ? Integer.MAX_VALUE : Integer.MIN_VALUE);
+        }
+        Number na = RecordFilter.toNumber(a);
+        Number nb = RecordFilter.toNumber(b);
+        if (na != null && nb != null)
+        {
+            if ((na instanceof Long || na instanceof Integer) && (nb instanceof Long || nb instanceof Integer))
+            {
+                return Long.compare(na.longValue(), nb.longValue());
+            }
+            return Double.compare(na.doubleValue(), nb.doubleValue());
+        }
+        if (na != null || nb != null)
+        {
+            // numbers before strings
+            return na != null ? -1 : 1;
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static File writeRun(List<Object> run) throws IOException
+    {
+        File file = File.createTempFile("stst-sort", ".ndjson");
+        file.deleteOnExit();
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+            FileUtil.BLKSIZE);
+        try
+        {
+            for (Object record : run)
+            {
+                if (record instanceof CSVRecord)
+                {
+                    CSVRecord r = (CSVRecord)record;
+                    String[] names = r.getHeader().getNames();
+                    out.write('{');
+                    for (int i = 0; i < names.length; i++)
+                    {
+                        if (i > 0)
+                        {
+                            out.write(',');
+                        }
+                        JSONObject.quote(names[i], out);
+                        out.write(':');
+                        writeValue(out, r.get(i));
+                    }
+                    out.write('}');
+                }
+                else
+                {
+                    writeValue(out, record);
+                }
+                out.write('\n');
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    // like JSONObject.write but numbers are written with toString so they read back as the same type
+    private static void writeValue(Writer out, Object value) throws IOException
+    {
+        if (value == null || value == JSONObject.NULL)
+        {
+            out.write("null");
+        }
+        else if (value instanceof JSONObject)
+        {
+            JSONObject jo = (JSONObject)value;
+            out.write('{');
+            String[] names = JSONObject.getNames(jo);
+            if (names != null)
+            {
+                for (int i = 0; i < names.length; i++)
+                {
+                    if (i > 0)
+                    {
+                        out.write(',');
+                    }
+                    JSONObject.quote(names[i], out);
+                    out.write(':');
+                    writeValue(out, jo.opt(names[i]));
+                }
+            }
+            out.write('}');
+        }
+        else if (value instanceof JSONArray)
+        {
+            JSONArray ja = (JSONArray)value;
+            out.write('[');
+            for (int i = 0; i < ja.length(); i++)
+            {
+                if (i > 0)
+                {
+                    out.write(',');
+                }
+                writeValue(out, ja.opt(i));
+            }
+            out.write(']');
+        }
+        else if (value instanceof Number || value instanceof Boolean)
+        {
+            out.write(value.toString());
+        }
+        else
+        {
+            JSONObject.quote(value.toString(), out);
+        }
+    }
+
+    private static void deleteRuns(List<File> runs)
+    {
+        for (File file : runs)
+        {
+            file.delete();
+        }
+    }
+
+    private static class Run
+    {
+        final NDJSONReader reader;
+        final int index;
+        Object current;
+
+        Run(NDJSONReader reader, int index)
+        {
+            this.reader = reader;
+            this.index = index;
+        }
+    }
+
+    private static class MergedRuns implements Iterator<Object>, Closeable
+    {
+        private final List<File> files;
+        private final List<Run> runs = new ArrayList<Run>();
+        private final PriorityQueue<Run> queue;
+
+        MergedRuns(List<File> files, final Comparator<Object> comparator) throws IOException
+        {
+            this.files = files;
+            // ties go to the earlier run so the merge is stable
+            queue = new PriorityQueue<Run>(files.size(), new Comparator<Run>()
+            {
+                @Override
+                public int compare(Run a, Run b)
+                {
+                    int c = comparator.compare(a.current, b.current);
+                    return c != 0 ? c : a.index - b.index;
+                }
+            });
+            try
+            {
+                for (File file : files)
+                {
+                    Run run = new Run(new NDJSONReader(new InputStreamReader(new FileInputStream(file),
+                        StandardCharsets.UTF_8)), runs.size());
+                    runs.add(run);
+                    advance(run);
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                close();
+                throw ex;
+            }
+        }
+
+        private void advance(Run run)
+        {
+            if (run.reader.hasNext())
+            {
+                run.current = run.reader.next();
+                queue.add(run);
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Object next()
+        {
+            Run run = queue.poll();
+            if (run == null)
+            {
+                throw new NoSuchElementException();
+            }
+            Object record = run.current;
+            advance(run);
+            return record;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            for (Run run : runs)
+            {
+                run.reader.close();
+            }
+            queue.clear();
+            deleteRuns(files);
+        }
+    }
+
+    private static class Groups implements Iterator<Object>, Closeable
+    {
+        private final STGroup group;
+        private final Iterator<?> records;
+        private final String[] path;
+        private Object nextRecord = null;
+        private boolean ready = false;
+
+        Groups(STGroup group, Iterator<?> records, String[] path)
+        {
+            this.group = group;
+            this.records = records;
+            this.path = path;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (!ready && records.hasNext())
+            {
+                nextRecord = records.next();
+                ready = true;
+            }
+            return ready;
+        }
+
+        @Override
+        public Object next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            Object key = RecordFilter.getField(group, nextRecord, path);
+            List<Object> items = new ArrayList<Object>();
+            items.add(nextRecord);
+            ready = false;
+            while (records.hasNext())
+            {
+                Object record = records.next();
+                if (compareValues(key, RecordFilter.getField(group, record, path)) != 0)
+                {
+                    nextRecord = record;
+                    ready = true;
+                    break;
+                }
+                items.add(record);
+            }
+            JSONObject g = new JSONObject();
+            g.put("key", key != null ? key : JSONObject.NULL);
+            // as an Object so put doesn't copy the list into a JSONArray
+            g.put("items", (Object)items);
+            return g;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (records instanceof Closeable)
+            {
+                ((Closeable)records).close();
+            }
+        }
+    }
+}
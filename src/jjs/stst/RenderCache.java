@@ -0,0 +1,536 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.stringtemplate.v4.AttributeRenderer;
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.STMessage;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A bounded cache of rendered output. When the same template is rendered with the same
+ * data and options the output is written from the cache rather than rendering again.
+ * 
+ * The key is the template name, group, format renderer, indent and line width settings
+ * and a SHA-256 hash of the data in a canonical JSON form (object keys sorted). The least
+ * recently used entries are evicted to keep the total size of cached output under the
+ * limit. Size is estimated as two bytes per character. Output bigger than a quarter of
+ * the limit is not cached. Output from a render that reported errors is not cached.
+ * 
+ * Entries are keyed by the id of their SharedGroup so they don't keep the group alive.
+ * Call clear with the group when it is reloaded or removed from a GroupRegistry so its
+ * entries don't take space from other groups. The cache is thread safe.
+ */
+public class RenderCache
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private final LinkedHashMap<Key, String> entries = new LinkedHashMap<Key, String>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes maximum estimated size of all cached output
+     */
+    public RenderCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Render a template to a writer using cached output if possible.
+     * @param engine the engine to render with
+     * @param templateName name of the template to render
+     * @param data JSONObject, CSVRecord or XMLElement with the template attributes
+     * @param out where to write the output. It is not flushed or closed.
+     * @param listener where to report errors for this render
+     * @return true if the output came from the cache
+     * @throws IOException if writing the cached output fails
+     */
+    public boolean render(RenderEngine engine, String templateName, Object data, Writer out, STErrorListener listener)
+        throws IOException
+    {
+        Key key = makeKey(engine, templateName, data);
+        if (key == null)
+        {
+            // data can't be hashed
+            countMiss();
+            engine.render(templateName, data, out, listener);
+            return false;
+        }
+        String text = get(key);
+        if (text != null)
+        {
+            out.write(text);
+            return true;
+        }
+        CapturingWriter capture = new CapturingWriter(out, (int)Math.min(Integer.MAX_VALUE, maxBytes / 8));
+        ErrorCountingListener counter = new ErrorCountingListener(listener);
+        engine.render(templateName, data, capture, counter);
+        text = capture.getCaptured();
+        if (text != null && counter.count == 0)
+        {
+            put(key, text);
+        }
+        return false;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Remove the entries rendered by a group. Call when the group is reloaded or replaced.
+     * @param group the group
+     */
+    public synchronized void clear(STGroup group)
+    {
+        long groupId = ((SharedGroup)group).getId();
+        Iterator<Map.Entry<Key, String>> it = entries.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Key, String> e = it.next();
+            if (e.getKey().groupId == groupId)
+            {
+                bytes -= sizeOf(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated size in bytes of all cached output
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    //
+    // Implementation
+    //
+
+    private synchronized String get(Key key)
+    {
+        String text = entries.get(key);
+        if (text != null)
+        {
+            hits++;
+        }
+        else
+        {
+            misses++;
+        }
+        return text;
+    }
+
+    private synchronized void countMiss()
+    {
+        misses++;
+    }
+
+    private synchronized void put(Key key, String text)
+    {
+        String old = entries.put(key, text);
+        if (old != null)
+        {
+            bytes -= sizeOf(old);
+        }
+        bytes += sizeOf(text);
+        Iterator<String> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext())
+        {
+            bytes -= sizeOf(it.next());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static long sizeOf(String text)
+    {
+        return 2L * text.length();
+    }
+
+    private static Key makeKey(RenderEngine engine, String templateName, Object data)
+    {
+        StringBuilder sb = new StringBuilder();
+        if (!canonicalize(data, sb))
+        {
+            return null;
+        }
+        MessageDigest md;
+        try
+        {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md.digest(sb.toString().getBytes(UTF8));
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++)
+        {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        AttributeRenderer renderer = engine.getGroup().getAttributeRenderer(String.class);
+        String rendererName = renderer != null ? renderer.getClass().getName() : "";
+        long groupId = ((SharedGroup)engine.getGroup()).getId();
+        return new Key(groupId, templateName, rendererName, engine.getNoIndent(), engine.getLineWidth(), new String(hex));
+    }
+
+    /*
+     * Write the data as JSON with object keys sorted so that equal data gives equal text.
+     * Returns false if the data contains something that has no JSON form.
+     */
+    private static boolean canonicalize(Object value, StringBuilder sb)
+    {
+        if (value == null || value == JSONObject.NULL)
+        {
+            sb.append("null");
+        }
+        else if (value instanceof String)
+        {
+            sb.append(JSONObject.quote((String)value));
+        }
+        else if (value instanceof Number || value instanceof Boolean)
+        {
+            sb.append(value.toString());
+        }
+        else if (value instanceof JSONObject)
+        {
+            String[] names = JSONObject.getNames((JSONObject)value);
+            return canonicalizeObject(names, (JSONObject)value, sb);
+        }
+        else if (value instanceof Map)
+        {
+            Map<?, ?> map = (Map<?, ?>)value;
+            String[] names = new String[map.size()];
+            int i = 0;
+            for (Object k : map.keySet())
+            {
+                names[i++] = String.valueOf(k);
+            }
+            return canonicalizeObject(names, map, sb);
+        }
+        else if (value instanceof CSVRecord)
+        {
+            CSVRecord record = (CSVRecord)value;
+            return canonicalizeObject(record.getHeader().getNames().clone(), record, sb);
+        }
+        else if (value instanceof XMLElement)
+        {
+            XMLElement element = (XMLElement)value;
+            sb.append('<').append(JSONObject.quote(element.getName()));
+            if (!canonicalizeObject(element.getNames().clone(), element, sb))
+            {
+                return false;
+            }
+            canonicalize(element.getText(), sb);
+            sb.append('>');
+        }
+        else if (value instanceof JSONArray)
+        {
+            JSONArray a = (JSONArray)value;
+            sb.append('[');
+            for (int i = 0; i < a.length(); i++)
+            {
+                if (!canonicalize(a.opt(i), sb))
+                {
+                    return false;
+                }
+                sb.append(',');
+            }
+            sb.append(']');
+        }
+        else if (value instanceof Collection || value instanceof Object[])
+        {
+            Collection<?> c = value instanceof Collection ? (Collection<?>)value : Arrays.asList((Object[])value);
+            sb.append('[');
+            for (Object item : c)
+            {
+                if (!canonicalize(item, sb))
+                {
+                    return false;
+                }
+                sb.append(',');
+            }
+            sb.append(']');
+        }
+        else
+        {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean canonicalizeObject(String[] names, Object source, StringBuilder sb)
+    {
+        sb.append('{');
+        if (names != null)
+        {
+            Arrays.sort(names);
+            for (String name : names)
+            {
+                sb.append(JSONObject.quote(name)).append(':');
+                if (!canonicalize(getValue(source, name), sb))
+                {
+                    return false;
+                }
+                sb.append(',');
+            }
+        }
+        sb.append('}');
+        return true;
+    }
+
+    private static Object getValue(Object source, String name)
+    {
+        if (source instanceof JSONObject)
+        {
+            return ((JSONObject)source).opt(name);
+        }
+        if (source instanceof CSVRecord)
+        {
+            return ((CSVRecord)source).get(name);
+        }
+        if (source instanceof XMLElement)
+        {
+            return ((XMLElement)source).get(name);
+        }
+        return ((Map<?, ?>)source).get(name);
+    }
+
+    private static class Key
+    {
+        private final long groupId;
+        private final String templateName;
+        private final String rendererName;
+        private final boolean noIndent;
+        private final int lineWidth;
+        private final String dataHash;
+        private final int hash;
+
+        Key(long groupId, String templateName, String rendererName, boolean noIndent, int lineWidth, String dataHash)
+        {
+            this.groupId = groupId;
+            this.templateName = templateName;
+            this.rendererName = rendererName;
+            this.noIndent = noIndent;
+            this.lineWidth = lineWidth;
+            this.dataHash = dataHash;
+            this.hash = Arrays.hashCode(new Object[] {groupId, templateName, rendererName,
+                                                     noIndent, lineWidth, dataHash});
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key k = (Key)o;
+            return groupId == k.groupId && noIndent == k.noIndent && lineWidth == k.lineWidth &&
+                templateName.equals(k.templateName) && rendererName.equals(k.rendererName) &&
+                dataHash.equals(k.dataHash);
+        }
+    }
+
+    // Passes output through and keeps a copy unless it gets too long
+    private static class CapturingWriter extends Writer
+    {
+        private final Writer out;
+        private final int limit;
+        private StringBuilder captured = new StringBuilder();
+
+        CapturingWriter(Writer out, int limit)
+        {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        String getCaptured()
+        {
+            return captured != null ? captured.toString() : null;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            out.write(cbuf, off, len);
+            if (captured != null)
+            {
+                if (captured.length() + len > limit)
+                {
+                    captured = null;
+                }
+                else
+                {
+                    captured.append(cbuf, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException
+        {
+            out.write(str, off, len);
+            if (captured != null)
+            {
+                if (captured.length() + len > limit)
+                {
+                    captured = null;
+                }
+                else
+                {
+                    captured.append(str, off, off + len);
+                }
+            }
+        }
+
+        @Override
+        public void write(int c) throws IOException
+        {
+            out.write(c);
+            if (captured != null)
+            {
+                if (captured.length() + 1 > limit)
+                {
+                    captured = null;
+                }
+                else
+                {
+                    captured.append((char)c);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    private static class ErrorCountingListener implements STErrorListener
+    {
+        private final STErrorListener listener;
+        private int count = 0;
+
+        ErrorCountingListener(STErrorListener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public void compileTimeError(STMessage msg)
+        {
+            count++;
+            listener.compileTimeError(msg);
+        }
+
+        @Override
+        public void runTimeError(STMessage msg)
+        {
+            count++;
+            listener.runTimeError(msg);
+        }
+
+        @Override
+        public void IOError(STMessage msg)
+        {
+            count++;
+            listener.IOError(msg);
+        }
+
+        @Override
+        public void internalError(STMessage msg)
+        {
+            count++;
+            listener.internalError(msg);
+        }
+    }
+}
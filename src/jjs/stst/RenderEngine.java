@@ -0,0 +1,462 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.stringtemplate.v4.AutoIndentWriter;
+import org.stringtemplate.v4.NoIndentWriter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupDir;
+import org.stringtemplate.v4.STWriter;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.compiler.FormalArgument;
+
+import org.json.JSONObject;
+
+/**
+ * Renders templates from a group with data. This is the part of STStandaloneTool that
+ * can be embedded in other programs.
+ * 
+ * A RenderEngine is immutable and can be shared by any number of threads. Each call
+ * to render gets its own template instance and writer so renders never share
+ * mutable state. The group must be fully configured before the engine is created
+ * and not changed after. Use configureGroup to register the data adaptors and a format
+ * renderer.
+ * 
+ * Groups load templates the first time they are looked up and STGroup doesn't do that
+ * safely on more than one thread so the group must be a SharedGroup such as one from
+ * SharedGroups or RenderEvents. Its lookups are locked until loadTemplates has loaded
+ * all its templates and then they are not locked at all.
+ * 
+ * Data for a render is a JSONObject, CSVRecord, XMLElement or MappedObject. Its top level
+ * properties are added as attributes of the template. Only the properties a template declares
+ * as formal arguments are looked up using a BindingPlan that is made once for each template.
+ * 
+ * An engine can have a RenderProfile that collects statistics for every render.
+ */
+public class RenderEngine
+{
+    private final STGroup group;
+    private final boolean noIndent;
+    private final int lineWidth;
+    private final RenderProfile profile;
+    private final ConcurrentHashMap<CompiledST, BindingPlan> plans = new ConcurrentHashMap<CompiledST, BindingPlan>();
+
+    /**
+     * @param group group containing the templates to render. Must be configured with configureGroup.
+     * @param noIndent true to not indent output
+     * @param lineWidth line width for wrapping or STWriter.NO_WRAP. Ignored if noIndent is true.
+     */
+    public RenderEngine(STGroup group, boolean noIndent, int lineWidth)
+    {
+        this(group, noIndent, lineWidth, null);
+    }
+
+    /**
+     * @param group group containing the templates to render. Must be configured with configureGroup.
+     * @param noIndent true to not indent output
+     * @param lineWidth line width for wrapping or STWriter.NO_WRAP. Ignored if noIndent is true.
+     * @param profile profile to add the statistics of each render to or null to not profile
+     * @throws IllegalArgumentException if the group is not a SharedGroup
+     */
+    public RenderEngine(STGroup group, boolean noIndent, int lineWidth, RenderProfile profile)
+    {
+        if (!(group instanceof SharedGroup))
+        {
+            throw new IllegalArgumentException("Group " + group.getName() + " is not a SharedGroup");
+        }
+        this.group = group;
+        this.noIndent = noIndent;
+        this.lineWidth = lineWidth;
+        this.profile = profile;
+    }
+
+    /**
+     * Register the model adaptors for all the supported data formats and the named format renderer
+     * @param group the group to configure
+     * @param rendererName name of format renderer: basic, javascript or empty string for none
+     * @return false if the renderer name is not known
+     */
+    public static boolean configureGroup(STGroup group, String rendererName)
+    {
+        // TODO support extensible renderers
+        if (rendererName.equals("basic")) {
+            group.registerRenderer(String.class, new BasicFormatRenderer());
+        } else if (rendererName.equals("javascript")) {
+            group.registerRenderer(String.class, new JavaScriptFormatRenderer());
+        }
+        group.registerModelAdaptor(JSONObject.class, new JSONAdaptor());
+        group.registerModelAdaptor(CSVRecord.class, new CSVAdaptor());
+        group.registerModelAdaptor(XMLElement.class, new XMLAdaptor());
+        group.registerModelAdaptor(MappedObject.class, new MappedAdaptor());
+        group.registerModelAdaptor(KeyIndex.class, new KeyIndexAdaptor());
+        return isRendererName(rendererName);
+    }
+
+    /**
+     * @param rendererName name of format renderer
+     * @return true if configureGroup knows the renderer: basic, javascript or empty string for none
+     */
+    public static boolean isRendererName(String rendererName)
+    {
+        return rendererName.equals("basic") || rendererName.equals("javascript") || rendererName.equals("");
+    }
+
+    /**
+     * Load and compile all the templates of a group so that renders on many threads don't
+     * load them. For a group directory every template file and group file under the
+     * directory is loaded. Imported groups are loaded the same way. Errors are reported to
+     * the group error listener. If everything could be loaded a SharedGroup is frozen.
+     * @param group a group from a group file or directory
+     * @return false if a directory could not be listed, such as one in a jar, so templates
+     * not loaded yet will be loaded as they are used
+     */
+    public static boolean loadTemplates(STGroup group)
+    {
+        boolean loaded = false;
+        if (group instanceof STGroupDir)
+        {
+            URL root = ((STGroupDir)group).root;
+            if (root != null && root.getProtocol().equals("file"))
+            {
+                try
+                {
+                    loadTemplates(group, new File(root.toURI()), "/");
+                    loaded = true;
+                }
+                catch (URISyntaxException e)
+                {
+                    // can't list the directory; templates load as they are used
+                }
+            }
+        }
+        else
+        {
+            group.load();
+            loaded = true;
+        }
+        for (STGroup imported : group.getImportedGroups())
+        {
+            loaded &= loadTemplates(imported);
+        }
+        if (loaded && group instanceof SharedGroup)
+        {
+            ((SharedGroup)group).freeze();
+        }
+        return loaded;
+    }
+
+    private static void loadTemplates(STGroup group, File dir, String prefix)
+    {
+        String[] names = dir.list();
+        if (names == null)
+        {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names)
+        {
+            if (new File(dir, name).isDirectory())
+            {
+                loadTemplates(group, new File(dir, name), prefix + name + "/");
+            }
+            else if (name.endsWith(STGroup.GROUP_FILE_EXTENSION))
+            {
+                // looking up any name in a group file loads all of its templates
+                String groupName = name.substring(0, name.length() - STGroup.GROUP_FILE_EXTENSION.length());
+                loadTemplate(group, prefix + groupName + "/");
+            }
+            else if (name.endsWith(STGroup.TEMPLATE_FILE_EXTENSION))
+            {
+                String templateName = name.substring(0, name.length() - STGroup.TEMPLATE_FILE_EXTENSION.length());
+                loadTemplate(group, prefix + templateName);
+            }
+        }
+    }
+
+    // ST throws for some template files it can't compile. Report it and go on to the next one.
+    private static void loadTemplate(STGroup group, String name)
+    {
+        try
+        {
+            group.lookupTemplate(name);
+        }
+        catch (RuntimeException ex)
+        {
+            group.errMgr.internalError(null, "can't load template " + name, ex);
+        }
+    }
+
+    public STGroup getGroup()
+    {
+        return group;
+    }
+
+    public boolean getNoIndent()
+    {
+        return noIndent;
+    }
+
+    public int getLineWidth()
+    {
+        return lineWidth;
+    }
+
+    /**
+     * @return the profile or null if renders are not profiled
+     */
+    public RenderProfile getProfile()
+    {
+        return profile;
+    }
+
+    /**
+     * Render a template to a writer. Errors are reported to the group error listener.
+     * @param templateName name of the template to render
+     * @param data JSONObject, CSVRecord, XMLElement or MappedObject with the template attributes
+     * @param out where to write the output. It is not flushed or closed.
+     * @return number of characters written
+     */
+    public int render(String templateName, Object data, Writer out)
+    {
+        return render(templateName, data, out, group.getListener());
+    }
+
+    /**
+     * Render a template to a writer.
+     * @param templateName name of the template to render
+     * @param data JSONObject, CSVRecord, XMLElement or MappedObject with the template attributes
+     * @param out where to write the output. It is not flushed or closed.
+     * @param listener where to report errors for this render
+     * @return number of characters written
+     */
+    public int render(String templateName, Object data, Writer out, STErrorListener listener)
+    {
+        ST st = getInstanceOf(templateName);
+        if (st == null)
+        {
+            throw new IllegalArgumentException("No such template " + templateName);
+        }
+        bindAttributes(st, data);
+        return write(st, createWriter(out), listener);
+    }
+
+    /**
+     * Render a template encoding the output directly to a stream.
+     * @param templateName name of the template to render
+     * @param data JSONObject, CSVRecord, XMLElement or MappedObject with the template attributes
+     * @param out where to write the output. It is flushed but not closed.
+     * @param charset the output encoding
+     * @param listener where to report errors for this render
+     * @return number of characters written
+     * @throws IOException if writing to the stream fails
+     */
+    public int render(String templateName, Object data, OutputStream out, Charset charset, STErrorListener listener)
+        throws IOException
+    {
+        ST st = getInstanceOf(templateName);
+        if (st == null)
+        {
+            throw new IllegalArgumentException("No such template " + templateName);
+        }
+        bindAttributes(st, data);
+        EncodingSTWriter writer = createWriter(out, charset);
+        int n = write(st, writer, listener);
+        writer.flush();
+        return n;
+    }
+
+    /**
+     * Write a template instance using RenderInterpreter.
+     * @param st the template instance with its attributes set
+     * @param out writer from createWriter
+     * @param listener where to report errors for this render
+     * @return number of characters written
+     */
+    public int write(ST st, STWriter out, STErrorListener listener)
+    {
+        RenderEvents.TemplateRender e = new RenderEvents.TemplateRender();
+        e.begin();
+        int n = RenderInterpreter.write(st, out, Locale.getDefault(), listener, profile);
+        e.commit(st.getName(), n);
+        return n;
+    }
+
+    /**
+     * Create a new instance of a template that can be given attributes by this thread.
+     * @param templateName name of template
+     * @return the template instance or null if there is no such template
+     */
+    public ST getInstanceOf(String templateName)
+    {
+        ST st = group.getInstanceOf(templateName);
+        if (st != null && !st.impl.hasFormalArgs)
+        {
+            // Adding attributes to a template without formal arguments defines them in the
+            // compiled template which is shared so give this instance its own copy.
+            st.impl = copyOf(st.impl);
+        }
+        return st;
+    }
+
+    /*
+     * CompiledST.clone gives the new copy of the formal arguments to the original rather than
+     * the clone so it changes the shared template and clones made at the same time can share
+     * the arguments. Copy the fields here instead.
+     */
+    private static CompiledST copyOf(CompiledST impl)
+    {
+        CompiledST copy = new CompiledST();
+        copy.name = impl.name;
+        copy.prefix = impl.prefix;
+        copy.template = impl.template;
+        copy.templateDefStartToken = impl.templateDefStartToken;
+        copy.tokens = impl.tokens;
+        copy.ast = impl.ast;
+        if (impl.formalArguments != null)
+        {
+            copy.formalArguments = Collections.synchronizedMap(
+                new LinkedHashMap<String, FormalArgument>(impl.formalArguments));
+        }
+        copy.hasFormalArgs = impl.hasFormalArgs;
+        copy.numberOfArgsWithDefaultValues = impl.numberOfArgsWithDefaultValues;
+        copy.implicitlyDefinedTemplates = impl.implicitlyDefinedTemplates;
+        copy.nativeGroup = impl.nativeGroup;
+        copy.isRegion = impl.isRegion;
+        copy.regionDefType = impl.regionDefType;
+        copy.isAnonSubtemplate = impl.isAnonSubtemplate;
+        copy.strings = impl.strings;
+        copy.instrs = impl.instrs;
+        copy.codeSize = impl.codeSize;
+        copy.sourceMap = impl.sourceMap;
+        return copy;
+    }
+
+    /**
+     * Get the binding plan for a template instance. Plans for templates with formal arguments
+     * are made the first time the compiled template is used and kept for all later renders.
+     * @param st template instance
+     * @return the plan
+     */
+    public BindingPlan getBindingPlan(ST st)
+    {
+        CompiledST impl = st.impl;
+        if (!impl.hasFormalArgs)
+        {
+            return BindingPlan.ALL;
+        }
+        BindingPlan plan = plans.get(impl);
+        if (plan == null)
+        {
+            plan = BindingPlan.create(impl);
+            BindingPlan other = plans.putIfAbsent(impl, plan);
+            if (other != null)
+            {
+                plan = other;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Add the top level properties of a JSON object, CSV record or XML element as template attributes.
+     * Properties that don't match a template argument are skipped.
+     * @param st template instance
+     * @param source JSONObject, CSVRecord, XMLElement or MappedObject
+     */
+    public void bindAttributes(ST st, Object source)
+    {
+        getBindingPlan(st).bind(st, source, group.getModelAdaptor(source.getClass()));
+    }
+
+    /**
+     * Add the top level properties of a JSON object, CSV record or XML element as template attributes
+     * and find the ones that were skipped. Use bindAttributes when the skipped names are not needed.
+     * @param st template instance
+     * @param source JSONObject, CSVRecord, XMLElement or MappedObject
+     * @return names of properties that don't match a template argument or null if all were added
+     */
+    public List<String> addAttributes(ST st, Object source)
+    {
+        BindingPlan plan = getBindingPlan(st);
+        plan.bind(st, source, group.getModelAdaptor(source.getClass()));
+        return plan.getIgnored(source);
+    }
+
+    /**
+     * Create a writer that indents and wraps according to the engine settings
+     * @param out where the template output goes
+     * @return writer for template output
+     */
+    public STWriter createWriter(Writer out)
+    {
+        STWriter writer = null;
+        if (noIndent)
+        {
+            writer = new NoIndentWriter(out);
+        }
+        else
+        {
+            writer = new AutoIndentWriter(out);
+            writer.setLineWidth(lineWidth);
+        }
+        return writer;
+    }
+
+    /**
+     * Create a writer that encodes directly to a stream. The output is the same as
+     * the writer from createWriter(Writer) with an OutputStreamWriter for the charset.
+     * @param out where the encoded template output goes
+     * @param charset the output encoding
+     * @return writer for template output. Call flush when done.
+     */
+    public EncodingSTWriter createWriter(OutputStream out, Charset charset)
+    {
+        EncodingSTWriter writer = new EncodingSTWriter(out, charset, noIndent);
+        if (!noIndent)
+        {
+            writer.setLineWidth(lineWidth);
+        }
+        return writer;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.compiler.FormalArgument;
+
+import st4hidden.org.antlr.runtime.Token;
+
+/**
+ * Java Flight Recorder events for the phases of template processing: reading and
+ * parsing data, loading groups, loading and compiling templates, rendering and
+ * flushing output. The events are in the STST category. When no recording is
+ * running they cost next to nothing.
+ * 
+ * Groups created with newGroupFile, newGroupDir and newRawGroupDir emit the group
+ * and template load and compile events. They are SharedGroups so they can be rendered
+ * by many threads.
+ */
+public final class RenderEvents
+{
+    private RenderEvents()
+    {
+    }
+
+    @Name("jjs.stst.DataRead")
+    @Label("Data Read")
+    @Category("STST")
+    @Description("Data read from a file or stream")
+    public static class DataRead extends Event
+    {
+        @Label("Source")
+        String source;
+
+        @Label("Format")
+        String format;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Characters")
+        long chars;
+
+        void commit(String source, String format, long bytes, long chars)
+        {
+            if (shouldCommit())
+            {
+                this.source = source;
+                this.format = format;
+                this.bytes = bytes;
+                this.chars = chars;
+                commit();
+            }
+        }
+    }
+
+    @Name("jjs.stst.JSONParse")
+    @Label("JSON Parse")
+    @Category("STST")
+    @Description("JSON text parsed into objects and arrays")
+    public static class JSONParse extends Event
+    {
+        @Label("Characters")
+        long chars;
+
+        @Label("Objects")
+        long objects;
+
+        @Label("Arrays")
+        long arrays;
+
+        void commit(long chars, long objects, long arrays)
+        {
+            if (shouldCommit())
+            {
+                this.chars = chars;
+                this.objects = objects;
+                this.arrays = arrays;
+                commit();
+            }
+        }
+    }
+
+    @Name("jjs.stst.GroupLoad")
+    @Label("Group Load")
+    @Category("STST")
+    @Description("A group file loaded and all its templates compiled")
+    public static class GroupLoad extends Event
+    {
+        @Label("Group")
+        String group;
+
+        @Label("Templates")
+        int templates;
+    }
+
+    @Name("jjs.stst.TemplateLoad")
+    @Label("Template Load")
+    @Category("STST")
+    @Description("A template looked up for the first time and loaded if found")
+    public static class TemplateLoad extends Event
+    {
+        @Label("Group")
+        String group;
+
+        @Label("Template")
+        String template;
+
+        @Label("Found")
+        boolean found;
+
+        void commit(STGroup group, String template, CompiledST code)
+        {
+            if (shouldCommit())
+            {
+                this.group = group.getName();
+                this.template = template;
+                this.found = code != null;
+                commit();
+            }
+        }
+    }
+
+    @Name("jjs.stst.TemplateCompile")
+    @Label("Template Compile")
+    @Category("STST")
+    @Description("Template source compiled")
+    public static class TemplateCompile extends Event
+    {
+        @Label("Group")
+        String group;
+
+        @Label("Template")
+        String template;
+
+        @Label("Source Characters")
+        int sourceChars;
+
+        void commit(STGroup group, String template, String source)
+        {
+            if (shouldCommit())
+            {
+                this.group = group.getName();
+                this.template = template;
+                this.sourceChars = source != null ? source.length() : 0;
+                commit();
+            }
+        }
+    }
+
+    @Name("jjs.stst.TemplateRender")
+    @Label("Template Render")
+    @Category("STST")
+    @Description("A template rendered including the templates it calls")
+    public static class TemplateRender extends Event
+    {
+        @Label("Template")
+        String template;
+
+        @Label("Characters")
+        int chars;
+
+        void commit(String template, int chars)
+        {
+            if (shouldCommit())
+            {
+                this.template = template;
+                this.chars = chars;
+                commit();
+            }
+        }
+    }
+
+    @Name("jjs.stst.OutputFlush")
+    @Label("Output Flush")
+    @Category("STST")
+    @Description("Output written and flushed")
+    public static class OutputFlush extends Event
+    {
+        @Label("Destination")
+        String destination;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        void commit(String destination, long bytes)
+        {
+            if (shouldCommit())
+            {
+                this.destination = destination;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Same as new STGroupFile(fileName, encoding, delimiterStartChar, delimiterStopChar) but emits events
+     */
+    public static STGroup newGroupFile(String fileName, String encoding, char delimiterStartChar, char delimiterStopChar)
+    {
+        return newGroupFile(fileName, encoding, delimiterStartChar, delimiterStopChar, null);
+    }
+
+    /**
+     * Same as newGroupFile but also counts the loaded templates
+     * @param usage counts the templates when the group file is loaded or null
+     */
+    public static STGroup newGroupFile(String fileName, String encoding, char delimiterStartChar, char delimiterStopChar,
+                                       final GroupUsage usage)
+    {
+        return new SharedGroups.GroupFile(fileName, encoding, delimiterStartChar, delimiterStopChar)
+        {
+            @Override
+            public void load()
+            {
+                boolean first = !alreadyLoaded;
+                long start = System.nanoTime();
+                GroupLoad e = new GroupLoad();
+                e.begin();
+                super.load();
+                if (e.shouldCommit())
+                {
+                    e.group = getName();
+                    e.templates = templates.size();
+                    e.commit();
+                }
+                if (usage != null && first)
+                {
+                    usage.loaded(getCompiledTemplates(templates, NOT_FOUND_ST), System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            protected CompiledST load(String name)
+            {
+                TemplateLoad e = new TemplateLoad();
+                e.begin();
+                CompiledST code = super.load(name);
+                e.commit(this, name, code);
+                return code;
+            }
+
+            @Override
+            public CompiledST compile(String srcName, String name, List<FormalArgument> args, String template,
+                                      Token templateToken)
+            {
+                TemplateCompile e = new TemplateCompile();
+                e.begin();
+                CompiledST code = super.compile(srcName, name, args, template, templateToken);
+                e.commit(this, name, template);
+                return code;
+            }
+        };
+    }
+
+    /**
+     * Same as new STGroupDir(dirName, encoding, delimiterStartChar, delimiterStopChar) but emits events
+     */
+    public static STGroup newGroupDir(String dirName, String encoding, char delimiterStartChar, char delimiterStopChar)
+    {
+        return newGroupDir(dirName, encoding, delimiterStartChar, delimiterStopChar, null);
+    }
+
+    /**
+     * Same as newGroupDir but also counts the loaded templates
+     * @param usage counts each template as it is loaded or null
+     */
+    public static STGroup newGroupDir(String dirName, String encoding, char delimiterStartChar, char delimiterStopChar,
+                                      final GroupUsage usage)
+    {
+        return new SharedGroups.GroupDir(dirName, encoding, delimiterStartChar, delimiterStopChar)
+        {
+            @Override
+            protected CompiledST load(String name)
+            {
+                long start = System.nanoTime();
+                TemplateLoad e = new TemplateLoad();
+                e.begin();
+                CompiledST code = super.load(name);
+                e.commit(this, name, code);
+                if (usage != null && code != null)
+                {
+                    // a template file can define sub templates and a group file in the dir many templates
+                    usage.loaded(getCompiledTemplates(templates, NOT_FOUND_ST), System.nanoTime() - start);
+                }
+                return code;
+            }
+
+            @Override
+            public CompiledST compile(String srcName, String name, List<FormalArgument> args, String template,
+                                      Token templateToken)
+            {
+                TemplateCompile e = new TemplateCompile();
+                e.begin();
+                CompiledST code = super.compile(srcName, name, args, template, templateToken);
+                e.commit(this, name, template);
+                return code;
+            }
+        };
+    }
+
+    /**
+     * Same as new STRawGroupDir(dirName, encoding, delimiterStartChar, delimiterStopChar) but emits events.
+     * Raw template files are compiled as they are loaded so there are no compile events.
+     */
+    public static STGroup newRawGroupDir(String dirName, String encoding, char delimiterStartChar, char delimiterStopChar)
+    {
+        return newRawGroupDir(dirName, encoding, delimiterStartChar, delimiterStopChar, null);
+    }
+
+    /**
+     * Same as newRawGroupDir but also counts the loaded templates
+     * @param usage counts each template as it is loaded or null
+     */
+    public static STGroup newRawGroupDir(String dirName, String encoding, char delimiterStartChar, char delimiterStopChar,
+                                         final GroupUsage usage)
+    {
+        return new SharedGroups.RawGroupDir(dirName, encoding, delimiterStartChar, delimiterStopChar)
+        {
+            @Override
+            protected CompiledST load(String name)
+            {
+                long start = System.nanoTime();
+                TemplateLoad e = new TemplateLoad();
+                e.begin();
+                CompiledST code = super.load(name);
+                e.commit(this, name, code);
+                if (usage != null && code != null)
+                {
+                    // a template file can define sub templates and a group file in the dir many templates
+                    usage.loaded(getCompiledTemplates(templates, NOT_FOUND_ST), System.nanoTime() - start);
+                }
+                return code;
+            }
+        };
+    }
+
+    private static List<CompiledST> getCompiledTemplates(Map<String, CompiledST> templates, CompiledST notFound)
+    {
+        List<CompiledST> codes = new ArrayList<CompiledST>();
+        synchronized (templates)
+        {
+            for (CompiledST code : templates.values())
+            {
+                if (code != notFound)
+                {
+                    codes.add(code);
+                }
+            }
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.StringWriter;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import org.stringtemplate.v4.AutoIndentWriter;
+import org.stringtemplate.v4.InstanceScope;
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.NoIndentWriter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STWriter;
+import org.stringtemplate.v4.misc.ErrorManager;
+
+/**
+ * The interpreter used by RenderEngine. It differs from the StringTemplate interpreter
+ * when a template is applied to a StreamedIterator such as a JSONArrayStream, filtered or
+ * not, or to a MappedArray with $rows:row()$. Normally the
+ * interpreter creates a template instance for every item before any are written.
+ * For a stream the instances are created one at a time as the result is written so
+ * each item can be garbage collected after it is rendered. The result can only be
+ * iterated. Functions that need its length such as length() and last() fail. For a
+ * MappedArray they work but create the instances for all items.
+ * 
+ * When given a RenderProfile the time and output of each template evaluated is added to it.
+ */
+public class RenderInterpreter extends Interpreter
+{
+    // only their class is used, see toString
+    private static final STWriter AUTO_INDENT_WRITER = new AutoIndentWriter(new StringWriter());
+    private static final STWriter NO_INDENT_WRITER = new NoIndentWriter(new StringWriter());
+
+    private final STGroup renderGroup;
+    private final RenderProfile profile;
+    // the call tree of the render in progress when profiling
+    private RenderProfile.Node current = null;
+
+    /**
+     * @param group the group rendering the template
+     * @param locale locale for renderers
+     * @param listener where to report errors
+     */
+    public RenderInterpreter(STGroup group, Locale locale, STErrorListener listener)
+    {
+        this(group, locale, listener, null);
+    }
+
+    /**
+     * @param group the group rendering the template
+     * @param locale locale for renderers
+     * @param listener where to report errors
+     * @param profile where to add template statistics or null to not profile
+     */
+    public RenderInterpreter(STGroup group, Locale locale, STErrorListener listener, RenderProfile profile)
+    {
+        super(group, locale, new ErrorManager(listener), false);
+        renderGroup = group;
+        this.profile = profile;
+    }
+
+    /**
+     * Render a template
+     * @param st the template instance
+     * @param out where to write
+     * @param locale locale for renderers
+     * @param listener where to report errors
+     * @return number of characters written
+     */
+    public static int write(ST st, STWriter out, Locale locale, STErrorListener listener)
+    {
+        return write(st, out, locale, listener, null);
+    }
+
+    /**
+     * Render a template
+     * @param st the template instance
+     * @param out where to write
+     * @param locale locale for renderers
+     * @param listener where to report errors
+     * @param profile where to add template statistics or null to not profile
+     * @return number of characters written
+     */
+    public static int write(ST st, STWriter out, Locale locale, STErrorListener listener, RenderProfile profile)
+    {
+        Interpreter interp = new RenderInterpreter(st.groupThatCreatedThisInstance, locale, listener, profile);
+        return interp.exec(out, new InstanceScope(null, st));
+    }
+
+    @Override
+    public int exec(STWriter out, InstanceScope scope)
+    {
+        if (profile == null)
+        {
+            return super.exec(out, scope);
+        }
+        boolean top = current == null;
+        RenderProfile.Node parent = top ? profile.newTree() : current;
+        RenderProfile.Node node = parent.child(scope.st.getName());
+        node.childNanos = 0;
+        node.childChars = 0;
+        current = node;
+        long start = System.nanoTime();
+        int n = 0;
+        try
+        {
+            n = super.exec(out, scope);
+            return n;
+        }
+        finally
+        {
+            long elapsed = System.nanoTime() - start;
+            node.calls++;
+            node.inclusiveNanos += elapsed;
+            node.exclusiveNanos += elapsed - node.childNanos;
+            node.inclusiveChars += n;
+            node.exclusiveChars += n - node.childChars;
+            parent.childNanos += elapsed;
+            parent.childChars += n;
+            if (top)
+            {
+                current = null;
+                profile.add(parent);
+            }
+            else
+            {
+                current = parent;
+            }
+        }
+    }
+
+    // ST evaluates a value to a string with a new writer of the same class as out made with a
+    // Writer constructor. EncodingSTWriter writes bytes so give it the char writer it acts like.
+    @Override
+    protected String toString(STWriter out, InstanceScope scope, Object value)
+    {
+        if (out instanceof EncodingSTWriter)
+        {
+            out = ((EncodingSTWriter)out).getNoIndent() ? NO_INDENT_WRITER : AUTO_INDENT_WRITER;
+        }
+        return super.toString(out, scope, value);
+    }
+
+    @Override
+    protected List<ST> rot_map_iterator(InstanceScope scope, Iterator<?> attr, List<ST> prototypes)
+    {
+        if (attr instanceof MappedArray.Items)
+        {
+            // iterating the array again is cheap so the result can have a length
+            return new StreamedMap(scope, ((MappedArray.Items)attr).getArray(), prototypes);
+        }
+        if (attr instanceof StreamedIterator)
+        {
+            return new StreamedMap(scope, attr, prototypes);
+        }
+        return super.rot_map_iterator(scope, attr, prototypes);
+    }
+
+    // The same as rot_map_iterator but creates each template instance as it is iterated.
+    // When made from a list the items are mapped again for each iteration and all of them
+    // only when the length or an item by index is needed.
+    private class StreamedMap extends AbstractList<ST>
+    {
+        private final InstanceScope scope;
+        private final Iterator<?> items;
+        private final List<?> source;
+        private final List<ST> prototypes;
+        private List<ST> mapped = null;
+
+        StreamedMap(InstanceScope scope, Iterator<?> items, List<ST> prototypes)
+        {
+            this.scope = scope;
+            this.items = items;
+            this.source = null;
+            this.prototypes = prototypes;
+        }
+
+        StreamedMap(InstanceScope scope, List<?> source, List<ST> prototypes)
+        {
+            this.scope = scope;
+            this.items = null;
+            this.source = source;
+            this.prototypes = prototypes;
+        }
+
+        @Override
+        public Iterator<ST> iterator()
+        {
+            if (mapped != null)
+            {
+                return mapped.iterator();
+            }
+            return new MappingIterator(source != null ? source.iterator() : items);
+        }
+
+        @Override
+        public ST get(int index)
+        {
+            return getMapped().get(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return getMapped().size();
+        }
+
+        private List<ST> getMapped()
+        {
+            if (source == null)
+            {
+                throw new UnsupportedOperationException("A template applied to a stream can only be iterated");
+            }
+            if (mapped == null)
+            {
+                List<ST> all = new ArrayList<ST>();
+                Iterator<ST> it = new MappingIterator(source.iterator());
+                while (it.hasNext())
+                {
+                    all.add(it.next());
+                }
+                mapped = all;
+            }
+            return mapped;
+        }
+
+        private class MappingIterator implements Iterator<ST>
+        {
+            private final Iterator<?> it;
+            private int i0 = 0;
+            private int ti = 0;
+
+            MappingIterator(Iterator<?> it)
+            {
+                this.it = it;
+            }
+
+            public boolean hasNext()
+            {
+                return it.hasNext();
+            }
+
+            public ST next()
+            {
+                Object item = it.next();
+                if (item == null)
+                {
+                    return null;
+                }
+                ST proto = prototypes.get(ti % prototypes.size());
+                ti++;
+                ST st = renderGroup.createStringTemplateInternally(proto);
+                setFirstArgument(scope, st, item);
+                if (st.impl.isAnonSubtemplate)
+                {
+                    st.add("i0", i0);
+                    st.add("i", i0 + 1);
+                }
+                i0++;
+                return st;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Collects template render times and output sizes. Give one to a RenderEngine and
+ * every template evaluated by its renders is counted including sub templates and
+ * anonymous sub templates. The profile can be shared by many threads. Each render
+ * collects its own call tree which is added to the profile when the render ends.
+ * 
+ * Inclusive time and characters are for the template and the templates it calls.
+ * Exclusive is for the template alone. For a recursive template inclusive counts
+ * only the outermost call. The report is sorted by exclusive time.
+ */
+public class RenderProfile
+{
+    private final Node root = new Node(null, null);
+
+    /**
+     * Statistics for one template
+     */
+    public static class TemplateStats
+    {
+        private final String name;
+        private long calls = 0;
+        private long inclusiveNanos = 0;
+        private long exclusiveNanos = 0;
+        private long inclusiveChars = 0;
+        private long exclusiveChars = 0;
+
+        TemplateStats(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getCalls()
+        {
+            return calls;
+        }
+
+        public long getInclusiveNanos()
+        {
+            return inclusiveNanos;
+        }
+
+        public long getExclusiveNanos()
+        {
+            return exclusiveNanos;
+        }
+
+        public long getInclusiveChars()
+        {
+            return inclusiveChars;
+        }
+
+        public long getExclusiveChars()
+        {
+            return exclusiveChars;
+        }
+    }
+
+    /**
+     * @return statistics for each template sorted by exclusive time, highest first
+     */
+    public synchronized List<TemplateStats> getTemplateStats()
+    {
+        Map<String, TemplateStats> stats = new LinkedHashMap<String, TemplateStats>();
+        collect(root, stats, new HashMap<String, Integer>());
+        List<TemplateStats> list = new ArrayList<TemplateStats>(stats.values());
+        Collections.sort(list, new Comparator<TemplateStats>()
+        {
+            @Override
+            public int compare(TemplateStats a, TemplateStats b)
+            {
+                return Long.compare(b.exclusiveNanos, a.exclusiveNanos);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Clear all the statistics
+     */
+    public synchronized void clear()
+    {
+        root.children = null;
+    }
+
+    /**
+     * Write a report with one line per template
+     * @param out where to write
+     */
+    public void writeText(PrintWriter out)
+    {
+        out.println(String.format("%-30s %10s %12s %12s %14s %14s",
+            "Template", "Calls", "Incl ms", "Excl ms", "Incl chars", "Excl chars"));
+        for (TemplateStats s : getTemplateStats())
+        {
+            out.println(String.format("%-30s %10d %12.3f %12.3f %14d %14d", s.name, s.calls,
+                s.inclusiveNanos / 1e6, s.exclusiveNanos / 1e6, s.inclusiveChars, s.exclusiveChars));
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the statistics as a JSON object with a templates array
+     * @param out where to write
+     */
+    public void writeJSON(PrintWriter out)
+    {
+        JSONArray templates = new JSONArray();
+        for (TemplateStats s : getTemplateStats())
+        {
+            JSONObject t = new JSONObject();
+            t.put("name", s.name);
+            t.put("calls", s.calls);
+            t.put("inclusiveNanos", s.inclusiveNanos);
+            t.put("exclusiveNanos", s.exclusiveNanos);
+            t.put("inclusiveChars", s.inclusiveChars);
+            t.put("exclusiveChars", s.exclusiveChars);
+            // JSONObject is a Map so without the cast put(Map) would wrap it again
+            templates.put((Object)t);
+        }
+        JSONObject report = new JSONObject();
+        report.put("templates", templates);
+        out.println(report.toString(2));
+        out.flush();
+    }
+
+    /**
+     * Write the exclusive time in nanoseconds of each template call stack in the collapsed
+     * stack format used by flame graph tools. Each line is the template names from the outermost
+     * separated by semicolons then a space and the time.
+     * @param out where to write
+     */
+    public synchronized void writeCollapsed(PrintWriter out)
+    {
+        writeCollapsed(out, root, "");
+        out.flush();
+    }
+
+    /**
+     * @return a new empty call tree for one render
+     */
+    Node newTree()
+    {
+        return new Node(null, null);
+    }
+
+    /**
+     * Add the call tree of a render to the profile
+     * @param tree from newTree
+     */
+    synchronized void add(Node tree)
+    {
+        root.add(tree);
+    }
+
+    private void collect(Node node, Map<String, TemplateStats> stats, Map<String, Integer> active)
+    {
+        if (node.children == null)
+        {
+            return;
+        }
+        for (Node child : node.children.values())
+        {
+            TemplateStats s = stats.get(child.name);
+            if (s == null)
+            {
+                s = new TemplateStats(child.name);
+                stats.put(child.name, s);
+            }
+            s.calls += child.calls;
+            s.exclusiveNanos += child.exclusiveNanos;
+            s.exclusiveChars += child.exclusiveChars;
+            Integer depth = active.get(child.name);
+            if (depth == null)
+            {
+                s.inclusiveNanos += child.inclusiveNanos;
+                s.inclusiveChars += child.inclusiveChars;
+                depth = 0;
+            }
+            active.put(child.name, depth + 1);
+            collect(child, stats, active);
+            if (depth == 0)
+            {
+                active.remove(child.name);
+            }
+            else
+            {
+                active.put(child.name, depth);
+            }
+        }
+    }
+
+    private void writeCollapsed(PrintWriter out, Node node, String path)
+    {
+        if (node.children == null)
+        {
+            return;
+        }
+        for (Node child : node.children.values())
+        {
+            String childPath = path.length() == 0 ? child.name : path + ";" + child.name;
+            if (child.exclusiveNanos > 0)
+            {
+                out.print(childPath);
+                out.print(' ');
+                out.println(child.exclusiveNanos);
+            }
+            writeCollapsed(out, child, childPath);
+        }
+    }
+
+    /**
+     * A template in a call tree. Nodes of a tree for one render are only used by
+     * the thread doing the render.
+     */
+    static class Node
+    {
+        final String name;
+        final Node parent;
+        Map<String, Node> children = null;
+        long calls = 0;
+        long inclusiveNanos = 0;
+        long exclusiveNanos = 0;
+        long inclusiveChars = 0;
+        long exclusiveChars = 0;
+        // time and characters of the calls made by the call in progress
+        long childNanos = 0;
+        long childChars = 0;
+
+        Node(String name, Node parent)
+        {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        Node child(String name)
+        {
+            if (children == null)
+            {
+                children = new LinkedHashMap<String, Node>();
+            }
+            Node n = children.get(name);
+            if (n == null)
+            {
+                n = new Node(name, this);
+                children.put(name, n);
+            }
+            return n;
+        }
+
+        void add(Node other)
+        {
+            calls += other.calls;
+            inclusiveNanos += other.inclusiveNanos;
+            exclusiveNanos += other.exclusiveNanos;
+            inclusiveChars += other.inclusiveChars;
+            exclusiveChars += other.exclusiveChars;
+            if (other.children != null)
+            {
+                for (Node c : other.children.values())
+                {
+                    child(c.name).add(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,619 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupDir;
+import org.stringtemplate.v4.misc.ErrorType;
+import org.stringtemplate.v4.misc.STMessage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONShape;
+import org.json.JSONTokener;
+
+/**
+ * A simple HTTP server that renders templates. POST a JSON object to
+ * /render/<template-name> and the response is the rendered template. Template names can
+ * only have letters, digits, _, - and / and must name a template in the template directory.
+ * 
+ * All requests share one RenderEngine so templates are compiled once. POST to /reload to
+ * compile the current version of the templates and switch to it when there are no errors.
+ * Requests in progress finish with the templates they started with. Each request
+ * runs on its own virtual thread when the JVM supports them (Java 21 and later)
+ * otherwise on a pooled thread. The output is streamed to the client using chunked
+ * transfer encoding as it is rendered. Repeated requests can be answered from a RenderCache.
+ * All templates are loaded before the server starts listening. An exception thrown while
+ * rendering, such as by a renderer, fails the render. The response headers are only sent
+ * with the first output so a render that fails before then gets a 500 response with the
+ * error message.
+ * 
+ * When given a directory of data files a request can add data=<file> to the URL query to
+ * render with the JSON data in that file. The properties of the request body, if any, are
+ * added to the file data. Parsed files are kept in a DataCache.
+ * 
+ * When given an EngineSource a request can add templates=<dir> to the URL query to render
+ * with the templates of another directory, for example one for each tenant.
+ */
+public class RenderServer
+{
+    /**
+     * Gets the engine for the template directory named by a request. Called from the
+     * request threads.
+     */
+    public interface EngineSource
+    {
+        /**
+         * @param dirName the directory from the request
+         * @return the engine or null if the directory doesn't exist or can't be used
+         */
+        RenderEngine getEngine(String dirName);
+    }
+
+    public static final String RENDER_PATH = "/render/";
+    public static final String RELOAD_PATH = "/reload";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BACKLOG = 1024;
+    private static final Pattern TEMPLATE_NAME = Pattern.compile("[\\w/-]+");
+
+    private final EngineHandle handle;
+    private final RenderCache cache;
+    // shared by all requests so that the same kind of data gets the same shapes. Replaced
+    // by a new tree when it is full so that later requests still get shapes.
+    private volatile JSONShape shapes = JSONShape.newRoot();
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+    private File dataDir = null;
+    private DataCache dataCache = null;
+    private EngineSource engines = null;
+
+    /**
+     * @param engine the engine used for all requests
+     */
+    public RenderServer(RenderEngine engine)
+    {
+        this(engine, null);
+    }
+
+    /**
+     * @param engine the engine used for all requests
+     * @param cache cache for rendered output or null for none
+     */
+    public RenderServer(RenderEngine engine, RenderCache cache)
+    {
+        this(new EngineHandle(engine, null), cache);
+    }
+
+    /**
+     * @param handle holds the engine used for requests. It can be reloaded if it has a group factory.
+     * @param cache cache for rendered output or null for none
+     */
+    public RenderServer(EngineHandle handle, RenderCache cache)
+    {
+        this.handle = handle;
+        this.cache = cache;
+    }
+
+    /**
+     * Let requests use the JSON data files in a directory. Call before start.
+     * @param dir the directory. Files outside of it can't be used.
+     * @param cache cache for the parsed files
+     * @throws IOException if the canonical path of the directory can't be found
+     */
+    public void setDataFiles(File dir, DataCache cache) throws IOException
+    {
+        this.dataDir = dir.getCanonicalFile();
+        this.dataCache = cache;
+    }
+
+    /**
+     * Let requests use the templates of other directories. Call before start.
+     * @param source gets the engine for a directory
+     */
+    public void setEngineSource(EngineSource source)
+    {
+        this.engines = source;
+    }
+
+    /**
+     * Start listening for requests
+     * @param port port to listen on
+     * @throws IOException if the server can't be started
+     */
+    public void start(int port) throws IOException
+    {
+        // requests run at the same time so load everything before the first one
+        RenderEngine.loadTemplates(handle.get().getGroup());
+        server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        server.createContext(RENDER_PATH, new RenderHandler());
+        server.createContext(RELOAD_PATH, new ReloadHandler());
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stop the server waiting up to the given time for requests in progress to finish
+     * @param delay maximum seconds to wait
+     */
+    public void stop(int delay)
+    {
+        if (server != null)
+        {
+            server.stop(delay);
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    // Use a virtual thread per request if the JVM has them
+    static ExecutorService newRequestExecutor()
+    {
+        try
+        {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        }
+        catch (Exception ex)
+        {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private class RenderHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try
+            {
+                if (!exchange.getRequestMethod().equals("POST"))
+                {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    sendText(exchange, 405, "Method not allowed");
+                    return;
+                }
+                // the whole request uses this engine even if a reload publishes a new one
+                RenderEngine engine = handle.get();
+                String dirName = getQueryParameter(exchange, "templates");
+                if (dirName != null)
+                {
+                    engine = engines != null ? engines.getEngine(dirName) : null;
+                    if (engine == null)
+                    {
+                        sendText(exchange, 404, "No such template directory " + dirName);
+                        return;
+                    }
+                }
+                String templateName = exchange.getRequestURI().getPath().substring(RENDER_PATH.length());
+                if (!isTemplateName(engine.getGroup(), templateName) || !engine.getGroup().isDefined(templateName))
+                {
+                    sendText(exchange, 404, "No such template " + templateName);
+                    return;
+                }
+
+                String dataFileName = getQueryParameter(exchange, "data");
+                File dataFile = null;
+                if (dataFileName != null)
+                {
+                    dataFile = getDataFile(dataFileName);
+                    if (dataFile == null)
+                    {
+                        sendText(exchange, 404, "No such data file " + dataFileName);
+                        return;
+                    }
+                }
+
+                JSONObject data;
+                try
+                {
+                    String body = readBody(exchange);
+                    if (dataFile != null)
+                    {
+                        data = readDataFile(dataFile);
+                        if (body.trim().length() > 0)
+                        {
+                            JSONObject properties = parse(body);
+                            for (String name : properties.keySet())
+                            {
+                                data.put(name, properties.get(name));
+                            }
+                        }
+                    }
+                    else
+                    {
+                        data = parse(body);
+                    }
+                }
+                catch (JSONException je)
+                {
+                    sendText(exchange, 400, "Error in JSON data: " + je.getLocalizedMessage());
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                STErrorListener listener = new RequestErrorListener(templateName);
+                if (cache != null)
+                {
+                    Writer out = new BufferedWriter(new OutputStreamWriter(new ResponseStream(exchange), UTF8), FileUtil.BLKSIZE);
+                    cache.render(engine, templateName, data, out, listener);
+                    out.close();
+                }
+                else
+                {
+                    OutputStream out = new ResponseStream(exchange);
+                    engine.render(templateName, data, out, UTF8, listener);
+                    out.close();
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                sendException(exchange, ex);
+            }
+            finally
+            {
+                exchange.close();
+            }
+        }
+
+        /*
+         * The name comes from the decoded URL path so it must not be able to name a file
+         * outside the template directory.
+         */
+        private boolean isTemplateName(STGroup group, String name) throws IOException
+        {
+            if (!TEMPLATE_NAME.matcher(name).matches() || name.startsWith("/") || name.contains("..")
+                || name.contains("\\"))
+            {
+                return false;
+            }
+            URL root = group instanceof STGroupDir ? ((STGroupDir)group).root : null;
+            if (root != null && root.getProtocol().equals("file"))
+            {
+                try
+                {
+                    File dir = new File(root.toURI()).getCanonicalFile();
+                    File f = new File(dir, name).getCanonicalFile();
+                    return f.getPath().startsWith(dir.getPath() + File.separator);
+                }
+                catch (URISyntaxException e)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String readBody(HttpExchange exchange) throws IOException
+        {
+            InputStream is = exchange.getRequestBody();
+            return FileUtil.getStreamAsString(is, UTF8.name());
+        }
+
+        private JSONObject parse(String text)
+        {
+            RenderEvents.JSONParse e = new RenderEvents.JSONParse();
+            e.begin();
+            JSONTokener x = new JSONTokener(text);
+            x.setShapes(getShapes());
+            JSONObject data = new JSONObject(x);
+            e.commit(text.length(), x.getObjectCount(), x.getArrayCount());
+            return data;
+        }
+
+        private JSONShape getShapes()
+        {
+            JSONShape root = shapes;
+            if (root.getShapeCount() >= JSONShape.MAX_SHAPES)
+            {
+                // objects already parsed keep their shapes from the old tree
+                root = JSONShape.newRoot();
+                shapes = root;
+            }
+            return root;
+        }
+
+        // null if data files are not allowed or the file is not in the data directory
+        private File getDataFile(String name) throws IOException
+        {
+            if (dataDir == null)
+            {
+                return null;
+            }
+            File f = new File(dataDir, name).getCanonicalFile();
+            if (!f.getPath().startsWith(dataDir.getPath() + File.separator) || !f.isFile())
+            {
+                return null;
+            }
+            return f;
+        }
+
+        // the data is shared with the cache so the request gets its own top level object
+        private JSONObject readDataFile(File f) throws IOException
+        {
+            DataCache.Key key = DataCache.keyOf(f, UTF8.name(), null);
+            JSONObject data = dataCache.get(key);
+            if (data == null)
+            {
+                RenderEvents.DataRead e = new RenderEvents.DataRead();
+                e.begin();
+                String contents = FileUtil.getFileContentAsString(f, UTF8.name());
+                e.commit(f.getPath(), STStandaloneTool.FORMAT_JSON, f.length(), contents.length());
+                data = parse(contents);
+                dataCache.put(key, data);
+                data = DataCache.copyOf(data);
+            }
+            return data;
+        }
+    }
+
+    private class ReloadHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try
+            {
+                if (!exchange.getRequestMethod().equals("POST"))
+                {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    sendText(exchange, 405, "Method not allowed");
+                    return;
+                }
+                if (!handle.canReload())
+                {
+                    sendText(exchange, 501, "Reload not supported");
+                    return;
+                }
+                // renders continue with the current engine while the new templates compile
+                STGroup oldGroup = handle.get().getGroup();
+                List<String> errors = handle.reload();
+                if (!errors.isEmpty())
+                {
+                    StringBuilder sb = new StringBuilder("Templates not reloaded because of errors\n");
+                    for (String error : errors)
+                    {
+                        sb.append(error).append('\n');
+                    }
+                    sendText(exchange, 500, sb.toString());
+                    return;
+                }
+                if (cache != null)
+                {
+                    // entries for the old group can never be used again
+                    cache.clear(oldGroup);
+                }
+                sendText(exchange, 200, "Templates reloaded\n");
+            }
+            catch (RuntimeException ex)
+            {
+                sendException(exchange, ex);
+            }
+            finally
+            {
+                exchange.close();
+            }
+        }
+    }
+
+    // the decoded value of a URL query parameter or null if it is not given
+    static String getQueryParameter(HttpExchange exchange, String name) throws IOException
+    {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+        {
+            return null;
+        }
+        for (String param : query.split("&"))
+        {
+            int eq = param.indexOf('=');
+            if (eq > 0 && URLDecoder.decode(param.substring(0, eq), UTF8.name()).equals(name))
+            {
+                return URLDecoder.decode(param.substring(eq + 1), UTF8.name());
+            }
+        }
+        return null;
+    }
+
+    // ST can throw for some broken templates. Once output has started the status
+    // can't be changed so the response is just ended.
+    private static void sendException(HttpExchange exchange, RuntimeException ex) throws IOException
+    {
+        String message = "Error rendering " + exchange.getRequestURI().getPath() + ": " + ex + "\n";
+        System.err.print(message);
+        if (exchange.getResponseCode() == -1)
+        {
+            sendText(exchange, 500, message);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException
+    {
+        byte[] bytes = message.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    /*
+     * Sends the 200 response headers when the first byte is written so that an exception
+     * thrown before any output can still be answered with a 500.
+     */
+    private static class ResponseStream extends OutputStream
+    {
+        private final HttpExchange exchange;
+        private OutputStream out;
+
+        ResponseStream(HttpExchange exchange)
+        {
+            this.exchange = exchange;
+        }
+
+        private OutputStream getStream() throws IOException
+        {
+            if (out == null)
+            {
+                exchange.sendResponseHeaders(200, 0); // chunked
+                out = exchange.getResponseBody();
+            }
+            return out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            getStream().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (len > 0)
+            {
+                getStream().write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (out != null)
+            {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            getStream().close();
+        }
+    }
+
+    // Errors can't be returned to the client once output has started so log them
+    private static class RequestErrorListener implements STErrorListener
+    {
+        private final String templateName;
+        private IllegalStateException failure = null;
+
+        RequestErrorListener(String templateName)
+        {
+            this.templateName = templateName;
+        }
+
+        @Override
+        public void compileTimeError(STMessage msg)
+        {
+            report(msg);
+        }
+
+        @Override
+        public void runTimeError(STMessage msg)
+        {
+            if (msg.error == ErrorType.INTERNAL_ERROR)
+            {
+                fail(msg);
+            }
+            report(msg);
+        }
+
+        @Override
+        public void IOError(STMessage msg)
+        {
+            report(msg);
+        }
+
+        @Override
+        public void internalError(STMessage msg)
+        {
+            fail(msg);
+        }
+
+        /*
+         * ST reports an exception thrown while rendering, such as by a renderer, and goes on
+         * without the template that threw it. Throw an exception to fail the request. Each
+         * template it passes through reports it again so only the first report is logged.
+         */
+        private void fail(STMessage msg)
+        {
+            if (failure == null)
+            {
+                report(msg);
+                // the message has the stack trace of the exception
+                String message = format(msg);
+                int eol = message.indexOf('\n');
+                failure = new IllegalStateException(eol >= 0 ? message.substring(0, eol).trim() : message, msg.cause);
+            }
+            throw failure;
+        }
+
+        private void report(STMessage msg)
+        {
+            System.err.println(templateName + ": " + format(msg));
+        }
+
+        private static String format(STMessage msg)
+        {
+            return String.format(msg.error.message, msg.arg, msg.arg2, msg.arg3);
+        }
+    }
+}
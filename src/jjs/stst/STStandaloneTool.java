@@ -27,36 +27,45 @@
 */
 package jjs.stst;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.stringtemplate.v4.AutoIndentWriter;
-import org.stringtemplate.v4.Interpreter;
-import org.stringtemplate.v4.NoIndentWriter;
-import org.stringtemplate.v4.ModelAdaptor;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STErrorListener;
 import org.stringtemplate.v4.STGroup;
-import org.stringtemplate.v4.STGroupDir;
-import org.stringtemplate.v4.STGroupFile;
-import org.stringtemplate.v4.STRawGroupDir;
 import org.stringtemplate.v4.STWriter;
 import org.stringtemplate.v4.misc.STMessage;
 import org.stringtemplate.v4.misc.ErrorType;
-import org.stringtemplate.v4.misc.STNoSuchPropertyException;
 import org.stringtemplate.v4.misc.STNoSuchAttributeException;
 
 import st4hidden.org.antlr.runtime.Token;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONArray;
+import org.json.JSONShape;
+import org.json.JSONTokener;
 
 /**
  * StringTemplate is both a language for describing text generation and a tool (template
@@ -93,6 +102,20 @@ import org.json.JSONArray;
  * template and optional group and produces an output file that results from processing the
  * named template with the data from the JSON file.
  * 
+ * Data can also be given in CSV format. The first row names the columns. The template
+ * gets the rows in attribute rows and the column names in attribute columns. Or with
+ * the -p option the template is processed once for each row with the columns as attributes.
+ * Rows are read as they are processed so the size of the CSV file is not limited by memory.
+ * 
+ * Data can also be given in XML format. The attributes and child elements of the document
+ * element are the template attributes. With the -p option the template is processed once
+ * for each child element of the document element and only one child is in memory at a time.
+ * 
+ * Data can also be given as newline delimited JSON (NDJSON) with one object per line. The
+ * template gets the objects in attribute rows or with the -p option is processed once for each.
+ * With the -j option records are read, rendered and written by separate threads. It
+ * can't be used with the -w option.
+ * 
  * The command line syntax is
  * stst [<options>] [<group-name>.]<template-name> [<json-file>]
  *    options:
@@ -107,7 +130,25 @@ import org.json.JSONArray;
  *    -s <start-stop>     Start and stop characters that delimit template expressions.
  *                        Must be exactly two characters Example <>. Default is dollar signs.
  *    -e <encoding>       encoding for templates, json-file, and output
+ *    -D <format>         data format json, csv, xml or ndjson. Default from data file extension
+ *    -p                  process template once for each data record (csv, xml or ndjson only)
+ *    -j <threads>        render records with the given number of threads (with -p)
+ *    -M                  keep json data in a memory mapped file for data larger than memory
+ *    -a <name>           read the named top level json array as it is processed
+ *    -R <path>           use only the json value at the given JSON pointer path
+ *    -F <filter>         use only the records selected by the filter expression
+ *    -I [<name>=]<array>.<key>  index a top level json array by a key field
+ *    -S [<array>:]<fields>      sort the records or a top level array
+ *    -G [<array>:]<field>       group the records or a top level array
+ *    -u                  only parse the json properties the templates use
  *    -o <file>           output file if not specified use stdout
+ *    -b <kbytes>         with -p and -o split the output into files of at most this size
+ *    -c <count>          with -p and -o split the output into files of at most this many records
+ *    -l <port>           listen for HTTP render requests on the given port. POST /reload reloads the templates
+ *    -C <kbytes>         cache rendered output up to the given size
+ *    -k <kbytes>         cache parsed json data files up to the given size. With -l requests can use data=<file>
+ *    -g <kbytes>         keep compiled groups up to the given size. With -l requests can use templates=<dir>
+ *    -P <file>           profile templates and write a report to the file (- for stderr)
  *    -t <dir>            if not specified the current working directory is used
  * 
  * See usage for most up to date syntax
@@ -115,6 +156,12 @@ import org.json.JSONArray;
  * The STStandaloneTool class can be used for both simple template files (.st extension) and 
  * group files (.stg extension). 
  * 
+ * Rendering is done by RenderEngine. Programs that embed template processing should use
+ * RenderEngine directly. Unlike this class it is immutable and can be shared by many threads.
+ * 
+ * With the -l option the tool runs a RenderServer. The template name comes from each request
+ * and the data from the request body so only the optional group name is given on the command line.
+ * 
  * TODO
  *  - update/test samples, examples, tests
  *  - automate build version and build number
@@ -126,9 +173,8 @@ import org.json.JSONArray;
  * future: 
  *  support loadable renderers
  *  interactive mode
- *  support more data formats: XML, CSV, YAML
+ *  support more data formats: YAML
  *  print diagnostic info
- *  servlet
  * 
  * @author John Snyders
  *
@@ -138,11 +184,11 @@ public class STStandaloneTool
     private static final String VERSION = "0.4.1"; // keep in sync with version in build.xml
     private static final String RESOURCE_BUNDLE_NAME = "jjs.stst.ApplicationMessages";
 
-    private static ResourceBundle resources = null;
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_XML = "xml";
+    public static final String FORMAT_NDJSON = "ndjson";
 
-    {
-        resources = ResourceBundle.getBundle(RESOURCE_BUNDLE_NAME);
-    }
 
     // group to hold templates when using simple templates or 
     // read group file into when using a group file
@@ -160,6 +206,22 @@ public class STStandaloneTool
     private char stopChar = '$';
     private String rendererName = "";
     private int lineWidth = AutoIndentWriter.NO_WRAP;
+    private String dataFormat = FORMAT_JSON;
+    private boolean recordMode = false;
+    private boolean mappedMode = false;
+    private String streamArrayName = null;
+    private int renderThreads = 0;
+    private long maxShardSize = 0;
+    private long maxShardRecords = 0;
+    private Set<String> projection = null;
+    private JSONPointer dataRoot = null;
+    private RecordFilter filter = null;
+    private String sortArrayName = null;
+    private String sortKeys = null;
+    private String groupField = null;
+    private int sortRunSize = RecordSorter.DEFAULT_RUN_SIZE;
+    // name, array name and key field of each index
+    private final List<String[]> indexes = new ArrayList<String[]>();
 
     // where to write template output
     private File outFile = null;
@@ -167,6 +229,25 @@ public class STStandaloneTool
     // the JSON data used as input to the template
     private JSONObject data = null;
 
+    // in record mode the records to process the template with one at a time
+    private Iterator<?> records = null;
+
+    // a streamed top level array to close after the template is processed
+    private Closeable dataStream = null;
+
+    // optional cache of rendered output
+    private RenderCache renderCache = null;
+    private DataCache dataCache = null;
+    private GroupRegistry groupRegistry = null;
+    // how the group was made so the server can make a new one on reload
+    private String groupFilePath = null;
+    private String groupDirName = null;
+    private String groupEncoding = null;
+
+    // collects template statistics when profiling
+    private RenderProfile profile = null;
+    private String profileFile = null;
+
     // flag to indicate there were compile time errors in the loaded template
     private boolean compileError = false;
 
@@ -338,6 +419,315 @@ public class STStandaloneTool
         this.outFile = outFile;
     }
 
+    /**
+     * Controls the format of data read from a file or stream
+     * @return data format json, csv or xml
+     */
+    public String getDataFormat()
+    {
+        return dataFormat;
+    }
+
+    /**
+     * Controls the format of data read from a file or stream
+     * @param dataFormat one of FORMAT_JSON, FORMAT_CSV, FORMAT_XML or FORMAT_NDJSON
+     */
+    public void setDataFormat(String dataFormat)
+    {
+        if (!isDataFormat(dataFormat))
+        {
+            throw new IllegalArgumentException("Unknown data format " + dataFormat);
+        }
+        this.dataFormat = dataFormat;
+    }
+
+    /**
+     * Controls record mode. In record mode the template is processed once for each
+     * record of the data. The records are read as needed. Records are the rows of
+     * CSV data, the lines of NDJSON data or the child elements of the document element of XML data.
+     * @return true if in record mode false otherwise
+     */
+    public boolean isRecordMode()
+    {
+        return recordMode;
+    }
+
+    /**
+     * Controls record mode. Must be set before the data.
+     * @param recordMode true to process the template once for each data record
+     */
+    public void setRecordMode(boolean recordMode)
+    {
+        this.recordMode = recordMode;
+    }
+
+    public boolean isMappedMode()
+    {
+        return mappedMode;
+    }
+
+    /**
+     * Controls mapped mode. In mapped mode JSON data is parsed into a temporary memory
+     * mapped file rather than onto the heap. Use for data that is too large for the heap.
+     * Must be set before the data.
+     * @param mappedMode true to use mapped mode
+     */
+    public void setMappedMode(boolean mappedMode)
+    {
+        this.mappedMode = mappedMode;
+    }
+
+    public int getRenderThreads()
+    {
+        return renderThreads;
+    }
+
+    /**
+     * Set the number of threads that render records in record mode. With one or more
+     * threads reading, rendering and writing records overlap. Records are rendered in
+     * batches that each start at the beginning of a line so render threads can't be used
+     * with line wrapping (setLineWidth).
+     * @param threads number of render threads or 0 to read, render and write in turn
+     */
+    public void setRenderThreads(int threads)
+    {
+        this.renderThreads = threads;
+    }
+
+    public Set<String> getProjection()
+    {
+        return projection;
+    }
+
+    /**
+     * Only parse the JSON properties that the template and the templates it calls can use.
+     * The values of other properties are skipped. Must be set after the group and before
+     * the data. Templates that write a whole object or list its keys see only the used
+     * properties.
+     * @param templateName the template that will be processed
+     * @return false if the used properties can't be known. Then all properties are parsed.
+     */
+    public boolean setProjection(String templateName)
+    {
+        try
+        {
+            projection = PropertyProjection.getReferencedNames(group, templateName);
+        }
+        catch (NullPointerException ex)
+        {
+            // same as getTemplate. the template has errors that were already reported
+            String msg = MessageFormat.format(getMessage("ErrorGettingTemplate"), templateName);
+            logError(msg);
+            throw new ExitException();
+        }
+        if (projection != null && filter != null)
+        {
+            projection.addAll(filter.getFieldNames());
+        }
+        if (projection != null)
+        {
+            if (isSorted())
+            {
+                projection.addAll(getSorter().getFieldNames());
+                if (sortArrayName != null)
+                {
+                    projection.add(sortArrayName);
+                }
+            }
+            for (String[] index : indexes)
+            {
+                projection.add(index[1]);
+                projection.add(index[2]);
+            }
+        }
+        if (projection == null)
+        {
+            // a missing template is reported when it is processed
+            if (group.isDefined(templateName))
+            {
+                logError(getMessage("ProjectionNotPossible"));
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public long getMaxShardSize()
+    {
+        return maxShardSize;
+    }
+
+    /**
+     * Split record mode output into files of at most the given size. The output file
+     * name is a pattern for the file names. See ShardedWriter.
+     * @param bytes maximum file size in bytes or 0 for no limit
+     */
+    public void setMaxShardSize(long bytes)
+    {
+        this.maxShardSize = bytes;
+    }
+
+    public long getMaxShardRecords()
+    {
+        return maxShardRecords;
+    }
+
+    /**
+     * Split record mode output into files of at most the given number of records.
+     * The output file name is a pattern for the file names. See ShardedWriter.
+     * @param count maximum records in a file or 0 for no limit
+     */
+    public void setMaxShardRecords(long count)
+    {
+        this.maxShardRecords = count;
+    }
+
+    public RecordFilter getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * Only use the records selected by a filter expression. The filter applies to the records
+     * in record mode, the rows of CSV and NDJSON data, the items of a streamed array and a
+     * data root that is an array. Each record is tested after it is read and parsed and the
+     * records that don't match are dropped.
+     * Must be set before the data.
+     * @param expression the filter expression or null for all records. See RecordFilter.
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public void setFilter(String expression)
+    {
+        this.filter = expression != null ? new RecordFilter(expression) : null;
+    }
+
+    /**
+     * Sort the records in record mode or the items of a top level array before the template
+     * is processed. A top level array is sorted when the data is set. The array can be larger
+     * than memory if it is streamed. Must be set before the data.
+     * @param arrayName the name of the top level array or null to sort the records
+     * @param keys the fields to sort by or null to not sort. See RecordSorter.
+     * @throws IllegalArgumentException if keys is not valid
+     */
+    public void setSort(String arrayName, String keys)
+    {
+        if (keys != null)
+        {
+            new RecordSorter(keys);
+        }
+        this.sortArrayName = arrayName;
+        this.sortKeys = keys;
+    }
+
+    /**
+     * Group the records in record mode or the items of a top level array by a field. Each
+     * group has properties key and items. The groups are in order of key and within a group
+     * the items are in the order given by setSort. Must be set before the data.
+     * @param arrayName the name of the top level array or null to group the records
+     * @param field the field to group by or null to not group
+     * @throws IllegalArgumentException if field is not valid
+     */
+    public void setGroupBy(String arrayName, String field)
+    {
+        if (field != null)
+        {
+            new RecordSorter(field);
+        }
+        this.sortArrayName = arrayName;
+        this.groupField = field;
+    }
+
+    public int getSortRunSize()
+    {
+        return sortRunSize;
+    }
+
+    /**
+     * @param runSize the most records to sort in memory. More are sorted using temporary files.
+     */
+    public void setSortRunSize(int runSize)
+    {
+        this.sortRunSize = runSize;
+    }
+
+    private boolean isSorted()
+    {
+        return sortKeys != null || groupField != null;
+    }
+
+    // sort by the group field first so each group is together
+    private RecordSorter getSorter()
+    {
+        String keys = groupField != null ? (sortKeys != null ? groupField + "," + sortKeys : groupField) : sortKeys;
+        RecordSorter sorter = new RecordSorter(keys);
+        sorter.setRunSize(sortRunSize);
+        return sorter;
+    }
+
+    // the result is Closeable if it reads from temporary files
+    private Iterator<?> sortRecords(Iterator<?> items) throws IOException
+    {
+        Iterator<?> sorted = getSorter().sort(group, items);
+        if (groupField != null)
+        {
+            boolean inMemory = !(sorted instanceof Closeable);
+            sorted = RecordSorter.group(group, sorted, groupField);
+            if (inMemory)
+            {
+                sorted = toList(sorted).iterator();
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Index the records of a top level array by a key field when the data is set. Templates
+     * look up records by key with $name.(key)$ and can still iterate all the records.
+     * Must be set before the data.
+     * @param name the attribute name of the index. Use the array name to replace the array.
+     * @param arrayName the name of the top level array
+     * @param keyField the property of each record to index by
+     */
+    public void addIndex(String name, String arrayName, String keyField)
+    {
+        indexes.add(new String[] {name, arrayName, keyField});
+    }
+
+    public JSONPointer getDataRoot()
+    {
+        return dataRoot;
+    }
+
+    /**
+     * Use only part of the JSON data. Everything outside of the selected value is skipped
+     * as the data is read. When the value is an object its properties are the template
+     * attributes otherwise the value is the attribute named by the last token of the path.
+     * In record mode the items of a selected array are the records. Must be set before
+     * the data.
+     * @param path JSON pointer to the value or null to use all the data
+     */
+    public void setDataRoot(String path)
+    {
+        this.dataRoot = path != null ? new JSONPointer(path) : null;
+    }
+
+    public String getStreamArrayName()
+    {
+        return streamArrayName;
+    }
+
+    /**
+     * Set the name of a top level array in JSON data to read as the template uses it
+     * rather than all at once. Items are read and rendered one at a time so any number
+     * can be processed. Properties after the array are not available. In record mode
+     * the template is processed once for each item. Must be set before the data.
+     * @param name name of top level array or null to read all the data at once
+     */
+    public void setStreamArrayName(String name)
+    {
+        this.streamArrayName = name;
+    }
+
     /**
      * The data the template will use
      * @return JSON internal representation of template input data
@@ -354,6 +744,69 @@ public class STStandaloneTool
     public void setData(JSONObject data)
     {
         this.data = data;
+        if (data == null)
+        {
+            return;
+        }
+        if (isSorted() && sortArrayName != null)
+        {
+            Object items = data.opt(sortArrayName);
+            Iterator<?> it = null;
+            if (items instanceof JSONArray)
+            {
+                it = Arrays.asList(JSONAdaptor.convertJSONArrayToArray((JSONArray)items)).iterator();
+            }
+            else if (items instanceof Collection)
+            {
+                it = ((Collection<?>)items).iterator();
+            }
+            else if (items instanceof Iterator)
+            {
+                it = (Iterator<?>)items;
+            }
+            if (it != null)
+            {
+                try
+                {
+                    Iterator<?> sorted = sortRecords(it);
+                    if (sorted instanceof Closeable)
+                    {
+                        // read from the sorted runs as the template uses it
+                        data.put(sortArrayName, sorted);
+                        dataStream = (Closeable)sorted;
+                    }
+                    else
+                    {
+                        data.put(sortArrayName, toList(sorted));
+                    }
+                }
+                catch (IOException ioe)
+                {
+                    String format = getMessage("SortError");
+                    logError(MessageFormat.format(format, ioe.getLocalizedMessage()));
+                    throw new ExitException();
+                }
+            }
+            else
+            {
+                String format = getMessage("SortArrayNotFound");
+                logError(MessageFormat.format(format, sortArrayName));
+            }
+        }
+        for (String[] index : indexes)
+        {
+            Object records = data.opt(index[1]);
+            if (records instanceof JSONArray || records instanceof Collection)
+            {
+                // as an Object so put doesn't copy the index into a JSONArray
+                data.put(index[0], (Object)new KeyIndex(group, records, index[2]));
+            }
+            else
+            {
+                String format = getMessage("IndexArrayNotFound");
+                logError(MessageFormat.format(format, index[1]));
+            }
+        }
     }
 
     /**
@@ -361,19 +814,36 @@ public class STStandaloneTool
      * @param jsonString template input data string
      */
     public void setData(String jsonString)
+    {
+        setData(parseData(jsonString));
+    }
+
+    private JSONObject parseData(String jsonString)
     {
         JSONObject data = null;
+        if (isRecordMode())
+        {
+            String format = getMessage("RecordModeNotSupported");
+            logError(MessageFormat.format(format, FORMAT_JSON));
+        }
         try
         {
-            data = new JSONObject(jsonString);
+            // objects with the same keys share a shape which saves memory and speeds up property access
+            RenderEvents.JSONParse e = new RenderEvents.JSONParse();
+            e.begin();
+            JSONTokener x = new JSONTokener(jsonString);
+            x.setShapes(JSONShape.newRoot());
+            x.setProjection(projection);
+            data = new JSONObject(x);
+            e.commit(jsonString.length(), x.getObjectCount(), x.getArrayCount());
         }
         catch (JSONException je)
         {
-            String format = resources.getString("JSONError");
+            String format = getMessage("JSONError");
             logError(MessageFormat.format(format, je.getLocalizedMessage()));
             throw new ExitException();
         }
-        setData(data);
+        return data;
     }
 
     /**
@@ -383,24 +853,59 @@ public class STStandaloneTool
      */
     public void setData(File f, String encoding)
     {
+        if (!dataFormat.equals(FORMAT_JSON) || isMappedMode() || streamArrayName != null || dataRoot != null)
+        {
+            try
+            {
+                setData(new FileInputStream(f), encoding);
+            }
+            catch (FileNotFoundException fnfe)
+            {
+                String format = getMessage("DataFileNotFound");
+                logError(MessageFormat.format(format, f.getPath()));
+                throw new ExitException();
+            }
+            return;
+        }
+        DataCache.Key key = null;
         String contents = null;
         try
         {
+            if (dataCache != null)
+            {
+                key = DataCache.keyOf(f, encoding, projection);
+                JSONObject cached = dataCache.get(key);
+                if (cached != null)
+                {
+                    setData(cached);
+                    return;
+                }
+            }
+            RenderEvents.DataRead e = new RenderEvents.DataRead();
+            e.begin();
             contents = FileUtil.getFileContentAsString(f, encoding);
+            e.commit(f.getPath(), dataFormat, f.length(), contents.length());
         }
         catch (FileNotFoundException fnfe)
         {
-            String format = resources.getString("DataFileNotFound");
+            String format = getMessage("DataFileNotFound");
             logError(MessageFormat.format(format, f.getPath()));
             throw new ExitException();
         }
         catch (IOException ioe)
         {
-            String format = resources.getString("ErrorReadingData");
+            String format = getMessage("ErrorReadingData");
             logError(MessageFormat.format(format, ioe.getLocalizedMessage()));
             throw new ExitException();
         }
-        setData(contents);
+        JSONObject data = parseData(contents);
+        if (key != null)
+        {
+            // the cached data is shared so setData gets its own top level object
+            dataCache.put(key, data);
+            data = DataCache.copyOf(data);
+        }
+        setData(data);
     }
 
     /**
@@ -410,14 +915,42 @@ public class STStandaloneTool
      */
     public void setData(InputStream is, String encoding)
     {
+        if (dataFormat.equals(FORMAT_CSV))
+        {
+            setCSVData(is, encoding);
+            return;
+        }
+        if (dataFormat.equals(FORMAT_XML))
+        {
+            setXMLData(is);
+            return;
+        }
+        if (dataFormat.equals(FORMAT_NDJSON))
+        {
+            setNDJSONData(is, encoding);
+            return;
+        }
+        if (streamArrayName != null || dataRoot != null)
+        {
+            setStreamedData(is, encoding);
+            return;
+        }
+        if (isMappedMode())
+        {
+            setMappedData(is, encoding);
+            return;
+        }
         String contents = null;
         try
         {
+            RenderEvents.DataRead e = new RenderEvents.DataRead();
+            e.begin();
             contents = FileUtil.getStreamAsString(is, encoding);
+            e.commit(null, dataFormat, -1, contents.length());
         }
         catch (IOException ioe)
         {
-            String format = resources.getString("ErrorReadingData");
+            String format = getMessage("ErrorReadingData");
             logError(MessageFormat.format(format, ioe.getLocalizedMessage()));
             throw new ExitException();
         }
@@ -425,31 +958,389 @@ public class STStandaloneTool
     }
 
     /**
-     * Set the group name of the main group when using a group file.
-     *
-     * @param dir directory containing the group file
-     * @param groupName name of the group file to process without the extension
+     * Set template data from a stream in JSON format. The top level properties are read
+     * up to the array named by setStreamArrayName. The array items are read as the template
+     * uses them. In record mode the array items are the records. With a data root the value
+     * it selects takes the place of the top level.
+     * @param is the stream containing JSON format data. It must be a JSON object.
+     * @param encoding the stream encoding
      */
-    public void setGroup(File dir, String groupName, String encoding)
+    public void setStreamedData(InputStream is, String encoding)
     {
-        String groupPath = dir.getPath() + File.separatorChar + groupName + STGroup.GROUP_FILE_EXTENSION;
-        if (isDebugMode()) {
-            STGroup.trackCreationEvents = true;
+        Reader in = null;
+        try
+        {
+            in = FileUtil.getStreamReader(is, encoding);
         }
-        group = new STGroupFile(groupPath, encoding, startChar, stopChar);
-        if (group == null)
+        catch (IOException ioe)
         {
-            // an error has already been given
+            String format = getMessage("ErrorReadingData");
+            logError(MessageFormat.format(format, ioe.getLocalizedMessage()));
             throw new ExitException();
         }
-        initGroup();
-    }
-
-    /**
-     * Set the group when using simple template files
-     * All the template files must be under the given directory
-     * 
-     * @param dir path of directory containing templates
+        JSONTokener x = new JSONTokener(in);
+        x.setShapes(JSONShape.newRoot());
+        x.setProjection(projection);
+        JSONObject data = new JSONObject();
+        JSONArrayStream stream = null;
+        try
+        {
+            if (dataRoot != null && !dataRoot.seek(x))
+            {
+                closeQuietly(in);
+                String format = getMessage("DataRootNotFound");
+                logError(MessageFormat.format(format, dataRoot));
+                throw new ExitException();
+            }
+            if (streamArrayName == null)
+            {
+                setRootData(x, in);
+                return;
+            }
+            // same syntax as the JSONObject constructor
+            if (x.nextClean() != '{')
+            {
+                throw x.syntaxError("A JSONObject text must begin with '{'");
+            }
+            char c = x.nextClean();
+            while (c != '}')
+            {
+                if (c == 0)
+                {
+                    throw x.syntaxError("A JSONObject text must end with '}'");
+                }
+                x.back();
+                String key = x.nextValue().toString();
+                if (x.nextClean() != ':')
+                {
+                    throw x.syntaxError("Expected a ':' after a key");
+                }
+                if (key.equals(streamArrayName))
+                {
+                    if (x.nextClean() != '[')
+                    {
+                        throw x.syntaxError("Expected an array for " + key);
+                    }
+                    stream = new JSONArrayStream(x, in);
+                    break;
+                }
+                if (x.skips(key))
+                {
+                    x.skipValue();
+                }
+                else
+                {
+                    data.put(key, x.nextValue());
+                }
+                c = x.nextClean();
+                if (c == ',' || c == ';')
+                {
+                    c = x.nextClean();
+                }
+                else if (c != '}')
+                {
+                    throw x.syntaxError("Expected a ',' or '}'");
+                }
+            }
+        }
+        catch (JSONException je)
+        {
+            closeQuietly(in);
+            String format = getMessage("JSONError");
+            logError(MessageFormat.format(format, je.getLocalizedMessage()));
+            throw new ExitException();
+        }
+        if (stream == null)
+        {
+            closeQuietly(in);
+            String format = getMessage("StreamArrayNotFound");
+            logError(MessageFormat.format(format, streamArrayName));
+        }
+        else if (isRecordMode())
+        {
+            records = stream;
+            data = new JSONObject();
+        }
+        else
+        {
+            data.put(streamArrayName, filter != null ? filter.filter(group, stream) : stream);
+            dataStream = stream;
+        }
+        setData(data);
+    }
+
+    // the tokener is positioned before the value selected by the data root
+    private void setRootData(JSONTokener x, Reader in) throws JSONException
+    {
+        char c = x.nextClean();
+        x.back();
+        if (c == '[' && isRecordMode())
+        {
+            x.next();
+            records = new JSONArrayStream(x, in);
+            setData(new JSONObject());
+            return;
+        }
+        Object value;
+        if (c == '[' && filter != null)
+        {
+            // read the items one at a time so that only the selected ones are kept
+            x.next();
+            value = readRows(new JSONArrayStream(x, in));
+        }
+        else
+        {
+            value = x.nextValue();
+        }
+        closeQuietly(in);
+        if (value instanceof JSONObject)
+        {
+            if (isRecordMode())
+            {
+                String format = getMessage("RecordModeNotSupported");
+                logError(MessageFormat.format(format, FORMAT_JSON));
+            }
+            setData((JSONObject)value);
+        }
+        else
+        {
+            String name = dataRoot.getLastToken();
+            JSONObject data = new JSONObject();
+            data.put(name != null ? name : "data", value);
+            setData(data);
+        }
+    }
+
+    /**
+     * Set template data from a stream in JSON format using a temporary memory mapped file.
+     * The top level properties of the data are on the heap but their values are read from
+     * the file as they are used.
+     * @param is the stream containing JSON format data. It must be a JSON object.
+     * @param encoding the stream encoding
+     */
+    public void setMappedData(InputStream is, String encoding)
+    {
+        if (isRecordMode())
+        {
+            String format = getMessage("RecordModeNotSupported");
+            logError(MessageFormat.format(format, FORMAT_JSON));
+        }
+        File file = null;
+        try
+        {
+            file = File.createTempFile("stst", ".data");
+            MappedJSON mapped = MappedJSON.parse(FileUtil.getStreamReader(is, encoding), file);
+            Object root = mapped.getRoot();
+            if (!(root instanceof MappedObject))
+            {
+                throw new JSONException("A JSONObject text must begin with '{'");
+            }
+            JSONObject data = new JSONObject();
+            for (Map.Entry<String, Object> e : ((MappedObject)root).entrySet())
+            {
+                data.put(e.getKey(), e.getValue());
+            }
+            setData(data);
+        }
+        catch (JSONException je)
+        {
+            String format = getMessage("JSONError");
+            logError(MessageFormat.format(format, je.getLocalizedMessage()));
+            throw new ExitException();
+        }
+        catch (IOException ioe)
+        {
+            String format = getMessage("ErrorReadingData");
+            logError(MessageFormat.format(format, ioe.getLocalizedMessage()));
+            throw new ExitException();
+        }
+        finally
+        {
+            // the mapping stays valid after the file is deleted except on Windows
+            if (file != null && !file.delete())
+            {
+                file.deleteOnExit();
+            }
+            try
+            {
+                is.close();
+            }
+            catch (IOException ignore)
+            {
+            }
+        }
+    }
+
+    /**
+     * Set template data from a stream in CSV format. In record mode the rows
+     * are read as the template is processed otherwise they are all read now.
+     * @param is the stream containing CSV format data
+     * @param encoding the stream encoding
+     */
+    public void setCSVData(InputStream is, String encoding)
+    {
+        CSVReader csv = null;
+        try
+        {
+            csv = new CSVReader(FileUtil.getStreamReader(is, encoding));
+            if (isRecordMode())
+            {
+                records = csv;
+                setData(new JSONObject());
+            }
+            else
+            {
+                JSONObject data = new JSONObject();
+                List<String> columns = Arrays.asList(csv.getHeader().getNames());
+                data.put("columns", columns);
+                data.put("rows", readRows(csv));
+                csv.close();
+                setData(data);
+            }
+        }
+        catch (DataException de)
+        {
+            String format = getMessage("DataError");
+            logError(MessageFormat.format(format, de.getLocalizedMessage()));
+            throw new ExitException();
+        }
+        catch (IOException ioe)
+        {
+            String format = getMessage("ErrorReadingData");
+            logError(MessageFormat.format(format, ioe.getLocalizedMessage()));
+            throw new ExitException();
+        }
+    }
+
+    /**
+     * Set template data from a stream in NDJSON format. In record mode the lines
+     * are read as the template is processed otherwise they are all read now.
+     * @param is the stream containing one JSON object per line
+     * @param encoding the stream encoding
+     */
+    public void setNDJSONData(InputStream is, String encoding)
+    {
+        NDJSONReader ndjson = null;
+        try
+        {
+            ndjson = new NDJSONReader(FileUtil.getStreamReader(is, encoding));
+            ndjson.setProjection(projection);
+            if (isRecordMode())
+            {
+                records = ndjson;
+                setData(new JSONObject());
+            }
+            else
+            {
+                JSONObject data = new JSONObject();
+                data.put("rows", readRows(ndjson));
+                ndjson.close();
+                setData(data);
+            }
+        }
+        catch (DataException de)
+        {
+            String format = getMessage("DataError");
+            logError(MessageFormat.format(format, de.getLocalizedMessage()));
+            throw new ExitException();
+        }
+        catch (IOException ioe)
+        {
+            String format = getMessage("ErrorReadingData");
+            logError(MessageFormat.format(format, ioe.getLocalizedMessage()));
+            throw new ExitException();
+        }
+    }
+
+    /**
+     * Set template data from a stream in XML format. In record mode the child elements
+     * of the document element are read as the template is processed otherwise the
+     * whole document is read now.
+     * @param is the stream containing XML data. The encoding is determined from the XML document.
+     */
+    public void setXMLData(InputStream is)
+    {
+        XMLDataReader xml = null;
+        try
+        {
+            xml = new XMLDataReader(is);
+            if (isRecordMode())
+            {
+                records = xml;
+                setData(new JSONObject());
+            }
+            else
+            {
+                XMLElement root = xml.readDocument();
+                xml.close();
+                JSONObject data = new JSONObject();
+                for (String name : root.getNames())
+                {
+                    data.put(name, root.get(name));
+                }
+                setData(data);
+            }
+        }
+        catch (DataException de)
+        {
+            String format = getMessage("DataError");
+            logError(MessageFormat.format(format, de.getLocalizedMessage()));
+            throw new ExitException();
+        }
+        catch (IOException ioe)
+        {
+            String format = getMessage("ErrorReadingData");
+            logError(MessageFormat.format(format, ioe.getLocalizedMessage()));
+            throw new ExitException();
+        }
+    }
+
+    /**
+     * @param format data format name
+     * @return true if the format is one of the supported data formats
+     */
+    public static boolean isDataFormat(String format)
+    {
+        return format.equals(FORMAT_JSON) || format.equals(FORMAT_CSV) || format.equals(FORMAT_XML) ||
+            format.equals(FORMAT_NDJSON);
+    }
+
+    /**
+     * Set the group name of the main group when using a group file.
+     *
+     * @param dir directory containing the group file
+     * @param groupName name of the group file to process without the extension
+     */
+    public void setGroup(File dir, String groupName, String encoding)
+    {
+        String groupPath = dir.getPath() + File.separatorChar + groupName + STGroup.GROUP_FILE_EXTENSION;
+        if (isDebugMode()) {
+            STGroup.trackCreationEvents = true;
+        }
+        groupFilePath = groupPath;
+        groupDirName = null;
+        groupEncoding = encoding;
+        if (groupRegistry != null)
+        {
+            group = groupRegistry.getGroupFile(groupPath, encoding, startChar, stopChar, rendererName, errorListener);
+        }
+        else
+        {
+            group = newGroup();
+        }
+        if (group == null)
+        {
+            // an error has already been given
+            throw new ExitException();
+        }
+        initGroup();
+    }
+
+    /**
+     * Set the group when using simple template files
+     * All the template files must be under the given directory
+     * 
+     * @param dir path of directory containing templates
      * @param encoding encoding for any and all template files if null the 
      * system default encoding is used
      */
@@ -458,14 +1349,112 @@ public class STStandaloneTool
         if (isDebugMode()) {
             STGroup.trackCreationEvents = true;
         }
-        if (isRaw()) {
-            group = new STRawGroupDir(dir, encoding, startChar, stopChar);
+        groupFilePath = null;
+        groupDirName = dir;
+        groupEncoding = encoding;
+        if (groupRegistry != null) {
+            group = groupRegistry.getGroupDir(dir, encoding, startChar, stopChar, isRaw(), rendererName, errorListener);
         } else {
-            group = new STGroupDir(dir, encoding, startChar, stopChar);
+            group = newGroup();
         }
         initGroup();
     }
 
+    // a new unconfigured group for the group file or directory given to setGroup
+    private STGroup newGroup()
+    {
+        if (groupFilePath != null) {
+            return RenderEvents.newGroupFile(groupFilePath, groupEncoding, startChar, stopChar);
+        } else if (isRaw()) {
+            return RenderEvents.newRawGroupDir(groupDirName, groupEncoding, startChar, stopChar);
+        } else {
+            return RenderEvents.newGroupDir(groupDirName, groupEncoding, startChar, stopChar);
+        }
+    }
+
+    /**
+     * @return the render cache or null if output is not cached
+     */
+    public RenderCache getRenderCache()
+    {
+        return renderCache;
+    }
+
+    /**
+     * Set a cache for rendered output. This is useful when the same tool instance
+     * generates output many times such as when serving requests. The cache is
+     * cleared when the group is set. Record mode and debug mode output is not cached.
+     * @param cache the cache to use or null for none
+     */
+    public void setRenderCache(RenderCache cache)
+    {
+        this.renderCache = cache;
+    }
+
+    /**
+     * @return the data cache or null if data files are not cached
+     */
+    public DataCache getDataCache()
+    {
+        return dataCache;
+    }
+
+    /**
+     * Set a cache for parsed JSON data files. This is useful when the same tool instance
+     * renders with the same data files many times. Only JSON files read by setData(File, String)
+     * without -M, -a or -R are cached.
+     * @param cache the cache to use or null for none
+     */
+    public void setDataCache(DataCache cache)
+    {
+        this.dataCache = cache;
+    }
+
+    /**
+     * @return the group registry or null if groups are not shared
+     */
+    public GroupRegistry getGroupRegistry()
+    {
+        return groupRegistry;
+    }
+
+    /**
+     * Set a registry to get groups from. Tools that use the same registry share the groups
+     * for the same template directory or group file and settings. Set it before setGroup.
+     * Errors in the templates are reported by the tool that first set the group.
+     * @param registry the registry to use or null to make a new group each time setGroup is called
+     */
+    public void setGroupRegistry(GroupRegistry registry)
+    {
+        this.groupRegistry = registry;
+    }
+
+    /**
+     * @return the profile or null if renders are not profiled
+     */
+    public RenderProfile getProfile()
+    {
+        return profile;
+    }
+
+    public String getProfileFile()
+    {
+        return profileFile;
+    }
+
+    /**
+     * Profile the time and output size of each template rendered. Call writeProfile
+     * to write the report. The format comes from the file extension: .json for JSON,
+     * .folded or .collapsed for collapsed stacks used by flame graph tools otherwise
+     * a text table sorted by exclusive time.
+     * @param file file for the report, - for stderr or null to not profile
+     */
+    public void setProfileFile(String file)
+    {
+        profileFile = file;
+        profile = file != null ? new RenderProfile() : null;
+    }
+
     /**
      * Call to generate output from the given template.
      * Call after setting desired options and after setting the data and group
@@ -474,8 +1463,189 @@ public class STStandaloneTool
      */
     public void generate(String templateName)
     {
-        ST st = getTemplate(templateName);
-        invokeTemplate(st);
+        try
+        {
+            ST st = getTemplate(templateName);
+            if ((maxShardSize > 0 || maxShardRecords > 0) && (records == null || outFile == null))
+            {
+                logError(getMessage("ShardingNotSupported"));
+            }
+            if (isSorted() && sortArrayName == null && records == null)
+            {
+                logError(getMessage("SortNotSupported"));
+            }
+            if (records != null)
+            {
+                invokeTemplateForRecords(templateName);
+            }
+            else if (renderCache != null && !isDebugMode())
+            {
+                invokeTemplateCached(templateName);
+            }
+            else
+            {
+                invokeTemplate(st);
+            }
+        }
+        finally
+        {
+            if (dataStream != null)
+            {
+                closeQuietly(dataStream);
+                dataStream = null;
+            }
+        }
+    }
+
+    /**
+     * Call to start an HTTP server that renders templates from the group.
+     * Call after setting desired options and after setting the group.
+     * The server keeps running until the process is stopped. A POST to /reload
+     * compiles the templates again from the same directory or group file (not
+     * from the group registry) and switches to them if there are no errors.
+     * With a data cache requests can use the JSON data files in the current
+     * directory with data=<file> in the URL query. With a group registry requests
+     * can use the templates of a directory under the template directory with
+     * templates=<dir> in the URL query.
+     * 
+     * @param port the port to listen on
+     */
+    public void serve(int port)
+    {
+        EngineHandle handle = new EngineHandle(getEngine(), new EngineHandle.GroupFactory()
+        {
+            @Override
+            public STGroup newGroup()
+            {
+                STGroup g = STStandaloneTool.this.newGroup();
+                g.setListener(errorListener);
+                RenderEngine.configureGroup(g, rendererName);
+                return g;
+            }
+        });
+        final RenderServer server = new RenderServer(handle, renderCache);
+        try
+        {
+            if (dataCache != null)
+            {
+                server.setDataFiles(new File(System.getProperty("user.dir")), dataCache);
+            }
+            if (groupRegistry != null)
+            {
+                if (renderCache != null)
+                {
+                    final RenderCache cache = renderCache;
+                    groupRegistry.addRemovalListener(new GroupRegistry.RemovalListener()
+                    {
+                        @Override
+                        public void removed(STGroup group)
+                        {
+                            cache.clear(group);
+                        }
+                    });
+                }
+                server.setEngineSource(new RenderServer.EngineSource()
+                {
+                    @Override
+                    public RenderEngine getEngine(String dirName)
+                    {
+                        File dir = getTemplateSubdirectory(dirName);
+                        if (dir == null)
+                        {
+                            return null;
+                        }
+                        STGroup g = groupRegistry.getGroupDir(dir.getPath(), groupEncoding, startChar, stopChar,
+                                                              isRaw(), rendererName, errorListener);
+                        return new RenderEngine(g, noIndent, lineWidth, profile);
+                    }
+                });
+            }
+            server.start(port);
+        }
+        catch (IOException ex)
+        {
+            String format = getMessage("ServerError");
+            logError(MessageFormat.format(format, ex.getLocalizedMessage()));
+            throw new ExitException();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                server.stop(1);
+                if (isVerboseMode())
+                {
+                    printCacheStats(renderCache);
+                    printCacheStats(dataCache);
+                    printRegistryStats(groupRegistry);
+                }
+                writeProfile();
+            }
+        });
+        String format = getMessage("Listening");
+        System.out.println(MessageFormat.format(format, String.valueOf(server.getPort()), RenderServer.RENDER_PATH));
+    }
+
+    // null if the directory is not under the directory of the group
+    private File getTemplateSubdirectory(String dirName)
+    {
+        try
+        {
+            File root = (groupFilePath != null ? new File(groupFilePath).getParentFile() : new File(groupDirName))
+                .getCanonicalFile();
+            File dir = new File(root, dirName).getCanonicalFile();
+            if (!dir.getPath().startsWith(root.getPath() + File.separator) || !dir.isDirectory())
+            {
+                return null;
+            }
+            return dir;
+        }
+        catch (IOException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Write the profile report to the profile file if profiling
+     */
+    public void writeProfile()
+    {
+        if (profile == null)
+        {
+            return;
+        }
+        PrintWriter out = null;
+        try
+        {
+            out = profileFile.equals("-") ? new PrintWriter(System.err) : new PrintWriter(profileFile);
+            String lowerFile = profileFile.toLowerCase();
+            if (lowerFile.endsWith(".json"))
+            {
+                profile.writeJSON(out);
+            }
+            else if (lowerFile.endsWith(".folded") || lowerFile.endsWith(".collapsed"))
+            {
+                profile.writeCollapsed(out);
+            }
+            else
+            {
+                profile.writeText(out);
+            }
+        }
+        catch (FileNotFoundException ex)
+        {
+            String format = getMessage("OutputFileNotFound");
+            logError(MessageFormat.format(format, profileFile));
+        }
+        finally
+        {
+            if (out != null && !profileFile.equals("-"))
+            {
+                out.close();
+            }
+        }
     }
 
     /**
@@ -492,6 +1662,28 @@ public class STStandaloneTool
         sb.append("  Debug: ").append(debugMode ? "yes" : "no").append("\n");
         sb.append("  Start Char: ").append(startChar).append("\n");
         sb.append("  Stop Char: ").append(stopChar).append("\n");
+        sb.append("  Data Format: ").append(dataFormat).append("\n");
+        sb.append("  Record Mode: ").append(recordMode ? "yes" : "no").append("\n");
+        sb.append("  Mapped Mode: ").append(mappedMode ? "yes" : "no").append("\n");
+        sb.append("  Render Threads: ").append(renderThreads > 0 ? String.valueOf(renderThreads) : "<none>").append("\n");
+        sb.append("  Used Properties: ").append(projection != null ? new TreeSet<String>(projection).toString() : "<all>").append("\n");
+        sb.append("  Sort: ").append(sortKeys != null ? sortKeys : "<none>").append("\n");
+        sb.append("  Group By: ").append(groupField != null ? groupField : "<none>").append("\n");
+        sb.append("  Sort Array: ").append(sortArrayName != null ? sortArrayName : "<records>").append("\n");
+        sb.append("  Indexes:");
+        for (String[] index : indexes)
+        {
+            sb.append(" ").append(index[0]).append("=").append(index[1]).append(".").append(index[2]);
+        }
+        sb.append(indexes.isEmpty() ? " <none>\n" : "\n");
+        sb.append("  Filter: ").append(filter != null ? filter.toString() : "<none>").append("\n");
+        sb.append("  Data Root: ").append(dataRoot != null ? dataRoot.toString() : "<none>").append("\n");
+        sb.append("  Stream Array: ").append(streamArrayName != null ? streamArrayName : "<none>").append("\n");
+        if (maxShardSize > 0 || maxShardRecords > 0)
+        {
+            sb.append("  Max File Size: ").append(maxShardSize > 0 ? String.valueOf(maxShardSize) : "<none>").append("\n");
+            sb.append("  Max File Records: ").append(maxShardRecords > 0 ? String.valueOf(maxShardRecords) : "<none>").append("\n");
+        }
         sb.append("  Output: ").append(outFile != null ? outFile.getName() : "<stdout>").append("\n");
         return sb.toString();
     }
@@ -500,64 +1692,35 @@ public class STStandaloneTool
     //
     private class ExitException extends RuntimeException { }
 
-    private class JSONAdaptor implements ModelAdaptor
+    private void initGroup()
     {
-        @Override
-        public Object getProperty(Interpreter interp, ST self, Object o, Object property, String propertyName)
-            throws STNoSuchPropertyException
+        if (renderCache != null)
         {
-            JSONObject jo = (JSONObject)o;
-            Object value;
-
-            if (property == null || !jo.has(propertyName))
-            {
-                throw new STNoSuchPropertyException(null, null, propertyName);
-            }
-            value = jo.get(propertyName);
-            if (value instanceof JSONArray)
-            {
-                value = convertJSONArrayToArray((JSONArray)value);
-            } else if (value == JSONObject.NULL) {
-                value = null;
-            }
-            return value;
+            renderCache.clear();
         }
-
-        private Object[] convertJSONArrayToArray(JSONArray ja) {
-            int i;
-            Object item;
-            Object array[] = new Object[ja.length()];
-
-            for (i = 0; i < ja.length(); i++)
-            {
-                item = ja.get(i);
-                if (item == JSONObject.NULL) {
-                    item = null;
-                } else if (item instanceof JSONArray) {
-                    item = convertJSONArrayToArray((JSONArray)item);
-                }
-                array[i] = item;
-            }
-            return array;
+        // groups from the registry are shared, already configured and loaded
+        boolean known;
+        if (groupRegistry != null)
+        {
+            known = RenderEngine.isRendererName(rendererName);
         }
-    }
-
-    private void initGroup()
-    {
-        group.setListener(errorListener);
-        // TODO support extensible renderers
-        if (rendererName.equals("basic")) {
-            group.registerRenderer(String.class, new BasicFormatRenderer());
-        } else if (rendererName.equals("javascript")) {
-            group.registerRenderer(String.class, new JavaScriptFormatRenderer());
-        } else if (!rendererName.equals("")) {
-            String msg = MessageFormat.format(resources.getString("NoSuchRenderer"), rendererName);
+        else
+        {
+            group.setListener(errorListener);
+            known = RenderEngine.configureGroup(group, rendererName);
+        }
+        if (!known) {
+            String msg = MessageFormat.format(getMessage("NoSuchRenderer"), rendererName);
             logError(msg);
         }
-        group.registerModelAdaptor(JSONObject.class, new JSONAdaptor());
         STGroup.verbose = isVerboseMode();
     }
 
+    private RenderEngine getEngine()
+    {
+        return new RenderEngine(group, noIndent, lineWidth, profile);
+    }
+
     private ST getTemplate(String templateName)
     {
         ST st = null;
@@ -567,7 +1730,7 @@ public class STStandaloneTool
             st = group.getInstanceOf(templateName);
             if (st == null)
             {
-                String msg = MessageFormat.format(resources.getString("NoSuchTemplate"), templateName);
+                String msg = MessageFormat.format(getMessage("NoSuchTemplate"), templateName);
                 logError(msg);
                 throw new ExitException();
             }
@@ -580,70 +1743,250 @@ public class STStandaloneTool
         }
         if (compileError)
         {
-            String msg = MessageFormat.format(resources.getString("ErrorGettingTemplate"), templateName);
+            String msg = MessageFormat.format(getMessage("ErrorGettingTemplate"), templateName);
             logError(msg);
             throw new ExitException();
         }
         return st;
     }
 
+    private void addAttributes(RenderEngine engine, ST st, Object source)
+    {
+        if (!isVerboseMode())
+        {
+            engine.bindAttributes(st, source);
+            return;
+        }
+        List<String> ignored = engine.addAttributes(st, source);
+        if (ignored != null)
+        {
+            for (String k: ignored)
+            {
+                logError(MessageFormat.format(getMessage("IgnoreAttribute"), k));
+            }
+        }
+    }
+
     private void invokeTemplate(ST st)
     {
-        JSONObject data = getData();
+        RenderEngine engine = getEngine();
         // add top level attributes
-        if (JSONObject.getNames(data) != null) {
-            JSONAdaptor a = new JSONAdaptor();
+        addAttributes(engine, st, getData());
+
+        if (isDebugMode()) {
+            st.inspect();
+        }
+        EncodingSTWriter writer = null;
+        try
+        {
+            writer = engine.createWriter(getOutputStream(), Charset.defaultCharset());
+            engine.write(st, writer, errorListener);
+            writer.flush();
+        }
+        catch (DataException de)
+        {
+            String format = getMessage("DataError");
+            logError(MessageFormat.format(format, de.getLocalizedMessage()));
+            throw new ExitException();
+        }
+        catch (Exception ex)
+        {
+            String msg = getMessage("RunTimeError");
+            logError(msg + " " + ex.getLocalizedMessage());
+            throw new ExitException();
+        }
+        finally
+        {
+            if (outFile != null && writer != null)
+            {
+                closeQuietly(writer);
+            }
+        }
+    }
 
-            for (String k: JSONObject.getNames(data))
+    private void invokeTemplateCached(String templateName)
+    {
+        PrintWriter out = null;
+        try
+        {
+            out = getOutputPrintWriter();
+            renderCache.render(getEngine(), templateName, getData(), out, errorListener);
+            out.flush();
+        }
+        catch (Exception ex)
+        {
+            String msg = getMessage("RunTimeError");
+            logError(msg + " " + ex.getLocalizedMessage());
+            throw new ExitException();
+        }
+        finally
+        {
+            if (outFile != null && out != null)
             {
-                Object value = a.getProperty(null, st, data, k, k);
-                try
+                out.close();
+            }
+        }
+    }
+
+    private void invokeTemplateForRecords(String templateName)
+    {
+        final RenderEngine engine = getEngine();
+        if (filter != null)
+        {
+            records = filter.filter(group, records);
+        }
+        Writer out = null;
+        ShardedWriter sharded = null;
+        EncodingSTWriter encoded = null;
+        try
+        {
+            if (isSorted() && sortArrayName == null)
+            {
+                records = sortRecords(records);
+            }
+            if (outFile != null && (maxShardSize > 0 || maxShardRecords > 0))
+            {
+                // with render threads each file is also written by its own thread
+                sharded = new ShardedWriter(outFile.getPath(), Charset.defaultCharset(),
+                    maxShardSize > 0 ? maxShardSize : ShardedWriter.NO_LIMIT,
+                    maxShardRecords > 0 ? maxShardRecords : ShardedWriter.NO_LIMIT, renderThreads > 0);
+                out = sharded;
+            }
+            else if (renderThreads > 0)
+            {
+                out = getOutputPrintWriter();
+            }
+            if (renderThreads > 0)
+            {
+                RecordPipeline pipeline = new RecordPipeline(engine, templateName, renderThreads)
+                {
+                    @Override
+                    protected void addAttributes(ST st, Object record)
+                    {
+                        STStandaloneTool.this.addAttributes(engine, st, record);
+                    }
+                };
+                pipeline.run(records, out, errorListener);
+            }
+            else
+            {
+                STWriter writer;
+                if (sharded != null)
+                {
+                    writer = engine.createWriter(sharded);
+                }
+                else
                 {
-                    st.add(k, value);
+                    encoded = engine.createWriter(getOutputStream(), Charset.defaultCharset());
+                    writer = encoded;
                 }
-                catch (Exception ex) // STNoSuchAttributeException nsae)
+                while (records.hasNext())
                 {
-                    if (isVerboseMode())
+                    ST st = engine.getInstanceOf(templateName);
+                    addAttributes(engine, st, records.next());
+                    engine.write(st, writer, errorListener);
+                    if (sharded != null)
                     {
-                        logError(MessageFormat.format(resources.getString("IgnoreAttribute"), k));
+                        sharded.endRecord();
                     }
                 }
             }
-        }
-
-        if (isDebugMode()) {
-            st.inspect();
-        }
-        PrintWriter out = null;
-        try
-        {
-            out = getOutputPrintWriter();
-            STWriter writer = null;
-            if (getNoIndent())
+            if (out != null)
             {
-                writer = new NoIndentWriter(out);
+                out.flush();
             }
-            else
+            if (encoded != null)
             {
-                writer = new AutoIndentWriter(out);
-                writer.setLineWidth(lineWidth);
+                encoded.flush();
             }
-            st.write(writer);
-            out.flush();
+            if (sharded != null)
+            {
+                sharded.close();
+                if (isVerboseMode())
+                {
+                    String format = getMessage("FilesWritten");
+                    System.out.println(MessageFormat.format(format, String.valueOf(sharded.getFiles().size())));
+                }
+            }
+        }
+        catch (DataException de)
+        {
+            String format = getMessage("DataError");
+            logError(MessageFormat.format(format, de.getLocalizedMessage()));
+            throw new ExitException();
         }
         catch (Exception ex)
         {
-            String msg = resources.getString("RuntimeError");
+            String msg = getMessage("RunTimeError");
             logError(msg + " " + ex.getLocalizedMessage());
             throw new ExitException();
         }
         finally
         {
-            if (outFile != null)
+            if (outFile != null && out != null)
             {
-                out.close();
+                closeQuietly(out);
+            }
+            if (outFile != null && encoded != null)
+            {
+                closeQuietly(encoded);
+            }
+            if (records instanceof Closeable)
+            {
+                closeQuietly((Closeable)records);
+            }
+            records = null;
+        }
+    }
+
+    // read all the rows selected by the filter
+    private List<?> readRows(Iterator<?> rows)
+    {
+        if (filter != null)
+        {
+            rows = filter.filter(group, rows);
+        }
+        return toList(rows);
+    }
+
+    private static List<?> toList(Iterator<?> items)
+    {
+        List<Object> list = new ArrayList<Object>();
+        while (items.hasNext())
+        {
+            list.add(items.next());
+        }
+        return list;
+    }
+
+    private void closeQuietly(Closeable c)
+    {
+        try
+        {
+            c.close();
+        }
+        catch (IOException ignore)
+        {
+        }
+    }
+
+    // The default charset is used for the output like PrintWriter does
+    private OutputStream getOutputStream()
+    {
+        if (outFile != null)
+        {
+            try
+            {
+                return new FileOutputStream(outFile);
+            }
+            catch (FileNotFoundException ex)
+            {
+                String format = getMessage("OutputFileNotFound");
+                logError(MessageFormat.format(format, outFile.getPath()));
+                throw new ExitException();
             }
         }
+        return System.out;
     }
 
     private PrintWriter getOutputPrintWriter()
@@ -656,7 +1999,7 @@ public class STStandaloneTool
             }
             catch (FileNotFoundException ex)
             {
-                String format = resources.getString("OutputFileNotFound");
+                String format = getMessage("OutputFileNotFound");
                 logError(MessageFormat.format(format, outFile.getPath()));
                 throw new ExitException();
             }
@@ -670,27 +2013,27 @@ public class STStandaloneTool
         public void compileTimeError(STMessage msg)
         {
             compileError = true;
-            report(resources.getString("CompileTimeError"), msg);
+            report(getMessage("CompileTimeError"), msg);
         }
 
         @Override
         public void internalError(STMessage msg)
         {
             logError("xxx internal error");
-            report(resources.getString("InternalError"), msg);
+            report(getMessage("InternalError"), msg);
         }
 
         @Override
         public void IOError(STMessage msg)
         {
             logError("xxx io error");
-            report(resources.getString("IOError"), msg);
+            report(getMessage("IOError"), msg);
         }
 
         @Override
         public void runTimeError(STMessage msg)
         {
-            report(resources.getString("RunTimeError"), msg);
+            report(getMessage("RunTimeError"), msg);
         }
 
         private void report(String msgType, STMessage msg)
@@ -704,6 +2047,18 @@ public class STStandaloneTool
         }
     }
 
+    // The messages are only loaded when one is needed. Most runs print none and
+    // loading the bundle is a noticeable part of startup time.
+    private static class Messages
+    {
+        static final ResourceBundle resources = ResourceBundle.getBundle(RESOURCE_BUNDLE_NAME);
+    }
+
+    private static String getMessage(String key)
+    {
+        return Messages.resources.getString(key);
+    }
+
     private void logError(String message)
     {
         System.err.println(message);
@@ -728,6 +2083,24 @@ public class STStandaloneTool
         boolean startStopParam = false;
         boolean rendererParam = false;
         boolean widthParam = false;
+        boolean formatParam = false;
+        boolean portParam = false;
+        boolean cacheParam = false;
+        boolean dataCacheParam = false;
+        boolean registryParam = false;
+        boolean arrayParam = false;
+        boolean rootParam = false;
+        boolean filterParam = false;
+        boolean indexParam = false;
+        boolean sortParam = false;
+        boolean groupParam = false;
+        boolean threadsParam = false;
+        boolean profileParam = false;
+        boolean shardSizeParam = false;
+        boolean shardRecordsParam = false;
+        boolean projectionMode = false;
+        String dataFormat = null;
+        int port = -1;
 
         int param = 0;
         for (String arg : args)
@@ -738,7 +2111,7 @@ public class STStandaloneTool
                 templateDir = new File(arg);
                 if (!templateDir.isDirectory())
                 {
-                    String format = resources.getString("InvalidDirectory");
+                    String format = getMessage("InvalidDirectory");
                     System.err.println(MessageFormat.format(format, arg));
                     continue;
                 }
@@ -763,13 +2136,191 @@ public class STStandaloneTool
                 widthParam = false;
                 stst.setLineWidth(arg);
             }
+            else if (formatParam)
+            {
+                formatParam = false;
+                if (!isDataFormat(arg))
+                {
+                    String format = getMessage("InvalidDataFormat");
+                    System.err.println(MessageFormat.format(format, arg));
+                    continue;
+                }
+                dataFormat = arg;
+            }
+            else if (arrayParam)
+            {
+                arrayParam = false;
+                stst.setStreamArrayName(arg);
+            }
+            else if (rootParam)
+            {
+                rootParam = false;
+                stst.setDataRoot(arg);
+            }
+            else if (sortParam || groupParam)
+            {
+                // [<array>:]<fields>
+                int colon = arg.indexOf(':');
+                String arrayName = colon > 0 ? arg.substring(0, colon) : null;
+                String fields = arg.substring(colon + 1);
+                try
+                {
+                    if (sortParam)
+                    {
+                        stst.setSort(arrayName, fields);
+                    }
+                    else
+                    {
+                        stst.setGroupBy(arrayName, fields);
+                    }
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    String format = getMessage("InvalidSort");
+                    System.err.println(MessageFormat.format(format, arg, ex.getMessage()));
+                    return;
+                }
+                sortParam = false;
+                groupParam = false;
+            }
+            else if (indexParam)
+            {
+                indexParam = false;
+                // [<name>=]<array>.<key>
+                int eq = arg.indexOf('=');
+                int dot = arg.lastIndexOf('.');
+                if (dot <= eq + 1 || dot == arg.length() - 1)
+                {
+                    String format = getMessage("InvalidIndex");
+                    System.err.println(MessageFormat.format(format, arg));
+                    continue;
+                }
+                String arrayName = arg.substring(eq + 1, dot);
+                stst.addIndex(eq > 0 ? arg.substring(0, eq) : arrayName, arrayName, arg.substring(dot + 1));
+            }
+            else if (filterParam)
+            {
+                filterParam = false;
+                try
+                {
+                    stst.setFilter(arg);
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    String format = getMessage("InvalidFilter");
+                    System.err.println(MessageFormat.format(format, arg, ex.getMessage()));
+                    return;
+                }
+            }
+            else if (profileParam)
+            {
+                profileParam = false;
+                stst.setProfileFile(arg);
+            }
+            else if (threadsParam)
+            {
+                threadsParam = false;
+                try
+                {
+                    stst.setRenderThreads(Integer.parseInt(arg));
+                }
+                catch (NumberFormatException ex)
+                {
+                    String format = getMessage("InvalidThreads");
+                    System.err.println(MessageFormat.format(format, arg));
+                    continue;
+                }
+            }
+            else if (shardSizeParam || shardRecordsParam)
+            {
+                long limit = -1;
+                try
+                {
+                    limit = Long.parseLong(arg);
+                }
+                catch (NumberFormatException ex)
+                {
+                    // reported below
+                }
+                if (limit <= 0)
+                {
+                    String format = getMessage("InvalidShardLimit");
+                    System.err.println(MessageFormat.format(format, arg));
+                }
+                else if (shardSizeParam)
+                {
+                    stst.setMaxShardSize(limit * 1024);
+                }
+                else
+                {
+                    stst.setMaxShardRecords(limit);
+                }
+                shardSizeParam = false;
+                shardRecordsParam = false;
+            }
+            else if (cacheParam)
+            {
+                cacheParam = false;
+                try
+                {
+                    stst.setRenderCache(new RenderCache(Long.parseLong(arg) * 1024));
+                }
+                catch (NumberFormatException ex)
+                {
+                    String format = getMessage("InvalidCacheSize");
+                    System.err.println(MessageFormat.format(format, arg));
+                    continue;
+                }
+            }
+            else if (dataCacheParam)
+            {
+                dataCacheParam = false;
+                try
+                {
+                    stst.setDataCache(new DataCache(Long.parseLong(arg) * 1024));
+                }
+                catch (NumberFormatException ex)
+                {
+                    String format = getMessage("InvalidCacheSize");
+                    System.err.println(MessageFormat.format(format, arg));
+                    continue;
+                }
+            }
+            else if (registryParam)
+            {
+                registryParam = false;
+                try
+                {
+                    stst.setGroupRegistry(new GroupRegistry(Long.parseLong(arg) * 1024));
+                }
+                catch (NumberFormatException ex)
+                {
+                    String format = getMessage("InvalidCacheSize");
+                    System.err.println(MessageFormat.format(format, arg));
+                    continue;
+                }
+            }
+            else if (portParam)
+            {
+                portParam = false;
+                try
+                {
+                    port = Integer.parseInt(arg);
+                }
+                catch (NumberFormatException ex)
+                {
+                    String format = getMessage("InvalidPort");
+                    System.err.println(MessageFormat.format(format, arg));
+                    return;
+                }
+            }
             else if (startStopParam)
             {
                 startStopParam = false;
                 startStop = arg;
                 if (startStop.length() != 2)
                 {
-                    String format = resources.getString("InvalidStartStop");
+                    String format = getMessage("InvalidStartStop");
                     System.err.println(MessageFormat.format(format, arg));
                     continue;
                 }
@@ -823,9 +2374,81 @@ public class STStandaloneTool
                 {
                     encodingParam = true;
                 }
+                else if (arg.equals("-D"))
+                {
+                    formatParam = true;
+                }
+                else if (arg.equals("-p"))
+                {
+                    stst.setRecordMode(true);
+                }
+                else if (arg.equals("-M"))
+                {
+                    stst.setMappedMode(true);
+                }
+                else if (arg.equals("-u"))
+                {
+                    projectionMode = true;
+                }
+                else if (arg.equals("-a"))
+                {
+                    arrayParam = true;
+                }
+                else if (arg.equals("-R"))
+                {
+                    rootParam = true;
+                }
+                else if (arg.equals("-F"))
+                {
+                    filterParam = true;
+                }
+                else if (arg.equals("-I"))
+                {
+                    indexParam = true;
+                }
+                else if (arg.equals("-S"))
+                {
+                    sortParam = true;
+                }
+                else if (arg.equals("-G"))
+                {
+                    groupParam = true;
+                }
+                else if (arg.equals("-j"))
+                {
+                    threadsParam = true;
+                }
+                else if (arg.equals("-P"))
+                {
+                    profileParam = true;
+                }
+                else if (arg.equals("-b"))
+                {
+                    shardSizeParam = true;
+                }
+                else if (arg.equals("-c"))
+                {
+                    shardRecordsParam = true;
+                }
+                else if (arg.equals("-l"))
+                {
+                    portParam = true;
+                }
+                else if (arg.equals("-C"))
+                {
+                    cacheParam = true;
+                }
+                else if (arg.equals("-k"))
+                {
+                    dataCacheParam = true;
+                }
+                else if (arg.equals("-g"))
+                {
+                    registryParam = true;
+                }
                 else
                 {
-                    String format = resources.getString("UnknownOption");
+                    String format = getMessage("UnknownOption");
                     System.err.println(MessageFormat.format(format, arg));
                 }
             }
@@ -845,7 +2468,7 @@ public class STStandaloneTool
                 }
                 default:
                 {
-                    String format = resources.getString("TooManyParameters");
+                    String format = getMessage("TooManyParameters");
                     System.err.println(MessageFormat.format(format, arg));
                     break;
                 }
@@ -854,26 +2477,93 @@ public class STStandaloneTool
             }
         }
         
-        if (param < 1)
+        if (param < 1 && port < 0)
+        {
+            String msg = getMessage("TooFewParameters");
+            System.err.println(msg);
+            usage();
+            return;
+        }
+
+        if (stst.getRenderThreads() > 0 && stst.getLineWidth() != AutoIndentWriter.NO_WRAP && !stst.getNoIndent())
         {
-            String msg = resources.getString("TooFewParameters");
+            String msg = getMessage("WrapWithThreads");
             System.err.println(msg);
             usage();
             return;
         }
 
+        if (stst.getOutFile() != null && (stst.getMaxShardSize() > 0 || stst.getMaxShardRecords() > 0))
+        {
+            try
+            {
+                ShardedWriter.checkPattern(stst.getOutFile().getPath());
+            }
+            catch (IllegalArgumentException ex)
+            {
+                String format = getMessage("InvalidOutputPattern");
+                System.err.println(MessageFormat.format(format, stst.getOutFile().getPath(), ex.getMessage()));
+                usage();
+                return;
+            }
+        }
+
 
         if (stst.isVerboseMode())
         {
             versionBanner();
         }
 
+        // if no data format given use the data file extension
+        if (dataFormat == null && data != null)
+        {
+            String lowerData = data.toLowerCase();
+            if (lowerData.endsWith("." + FORMAT_CSV))
+            {
+                dataFormat = FORMAT_CSV;
+            }
+            else if (lowerData.endsWith("." + FORMAT_XML))
+            {
+                dataFormat = FORMAT_XML;
+            }
+            else if (lowerData.endsWith("." + FORMAT_NDJSON) || lowerData.endsWith(".jsonl"))
+            {
+                dataFormat = FORMAT_NDJSON;
+            }
+        }
+        if (dataFormat != null)
+        {
+            stst.setDataFormat(dataFormat);
+        }
+
         // if no directory given use current dir
         if (templateDir == null)
         {
             templateDir = new File(System.getProperty("user.dir"));
         }
 
+        if (port >= 0)
+        {
+            try
+            {
+                // the only parameter is an optional group name
+                if (templateSpec != null)
+                {
+                    stst.setGroup(templateDir, templateSpec, encoding);
+                }
+                else
+                {
+                    stst.setGroup(templateDir.getPath(), encoding);
+                }
+                stst.serve(port);
+            }
+            catch (ExitException ex)
+            {
+                System.exit(1);
+            }
+            return;
+        }
+
         try
         {
             String templateName = null;
@@ -892,6 +2582,11 @@ public class STStandaloneTool
                 templateName = templateSpec;
             }
 
+            if (projectionMode && !stst.isMappedMode())
+            {
+                stst.setProjection(templateName);
+            }
+
             if (data != null)
             {
                 stst.setData(new File(data), encoding);
@@ -913,9 +2608,13 @@ public class STStandaloneTool
             if (stst.isVerboseMode())
             {
                 double time = (double)(end - start) / 1000.0;
-                String format = resources.getString("Timing");
+                String format = getMessage("Timing");
                 System.out.println(MessageFormat.format(format, String.valueOf(time)));
+                printCacheStats(stst.getRenderCache());
+                printCacheStats(stst.getDataCache());
+                printRegistryStats(stst.getGroupRegistry());
             }
+            stst.writeProfile();
         }
         catch (ExitException ex)
         {
@@ -924,16 +2623,54 @@ public class STStandaloneTool
         }
     }
 
+    /**
+     * Print render cache statistics
+     * @param cache the cache or null if there is no cache
+     */
+    public static void printCacheStats(RenderCache cache)
+    {
+        if (cache != null)
+        {
+            String format = getMessage("CacheStats");
+            System.out.println(MessageFormat.format(format, String.valueOf(cache.getHits()),
+                String.valueOf(cache.getMisses()), String.valueOf(cache.getEvictions()),
+                String.valueOf(cache.getEntryCount()), String.valueOf(cache.getBytes())));
+        }
+    }
+
+    public static void printCacheStats(DataCache cache)
+    {
+        if (cache != null)
+        {
+            String format = getMessage("DataCacheStats");
+            System.out.println(MessageFormat.format(format, String.valueOf(cache.getHits()),
+                String.valueOf(cache.getMisses()), String.valueOf(cache.getEvictions()),
+                String.valueOf(cache.getEntryCount()), String.valueOf(cache.getBytes())));
+        }
+    }
+
+    public static void printRegistryStats(GroupRegistry registry)
+    {
+        if (registry != null)
+        {
+            String format = getMessage("GroupRegistryStats");
+            System.out.println(MessageFormat.format(format, String.valueOf(registry.getLoads()),
+                String.valueOf(registry.getHits()), String.valueOf(registry.getEvictions()),
+                String.valueOf(registry.getGroupCount()), String.valueOf(registry.getBytes()),
+                String.valueOf(registry.getLoadMillis())));
+        }
+    }
+
     public static void versionBanner()
     {
-        String format = resources.getString("VersionBanner");
+        String format = getMessage("VersionBanner");
         System.out.println(MessageFormat.format(format, VERSION, ST.VERSION));
     }
 
     public static void usage()
     {
         versionBanner();
-        String msg = resources.getString("Usage");
+        String msg = getMessage("Usage");
         System.out.println(msg);
     }
 
@@ -0,0 +1,442 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes record output to a sequence of files each no larger than a given number of
+ * bytes or records. Text written since the last call to endRecord is one record and
+ * a record is never split between files. A record larger than the size limit gets
+ * a file of its own.
+ * 
+ * File names come from a pattern. If it contains a % it is a format for the file
+ * sequence number which starts at 1, for example out-%03d.txt. It must have exactly one
+ * %d conversion, optionally with flags and a width, and %% for a literal %. Otherwise the
+ * sequence number is added before the extension so out.txt gives out-1.txt, out-2.txt
+ * and so on.
+ * 
+ * Optionally each file is written by its own thread so that writing and closing a
+ * file overlaps with rendering the records of the next one.
+ */
+public class ShardedWriter extends Writer
+{
+    public static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[] END = new byte[0];
+    private static final Pattern CONVERSION = Pattern.compile("%%|%[-+ 0,(]*[0-9]*d");
+
+    private final String pattern;
+    private final Charset charset;
+    private final long maxBytes;
+    private final long maxRecords;
+    private final boolean threaded;
+    private final StringBuilder record = new StringBuilder();
+    private final List<File> files = new ArrayList<File>();
+    private final List<ShardThread> writers = new ArrayList<ShardThread>();
+
+    private OutputStream shard = null;
+    private long shardBytes = 0;
+    private long shardRecords = 0;
+
+    /**
+     * @param pattern file name pattern
+     * @param charset encoding of the files
+     * @param maxBytes maximum size of a file in bytes or NO_LIMIT
+     * @param maxRecords maximum number of records in a file or NO_LIMIT
+     * @param threaded true to write each file on its own thread
+     * @throws IllegalArgumentException if the pattern is not valid. See checkPattern.
+     */
+    public ShardedWriter(String pattern, Charset charset, long maxBytes, long maxRecords, boolean threaded)
+    {
+        checkPattern(pattern);
+        this.pattern = pattern;
+        this.charset = charset;
+        this.maxBytes = maxBytes;
+        this.maxRecords = maxRecords;
+        this.threaded = threaded;
+    }
+
+    /**
+     * Check a file name pattern before any output is written. A pattern with a % must
+     * have exactly one %d conversion such as %d or %03d and any other % must be written %%.
+     * @param pattern file name pattern
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    public static void checkPattern(String pattern)
+    {
+        int conversions = 0;
+        Matcher m = CONVERSION.matcher(pattern);
+        int i = pattern.indexOf('%');
+        while (i >= 0)
+        {
+            m.region(i, pattern.length());
+            if (!m.lookingAt())
+            {
+                throw new IllegalArgumentException("Use %d for the file number and %% for a %");
+            }
+            if (!m.group().equals("%%"))
+            {
+                conversions++;
+            }
+            i = pattern.indexOf('%', m.end());
+        }
+        if (conversions > 1)
+        {
+            throw new IllegalArgumentException("Only one %d is allowed");
+        }
+        if (conversions == 0 && pattern.indexOf('%') >= 0)
+        {
+            throw new IllegalArgumentException("Use %d for the file number");
+        }
+    }
+
+    /**
+     * @param pattern file name pattern
+     * @param seq file sequence number
+     * @return the name of the file with the given sequence number
+     */
+    public static String getFileName(String pattern, int seq)
+    {
+        if (pattern.indexOf('%') >= 0)
+        {
+            return String.format(pattern, seq);
+        }
+        int dot = pattern.lastIndexOf('.');
+        if (dot <= pattern.lastIndexOf(File.separatorChar))
+        {
+            return pattern + "-" + seq;
+        }
+        return pattern.substring(0, dot) + "-" + seq + pattern.substring(dot);
+    }
+
+    /**
+     * @return the files written so far in order
+     */
+    public List<File> getFiles()
+    {
+        return files;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len)
+    {
+        record.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len)
+    {
+        record.append(str, off, off + len);
+    }
+
+    @Override
+    public void write(int c)
+    {
+        record.append((char)c);
+    }
+
+    /**
+     * Mark the end of a record. The record is written to the current file
+     * or if it doesn't fit to a new file.
+     * @throws IOException if a file cannot be created or written
+     */
+    public void endRecord() throws IOException
+    {
+        byte[] bytes = record.toString().getBytes(charset);
+        record.setLength(0);
+        if (shard != null && (shardRecords >= maxRecords || shardBytes + bytes.length > maxBytes))
+        {
+            closeShard();
+        }
+        if (shard == null)
+        {
+            openShard();
+        }
+        shard.write(bytes);
+        shardBytes += bytes.length;
+        shardRecords += 1;
+    }
+
+    /**
+     * Records are only written when they end so this does nothing
+     */
+    @Override
+    public void flush()
+    {
+    }
+
+    /**
+     * Ends any partial record, closes the current file and waits for all the
+     * files to be written.
+     * @throws IOException if any file failed to be written
+     */
+    @Override
+    public void close() throws IOException
+    {
+        IOException error = null;
+        try
+        {
+            if (record.length() > 0)
+            {
+                endRecord();
+            }
+            if (shard != null)
+            {
+                closeShard();
+            }
+        }
+        catch (IOException ex)
+        {
+            error = ex;
+        }
+        for (ShardThread t : writers)
+        {
+            try
+            {
+                t.finish();
+            }
+            catch (IOException ex)
+            {
+                if (error == null)
+                {
+                    error = ex;
+                }
+            }
+        }
+        writers.clear();
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+
+    private void openShard() throws IOException
+    {
+        File f = new File(getFileName(pattern, files.size() + 1));
+        OutputStream os = new FileOutputStream(f);
+        files.add(f);
+        if (threaded)
+        {
+            ShardThread t = new ShardThread(os, f.getName());
+            writers.add(t);
+            t.start();
+            shard = new QueuedOutputStream(t);
+        }
+        else
+        {
+            shard = new BufferedOutputStream(os, CHUNK_SIZE);
+        }
+        shardBytes = 0;
+        shardRecords = 0;
+    }
+
+    private void closeShard() throws IOException
+    {
+        RenderEvents.OutputFlush e = new RenderEvents.OutputFlush();
+        e.begin();
+        OutputStream os = shard;
+        shard = null;
+        os.close();
+        e.commit(files.get(files.size() - 1).getPath(), shardBytes);
+    }
+
+    // Collects bytes into chunks for a ShardThread to write
+    static class QueuedOutputStream extends OutputStream
+    {
+        private final ShardThread writer;
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int count = 0;
+
+        QueuedOutputStream(ShardThread writer)
+        {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (count == chunk.length)
+            {
+                send();
+            }
+            chunk[count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (count == chunk.length)
+                {
+                    send();
+                }
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                if (count > 0)
+                {
+                    send();
+                }
+            }
+            finally
+            {
+                writer.put(END);
+            }
+        }
+
+        private void send() throws IOException
+        {
+            writer.put(chunk.length == count ? chunk : Arrays.copyOf(chunk, count));
+            chunk = new byte[CHUNK_SIZE];
+            count = 0;
+        }
+    }
+
+    // Writes the chunks of one file then closes it. After a write error the chunks
+    // are discarded until END.
+    static class ShardThread extends Thread
+    {
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(16);
+        private final OutputStream out;
+        private volatile IOException error = null;
+
+        ShardThread(OutputStream out, String name)
+        {
+            super("stst-write-" + name);
+            this.out = out;
+            setDaemon(true);
+        }
+
+        void put(byte[] chunk) throws IOException
+        {
+            if (error != null && chunk != END)
+            {
+                throw error;
+            }
+            try
+            {
+                chunks.put(chunk);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        void finish() throws IOException
+        {
+            try
+            {
+                join();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (error != null)
+            {
+                throw error;
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                for (;;)
+                {
+                    byte[] chunk = chunks.take();
+                    if (chunk == END)
+                    {
+                        break;
+                    }
+                    if (error == null)
+                    {
+                        try
+                        {
+                            out.write(chunk);
+                        }
+                        catch (IOException ex)
+                        {
+                            // keep taking chunks so put doesn't block on a full queue
+                            error = ex;
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                // abandoned
+            }
+            finally
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException ex)
+                {
+                    if (error == null)
+                    {
+                        error = ex;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+/**
+ * A group that a RenderEngine can render from many threads. The groups in SharedGroups
+ * are the only ones that are. Until a group is frozen its template lookups are
+ * synchronized because STGroup checks for a template and loads it in separate steps.
+ * RenderEngine.loadTemplates loads all the templates and then freezes the group. After
+ * that lookups are served from an immutable map without locking and names that are not
+ * found are not remembered.
+ */
+public interface SharedGroup
+{
+    /**
+     * Serve all further lookups from the templates loaded so far including those of
+     * imported groups. Defining or unloading templates after this unfreezes the group.
+     */
+    void freeze();
+
+    /**
+     * @return true if lookups are served from the frozen templates
+     */
+    boolean isFrozen();
+
+    /**
+     * @return an id that no other group in this JVM has. Caches can key on it without
+     * keeping the group alive.
+     */
+    long getId();
+}
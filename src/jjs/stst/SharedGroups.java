@@ -0,0 +1,338 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupDir;
+import org.stringtemplate.v4.STGroupFile;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.STRawGroupDir;
+import org.stringtemplate.v4.compiler.CompiledST;
+
+import st4hidden.org.antlr.runtime.Token;
+
+/**
+ * Groups of each kind that implement SharedGroup so a RenderEngine can use them from
+ * many threads. RenderEvents extends these to add its events.
+ */
+public final class SharedGroups
+{
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private SharedGroups()
+    {
+    }
+
+    /**
+     * An STGroupFile that is a SharedGroup.
+     */
+    public static class GroupFile extends STGroupFile implements SharedGroup
+    {
+        private final long id = NEXT_ID.incrementAndGet();
+        private volatile Map<String, CompiledST> frozen;
+
+        public GroupFile(String fileName, String encoding, char delimiterStartChar, char delimiterStopChar)
+        {
+            super(fileName, encoding, delimiterStartChar, delimiterStopChar);
+        }
+
+        @Override
+        public CompiledST lookupTemplate(String name)
+        {
+            Map<String, CompiledST> map = frozen;
+            if (map != null)
+            {
+                return map.get(absoluteName(name));
+            }
+            synchronized (this)
+            {
+                return super.lookupTemplate(name);
+            }
+        }
+
+        @Override
+        public synchronized void freeze()
+        {
+            frozen = getLoadedTemplates(this, templates, NOT_FOUND_ST);
+        }
+
+        @Override
+        public boolean isFrozen()
+        {
+            return frozen != null;
+        }
+
+        @Override
+        public long getId()
+        {
+            return id;
+        }
+
+        @Override
+        public void rawDefineTemplate(String name, CompiledST code, Token defT)
+        {
+            frozen = null;
+            super.rawDefineTemplate(name, code, defT);
+        }
+
+        @Override
+        public synchronized void unload()
+        {
+            frozen = null;
+            super.unload();
+        }
+    }
+
+    /**
+     * An STGroupDir that is a SharedGroup.
+     */
+    public static class GroupDir extends STGroupDir implements SharedGroup
+    {
+        private final long id = NEXT_ID.incrementAndGet();
+        private volatile Map<String, CompiledST> frozen;
+
+        public GroupDir(String dirName, String encoding, char delimiterStartChar, char delimiterStopChar)
+        {
+            super(dirName, encoding, delimiterStartChar, delimiterStopChar);
+        }
+
+        @Override
+        public CompiledST lookupTemplate(String name)
+        {
+            Map<String, CompiledST> map = frozen;
+            if (map != null)
+            {
+                return map.get(absoluteName(name));
+            }
+            synchronized (this)
+            {
+                return super.lookupTemplate(name);
+            }
+        }
+
+        @Override
+        public synchronized void freeze()
+        {
+            frozen = getLoadedTemplates(this, templates, NOT_FOUND_ST);
+        }
+
+        @Override
+        public boolean isFrozen()
+        {
+            return frozen != null;
+        }
+
+        @Override
+        public long getId()
+        {
+            return id;
+        }
+
+        @Override
+        public void rawDefineTemplate(String name, CompiledST code, Token defT)
+        {
+            frozen = null;
+            super.rawDefineTemplate(name, code, defT);
+        }
+
+        @Override
+        public synchronized void unload()
+        {
+            frozen = null;
+            super.unload();
+        }
+    }
+
+    /**
+     * An STRawGroupDir that is a SharedGroup.
+     */
+    public static class RawGroupDir extends STRawGroupDir implements SharedGroup
+    {
+        private final long id = NEXT_ID.incrementAndGet();
+        private volatile Map<String, CompiledST> frozen;
+
+        public RawGroupDir(String dirName, String encoding, char delimiterStartChar, char delimiterStopChar)
+        {
+            super(dirName, encoding, delimiterStartChar, delimiterStopChar);
+        }
+
+        @Override
+        public CompiledST lookupTemplate(String name)
+        {
+            Map<String, CompiledST> map = frozen;
+            if (map != null)
+            {
+                return map.get(absoluteName(name));
+            }
+            synchronized (this)
+            {
+                return super.lookupTemplate(name);
+            }
+        }
+
+        @Override
+        public synchronized void freeze()
+        {
+            frozen = getLoadedTemplates(this, templates, NOT_FOUND_ST);
+        }
+
+        @Override
+        public boolean isFrozen()
+        {
+            return frozen != null;
+        }
+
+        @Override
+        public long getId()
+        {
+            return id;
+        }
+
+        @Override
+        public void rawDefineTemplate(String name, CompiledST code, Token defT)
+        {
+            frozen = null;
+            super.rawDefineTemplate(name, code, defT);
+        }
+
+        @Override
+        public synchronized void unload()
+        {
+            frozen = null;
+            super.unload();
+        }
+    }
+
+    /**
+     * An STGroupString that is a SharedGroup.
+     */
+    public static class GroupString extends STGroupString implements SharedGroup
+    {
+        private final long id = NEXT_ID.incrementAndGet();
+        private volatile Map<String, CompiledST> frozen;
+
+        public GroupString(String sourceName, String text, char delimiterStartChar, char delimiterStopChar)
+        {
+            super(sourceName, text, delimiterStartChar, delimiterStopChar);
+        }
+
+        @Override
+        public CompiledST lookupTemplate(String name)
+        {
+            Map<String, CompiledST> map = frozen;
+            if (map != null)
+            {
+                return map.get(absoluteName(name));
+            }
+            synchronized (this)
+            {
+                return super.lookupTemplate(name);
+            }
+        }
+
+        @Override
+        public synchronized void freeze()
+        {
+            frozen = getLoadedTemplates(this, templates, NOT_FOUND_ST);
+        }
+
+        @Override
+        public boolean isFrozen()
+        {
+            return frozen != null;
+        }
+
+        @Override
+        public long getId()
+        {
+            return id;
+        }
+
+        @Override
+        public void rawDefineTemplate(String name, CompiledST code, Token defT)
+        {
+            frozen = null;
+            super.rawDefineTemplate(name, code, defT);
+        }
+
+        @Override
+        public synchronized void unload()
+        {
+            frozen = null;
+            super.unload();
+        }
+    }
+
+    private static String absoluteName(String name)
+    {
+        return name.charAt(0) == '/' ? name : "/" + name;
+    }
+
+    /*
+     * The templates of the group and then of each imported group in the order STGroup
+     * looks them up so a frozen group finds the same template it would have loaded.
+     */
+    private static Map<String, CompiledST> getLoadedTemplates(STGroup group, Map<String, CompiledST> templates,
+                                                              CompiledST notFound)
+    {
+        Map<String, CompiledST> map = new HashMap<String, CompiledST>();
+        synchronized (templates)
+        {
+            for (Map.Entry<String, CompiledST> e : templates.entrySet())
+            {
+                if (e.getValue() != notFound)
+                {
+                    map.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        addImportedTemplates(group, map);
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static void addImportedTemplates(STGroup group, Map<String, CompiledST> map)
+    {
+        for (STGroup imported : group.getImportedGroups())
+        {
+            for (String name : imported.getTemplateNames())
+            {
+                CompiledST code = imported.rawGetTemplate(name);
+                if (code != null && !map.containsKey(name))
+                {
+                    map.put(name, code);
+                }
+            }
+            addImportedTemplates(imported, map);
+        }
+    }
+}
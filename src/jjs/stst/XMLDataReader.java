@@ -0,0 +1,237 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads XML data using the StAX parser included with the JDK. The whole document
+ * can be read into a tree of XMLElement objects or the child elements of the
+ * document (root) element can be read one at a time so that documents of any
+ * size can be processed with a fixed amount of memory.
+ * 
+ * Namespaces are ignored; elements and attributes are known by their local names.
+ * DTDs and external entities are not processed.
+ */
+public class XMLDataReader implements Iterator<XMLElement>, Closeable
+{
+    private final InputStream is;
+    private final XMLStreamReader reader;
+    private final XMLElement root;
+    private XMLElement nextElement = null;
+    private boolean done = false;
+
+    /**
+     * Create a reader and read the start of the document element.
+     * The character encoding is determined from the document.
+     * @param is source of XML text
+     */
+    public XMLDataReader(InputStream is)
+    {
+        this.is = is;
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        try
+        {
+            reader = factory.createXMLStreamReader(is);
+            reader.nextTag();
+            root = startElement();
+        }
+        catch (XMLStreamException xse)
+        {
+            throw error(xse);
+        }
+    }
+
+    /**
+     * @return the document element with its attributes. It has no children or text
+     * unless readDocument has been called.
+     */
+    public XMLElement getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Read the whole document. Can't be used after reading any child elements.
+     * @return the document element
+     */
+    public XMLElement readDocument()
+    {
+        try
+        {
+            readContent(root);
+            done = true;
+            return root;
+        }
+        catch (XMLStreamException xse)
+        {
+            throw error(xse);
+        }
+    }
+
+    /**
+     * @return true if there is another child element of the document element
+     */
+    @Override
+    public boolean hasNext()
+    {
+        if (nextElement == null && !done)
+        {
+            try
+            {
+                int event = reader.next();
+                while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT)
+                {
+                    event = reader.next();
+                }
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    nextElement = readContent(startElement());
+                }
+                else
+                {
+                    done = true;
+                }
+            }
+            catch (XMLStreamException xse)
+            {
+                throw error(xse);
+            }
+        }
+        return nextElement != null;
+    }
+
+    /**
+     * @return the next child element of the document element with all its content
+     */
+    @Override
+    public XMLElement next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        XMLElement e = nextElement;
+        nextElement = null;
+        return e;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            reader.close();
+        }
+        catch (XMLStreamException ignore)
+        {
+        }
+        is.close();
+    }
+
+    // reader is positioned on a start element
+    private XMLElement startElement()
+    {
+        int count = reader.getAttributeCount();
+        String[] attributeNames = new String[count];
+        String[] attributeValues = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            attributeNames[i] = localName(reader.getAttributeLocalName(i));
+            attributeValues[i] = reader.getAttributeValue(i);
+        }
+        return new XMLElement(localName(reader.getLocalName()), attributeNames, attributeValues,
+                              new ArrayList<XMLElement>(), "");
+    }
+
+    // reads up to and including the end tag of the given element
+    private XMLElement readContent(XMLElement element) throws XMLStreamException
+    {
+        StringBuilder text = null;
+        for (;;)
+        {
+            int event = reader.next();
+            switch (event)
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                element.addChild(readContent(startElement()));
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (text == null)
+                {
+                    text = new StringBuilder();
+                }
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (text != null)
+                {
+                    element.setText(text.toString().trim());
+                }
+                return element;
+            default:
+                // ignore comments and processing instructions
+                break;
+            }
+        }
+    }
+
+    // without namespace awareness a name may include a prefix
+    private static String localName(String name)
+    {
+        int colon = name.indexOf(':');
+        return colon < 0 ? name : name.substring(colon + 1);
+    }
+
+    private DataException error(XMLStreamException xse)
+    {
+        return new DataException(xse.getLocalizedMessage(), xse);
+    }
+}
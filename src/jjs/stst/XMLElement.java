@@ -0,0 +1,203 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An XML element as seen by templates. The properties of an element are its
+ * attributes and its child elements. An attribute value is a string. A child
+ * element name gives the child element or a list of elements if the name is
+ * repeated. A child element with only text and no attributes is given as its
+ * text so that format renderers apply. An element renders as its text content.
+ * 
+ * The lookup of children by name is built the first time it is needed.
+ */
+public class XMLElement
+{
+    private final String name;
+    private final String[] attributeNames;
+    private final String[] attributeValues;
+    private final List<XMLElement> children;
+    private String text;
+
+    // child name -> child value or List of child values in document order
+    private Map<String, Object> childrenByName = null;
+    private String[] names = null;
+
+    XMLElement(String name, String[] attributeNames, String[] attributeValues, List<XMLElement> children, String text)
+    {
+        this.name = name;
+        this.attributeNames = attributeNames;
+        this.attributeValues = attributeValues;
+        this.children = children;
+        this.text = text;
+    }
+
+    void addChild(XMLElement child)
+    {
+        children.add(child);
+    }
+
+    void setText(String text)
+    {
+        this.text = text;
+    }
+
+    /**
+     * @return the element local name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @param attrName attribute local name
+     * @return the attribute value or null if the element doesn't have the attribute
+     */
+    public String getAttribute(String attrName)
+    {
+        for (int i = 0; i < attributeNames.length; i++)
+        {
+            if (attributeNames[i].equals(attrName))
+            {
+                return attributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all the child elements in document order
+     */
+    public List<XMLElement> getChildren()
+    {
+        return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * @return the text directly contained in this element with leading and trailing white space removed
+     */
+    public String getText()
+    {
+        return text;
+    }
+
+    /**
+     * Look up a property the way templates do. Attributes come before child elements.
+     * @param propertyName attribute or child element name
+     * @return attribute value, child element or text, list of them or null if there is no such property
+     */
+    public Object get(String propertyName)
+    {
+        String value = getAttribute(propertyName);
+        if (value != null)
+        {
+            return value;
+        }
+        return getChildrenByName().get(propertyName);
+    }
+
+    /**
+     * @return the attribute names followed by the distinct child element names. The array must not be modified.
+     */
+    public String[] getNames()
+    {
+        if (names == null)
+        {
+            ArrayList<String> list = new ArrayList<String>();
+            for (String attrName : attributeNames)
+            {
+                list.add(attrName);
+            }
+            for (String childName : getChildrenByName().keySet())
+            {
+                if (getAttribute(childName) == null)
+                {
+                    list.add(childName);
+                }
+            }
+            names = list.toArray(new String[list.size()]);
+        }
+        return names;
+    }
+
+    private boolean isTextOnly()
+    {
+        return attributeNames.length == 0 && children.isEmpty();
+    }
+
+    private Map<String, Object> getChildrenByName()
+    {
+        if (childrenByName == null)
+        {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (XMLElement child : children)
+            {
+                Object value = child.isTextOnly() ? child.text : child;
+                Object existing = map.get(child.name);
+                if (existing == null)
+                {
+                    map.put(child.name, value);
+                }
+                else if (existing instanceof ChildList)
+                {
+                    ((ChildList)existing).add(value);
+                }
+                else
+                {
+                    ChildList list = new ChildList();
+                    list.add(existing);
+                    list.add(value);
+                    map.put(child.name, list);
+                }
+            }
+            childrenByName = map;
+        }
+        return childrenByName;
+    }
+
+    // list of repeated child elements
+    private static class ChildList extends ArrayList<Object>
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The element text
+     */
+    public String toString()
+    {
+        return text;
+    }
+}
@@ -192,7 +192,12 @@ public class JSONObject implements Map {
      *             duplicated key.
      */
     public JSONObject(JSONTokener x) throws JSONException {
-        this();
+        x.countObject();
+        if (x.getShapes() != null) {
+            this.map = readShaped(x);
+            return;
+        }
+        this.map = new HashMap<String, Object>();
         char c;
         String key;
 
@@ -217,7 +222,11 @@ public class JSONObject implements Map {
             if (c != ':') {
                 throw x.syntaxError("Expected a ':' after a key");
             }
-            this.putOnce(key, x.nextValue());
+            if (x.skips(key)) {
+                x.skipValue();
+            } else {
+                this.putOnce(key, x.nextValue());
+            }
 
 // Pairs are separated by ','.
 
@@ -237,6 +246,90 @@ public class JSONObject implements Map {
         }
     }
 
+    /**
+     * Read an object using the shapes from the tokener. The keys and values are
+     * collected first so the values array is allocated once at the right size.
+     * If the shape tree is full and has no shape for the keys the object is read
+     * into a hash map.
+     */
+    private static Map<String, Object> readShaped(JSONTokener x) throws JSONException {
+        String[] keys = new String[8];
+        Object[] values = new Object[8];
+        int length = 0;
+        char c;
+
+        if (x.nextClean() != '{') {
+            throw x.syntaxError("A JSONObject text must begin with '{'");
+        }
+        for (;;) {
+            c = x.nextClean();
+            if (c == 0) {
+                throw x.syntaxError("A JSONObject text must end with '}'");
+            }
+            if (c == '}') {
+                break;
+            }
+            x.back();
+            if (length == keys.length) {
+                String[] newKeys = new String[length * 2];
+                System.arraycopy(keys, 0, newKeys, 0, length);
+                keys = newKeys;
+                Object[] newValues = new Object[length * 2];
+                System.arraycopy(values, 0, newValues, 0, length);
+                values = newValues;
+            }
+            keys[length] = x.nextValue().toString();
+
+            c = x.nextClean();
+            if (c != ':') {
+                throw x.syntaxError("Expected a ':' after a key");
+            }
+            if (x.skips(keys[length])) {
+                x.skipValue();
+            } else {
+                values[length] = x.nextValue();
+                testValidity(values[length]);
+                length += 1;
+            }
+
+            c = x.nextClean();
+            if (c == ';' || c == ',') {
+                if (x.nextClean() == '}') {
+                    break;
+                }
+                x.back();
+            } else if (c == '}') {
+                break;
+            } else {
+                throw x.syntaxError("Expected a ',' or '}'");
+            }
+        }
+
+        JSONShape shape = x.getShapes();
+        boolean full = shape.getShapeCount() >= JSONShape.MAX_SHAPES;
+        for (int i = 0; i < length && shape != null; i += 1) {
+            if (shape.indexOf(keys[i]) >= 0) {
+                throw new JSONException("Duplicate key \"" + keys[i] + "\"");
+            }
+            shape = full ? shape.find(keys[i]) : shape.with(keys[i]);
+        }
+        if (shape == null) {
+            Map<String, Object> map = new HashMap<String, Object>(length * 2);
+            for (int i = 0; i < length; i += 1) {
+                if (map.put(keys[i], values[i]) != null) {
+                    throw new JSONException("Duplicate key \"" + keys[i] + "\"");
+                }
+            }
+            return map;
+        }
+        if (length != values.length) {
+            Object[] newValues = new Object[length];
+            System.arraycopy(values, 0, newValues, 0, length);
+            values = newValues;
+        }
+        return new ShapedMap(shape, values);
+    }
+
     /**
      * Construct a JSONObject from a Map.
      *
@@ -802,6 +895,27 @@ public class JSONObject implements Map {
         return key == null ? null : this.map.get(key);
     }
 
+    /**
+     * Get the shape of this object if it was parsed with shapes.
+     * See JSONTokener.setShapes.
+     *
+     * @return the shape or null if this object doesn't have a shape.
+     */
+    public JSONShape getShape() {
+        return this.map instanceof ShapedMap ? ((ShapedMap)this.map).getShape() : null;
+    }
+
+    /**
+     * Get a value by slot. Only for objects with a shape.
+     *
+     * @param slot
+     *            The slot of a key from the shape of this object
+     * @return The value.
+     */
+    public Object getSlot(int slot) {
+        return ((ShapedMap)this.map).getSlot(slot);
+    }
+
     /**
      * Get an optional boolean associated with a key. It returns false if there
      * is no such key, or if the value is not Boolean.TRUE or the String "true".
@@ -0,0 +1,160 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.json;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Describes the keys of a JSON object and the slot each key's value is in.
+ * Objects parsed with the same keys in the same order share one shape and only
+ * store an array of values. See JSONTokener.setShapes.
+ *
+ * Shapes form a tree. The root has no keys and each child adds one key to its
+ * parent. Shapes are immutable except that children are added as needed. Children
+ * are found and added without locking so a tree can be shared by threads.
+ */
+public final class JSONShape {
+
+    /**
+     * The most shapes a tree will have when parsing. After this objects that need a
+     * new shape are parsed into hash maps. This limits memory used when objects don't
+     * share keys.
+     */
+    public static final int MAX_SHAPES = 4096;
+
+    // up to this many keys are found with a linear search
+    private static final int LINEAR_MAX = 8;
+
+    private final JSONShape root;
+    private final String[] keys;
+    private final ConcurrentHashMap<String, JSONShape> children = new ConcurrentHashMap<String, JSONShape>(4);
+    private volatile Map<String, Integer> index = null;
+    private final AtomicInteger count; // only used in the root
+
+    /**
+     * Create a new shape tree.
+     * @return the root shape which has no keys
+     */
+    public static JSONShape newRoot() {
+        return new JSONShape(null, new String[0]);
+    }
+
+    private JSONShape(JSONShape root, String[] keys) {
+        this.root = root == null ? this : root;
+        this.keys = keys;
+        this.count = root == null ? new AtomicInteger(1) : null;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return this.keys.length;
+    }
+
+    /**
+     * @param slot the slot
+     * @return the key for the slot
+     */
+    public String getKey(int slot) {
+        return this.keys[slot];
+    }
+
+    /**
+     * @param key the key
+     * @return the slot of the key or -1 if this shape doesn't have the key
+     */
+    public int indexOf(String key) {
+        if (this.keys.length <= LINEAR_MAX) {
+            for (int i = 0; i < this.keys.length; i += 1) {
+                if (this.keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        Map<String, Integer> index = this.index;
+        if (index == null) {
+            index = new HashMap<String, Integer>(this.keys.length * 2);
+            for (int i = 0; i < this.keys.length; i += 1) {
+                index.put(this.keys[i], i);
+            }
+            this.index = index;
+        }
+        Integer i = index.get(key);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * @return the root of the tree this shape is in
+     */
+    public JSONShape getRoot() {
+        return this.root;
+    }
+
+    /**
+     * @return the number of shapes in the tree this shape is in
+     */
+    public int getShapeCount() {
+        return this.root.count.get();
+    }
+
+    /**
+     * Find the shape with the keys of this shape followed by the given key
+     * if it already exists.
+     * @param key the key to add
+     * @return the child shape or null if there is none
+     */
+    public JSONShape find(String key) {
+        return this.children.get(key);
+    }
+
+    /**
+     * Get the shape with the keys of this shape followed by the given key.
+     * @param key the key to add. This shape must not already have it.
+     * @return the child shape
+     */
+    public JSONShape with(String key) {
+        JSONShape child = this.children.get(key);
+        if (child == null) {
+            String[] childKeys = new String[this.keys.length + 1];
+            System.arraycopy(this.keys, 0, childKeys, 0, this.keys.length);
+            childKeys[this.keys.length] = key;
+            child = new JSONShape(this.root, childKeys);
+            JSONShape other = this.children.putIfAbsent(key, child);
+            if (other != null) {
+                return other;
+            }
+            this.root.count.incrementAndGet();
+        }
+        return child;
+    }
+}
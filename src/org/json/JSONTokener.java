@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.Set;
 
 /*
 Copyright (c) 2002 JSON.org
@@ -47,6 +48,10 @@ public class JSONTokener {
     private char    previous;
     private Reader  reader;
     private boolean usePrevious;
+    private JSONShape shapes = null;
+    private Set<String> projection = null;
+    private long    objectCount = 0;
+    private long    arrayCount = 0;
 
 
     /**
@@ -86,6 +91,81 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Parse objects with shapes. Objects with the same keys in the same order
+     * share the keys and only store their values. This saves memory when there
+     * are many similar objects such as the items of an array.
+     *
+     * @param shapes the root of the shape tree to use or null to parse objects
+     * into hash maps. A shape tree can be shared by many tokeners.
+     */
+    public void setShapes(JSONShape shapes) {
+        this.shapes = shapes;
+    }
+
+
+    /**
+     * @return the root of the shape tree used for objects or null
+     */
+    public JSONShape getShapes() {
+        return this.shapes;
+    }
+
+
+    /**
+     * Only keep the object properties with the given names. The values of all
+     * other properties are skipped without being parsed into objects.
+     *
+     * @param names the property names to keep or null to keep all properties
+     */
+    public void setProjection(Set<String> names) {
+        this.projection = names;
+    }
+
+
+    /**
+     * @return the property names to keep or null if all properties are kept
+     */
+    public Set<String> getProjection() {
+        return this.projection;
+    }
+
+
+    /**
+     * @param key a property name
+     * @return true if the value of the property should be skipped
+     */
+    public boolean skips(String key) {
+        return this.projection != null && !this.projection.contains(key);
+    }
+
+
+    /**
+     * @return the number of objects parsed from this tokener
+     */
+    public long getObjectCount() {
+        return this.objectCount;
+    }
+
+
+    /**
+     * @return the number of arrays parsed from this tokener
+     */
+    public long getArrayCount() {
+        return this.arrayCount;
+    }
+
+
+    void countObject() {
+        this.objectCount += 1;
+    }
+
+
+    void countArray() {
+        this.arrayCount += 1;
+    }
+
+
     /**
      * Back up one character. This provides a sort of lookahead capability,
      * so that you can test for a digit or letter before attempting to parse
@@ -260,35 +340,7 @@ public class JSONTokener {
             case '\r':
                 throw this.syntaxError("Unterminated string");
             case '\\':
-                c = this.next();
-                switch (c) {
-                case 'b':
-                    sb.append('\b');
-                    break;
-                case 't':
-                    sb.append('\t');
-                    break;
-                case 'n':
-                    sb.append('\n');
-                    break;
-                case 'f':
-                    sb.append('\f');
-                    break;
-                case 'r':
-                    sb.append('\r');
-                    break;
-                case 'u':
-                    sb.append((char)Integer.parseInt(this.next(4), 16));
-                    break;
-                case '"':
-                case '\'':
-                case '\\':
-                case '/':
-                    sb.append(c);
-                    break;
-                default:
-                    throw this.syntaxError("Illegal escape.");
-                }
+                sb.append(this.nextEscaped());
                 break;
             default:
                 if (c == quote) {
@@ -300,6 +352,73 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Read an object key and tell if it is the given name. A quoted key is
+     * compared one character at a time as it is read and the rest of it is
+     * skipped at the first difference so no string is built. Other keys are
+     * read the way nextValue reads them.
+     * @param name the name to compare the key to
+     * @return true if the key is the name
+     * @throws JSONException If syntax error.
+     */
+    public boolean nextKeyEquals(String name) throws JSONException {
+        char quote = this.nextClean();
+        if (quote != '"' && quote != '\'') {
+            this.back();
+            return this.nextValue().toString().equals(name);
+        }
+        int i = 0;
+        for (;;) {
+            char c = this.next();
+            switch (c) {
+            case 0:
+            case '\n':
+            case '\r':
+                throw this.syntaxError("Unterminated string");
+            case '\\':
+                c = this.nextEscaped();
+                break;
+            default:
+                if (c == quote) {
+                    return i == name.length();
+                }
+            }
+            if (i == name.length() || name.charAt(i) != c) {
+                this.skipString(quote);
+                return false;
+            }
+            i += 1;
+        }
+    }
+
+
+    // the character for the escape sequence after a backslash
+    private char nextEscaped() throws JSONException {
+        char c = this.next();
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 't':
+            return '\t';
+        case 'n':
+            return '\n';
+        case 'f':
+            return '\f';
+        case 'r':
+            return '\r';
+        case 'u':
+            return (char)Integer.parseInt(this.next(4), 16);
+        case '"':
+        case '\'':
+        case '\\':
+        case '/':
+            return c;
+        default:
+            throw this.syntaxError("Illegal escape.");
+        }
+    }
+
+
     /**
      * Get the text up but not including the specified character or the
      * end of line, whichever comes first.
@@ -391,6 +510,80 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Skip the next value without building it. Strings are scanned to their
+     * closing quote and objects and arrays to their matching close bracket so
+     * the values inside them are not checked as strictly as nextValue does.
+     * @throws JSONException If syntax error.
+     */
+    public void skipValue() throws JSONException {
+        char c = this.nextClean();
+
+        switch (c) {
+            case '"':
+            case '\'':
+                this.skipString(c);
+                return;
+            case '{':
+            case '[':
+                int depth = 1;
+                while (depth > 0) {
+                    c = this.next();
+                    switch (c) {
+                    case 0:
+                        throw this.syntaxError("Unterminated object or array");
+                    case '"':
+                    case '\'':
+                        this.skipString(c);
+                        break;
+                    case '{':
+                    case '[':
+                        depth += 1;
+                        break;
+                    case '}':
+                    case ']':
+                        depth -= 1;
+                        break;
+                    }
+                }
+                return;
+        }
+
+        // same unquoted text as nextValue
+        boolean blank = true;
+        while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+            if (c != ' ') {
+                blank = false;
+            }
+            c = this.next();
+        }
+        this.back();
+        if (blank) {
+            throw this.syntaxError("Missing value");
+        }
+    }
+
+
+    private void skipString(char quote) throws JSONException {
+        for (;;) {
+            char c = this.next();
+            switch (c) {
+            case 0:
+            case '\n':
+            case '\r':
+                throw this.syntaxError("Unterminated string");
+            case '\\':
+                this.next();
+                break;
+            default:
+                if (c == quote) {
+                    return;
+                }
+            }
+        }
+    }
+
+
     /**
      * Skip characters until the next character is the requested character.
      * If the requested character is not found, no characters are skipped.
@@ -0,0 +1,172 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.json;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The map used by a JSONObject parsed with shapes. The keys come from a shared
+ * JSONShape and the values are kept in an array indexed by slot. Values are never
+ * null. Adding a key moves the map to a child shape and removing a key moves it
+ * to a shape without the key so the map always has the shape for its keys.
+ */
+class ShapedMap extends AbstractMap<String, Object> {
+
+    private JSONShape shape;
+    private Object[] values;
+
+    ShapedMap(JSONShape shape, Object[] values) {
+        this.shape = shape;
+        this.values = values;
+    }
+
+    JSONShape getShape() {
+        return this.shape;
+    }
+
+    Object getSlot(int slot) {
+        return this.values[slot];
+    }
+
+    @Override
+    public int size() {
+        return this.shape.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && this.shape.indexOf((String)key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int slot = this.shape.indexOf((String)key);
+        return slot >= 0 ? this.values[slot] : null;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int slot = this.shape.indexOf(key);
+        if (slot >= 0) {
+            Object old = this.values[slot];
+            this.values[slot] = value;
+            return old;
+        }
+        Object[] newValues = new Object[this.values.length + 1];
+        System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+        newValues[this.values.length] = value;
+        this.shape = this.shape.with(key);
+        this.values = newValues;
+        return null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int slot = key instanceof String ? this.shape.indexOf((String)key) : -1;
+        if (slot < 0) {
+            return null;
+        }
+        Object old = this.values[slot];
+        JSONShape newShape = this.shape.getRoot();
+        Object[] newValues = new Object[this.values.length - 1];
+        int j = 0;
+        for (int i = 0; i < this.values.length; i += 1) {
+            if (i != slot) {
+                newShape = newShape.with(this.shape.getKey(i));
+                newValues[j] = this.values[i];
+                j += 1;
+            }
+        }
+        this.shape = newShape;
+        this.values = newValues;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        this.shape = this.shape.getRoot();
+        this.values = new Object[0];
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public int size() {
+                return ShapedMap.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private int next = 0;
+        private String lastKey = null;
+
+        public boolean hasNext() {
+            return this.next < ShapedMap.this.values.length;
+        }
+
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final int slot = this.next;
+            this.next += 1;
+            this.lastKey = ShapedMap.this.shape.getKey(slot);
+            return new SimpleEntry<String, Object>(this.lastKey, ShapedMap.this.values[slot]) {
+                @Override
+                public Object setValue(Object value) {
+                    ShapedMap.this.values[slot] = value;
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        public void remove() {
+            if (this.lastKey == null) {
+                throw new IllegalStateException();
+            }
+            ShapedMap.this.remove(this.lastKey);
+            this.lastKey = null;
+            this.next -= 1;
+        }
+    }
+}
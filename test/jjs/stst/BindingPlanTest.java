@@ -0,0 +1,83 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+
+public class BindingPlanTest
+{
+    // raw templates like -r uses have no formal arguments
+    private RenderEngine newEngine() throws IOException
+    {
+        File dir = Files.createTempDirectory("stst").toFile();
+        dir.deleteOnExit();
+        File f = new File(dir, "noargs.st");
+        f.deleteOnExit();
+        Files.write(f.toPath(), "$x$".getBytes("UTF-8"));
+        STGroup group = RenderEvents.newRawGroupDir(dir.getPath(), "UTF-8", '$', '$');
+        RenderEngine.configureGroup(group, "");
+        group.defineTemplate("args", "x,y", "$x$-$y$");
+        return new RenderEngine(group, false, -1);
+    }
+
+    public void testDottedKeyIgnoredWithoutFormalArgs() throws IOException
+    {
+        RenderEngine engine = newEngine();
+        StringWriter out = new StringWriter();
+        engine.render("noargs", new JSONObject("{\"a.b\":1,\"x\":2}"), out);
+        assertEquals("2", out.toString());
+
+        ST st = engine.getInstanceOf("noargs");
+        List<String> ignored = engine.addAttributes(st, new JSONObject("{\"a.b\":1,\"x\":2}"));
+        assertEquals(Arrays.asList("a.b"), ignored);
+    }
+
+    public void testOnlyDeclaredArgsBound() throws IOException
+    {
+        RenderEngine engine = newEngine();
+        StringWriter out = new StringWriter();
+        engine.render("args", new JSONObject("{\"y\":3,\"z\":4,\"x\":2,\"a.b\":1}"), out);
+        assertEquals("2-3", out.toString());
+
+        ST st = engine.getInstanceOf("args");
+        List<String> ignored = engine.addAttributes(st, new JSONObject("{\"x\":2,\"z\":4}"));
+        assertEquals(Arrays.asList("z"), ignored);
+        assertEquals(engine.getBindingPlan(st), engine.getBindingPlan(engine.getInstanceOf("args")));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+
+public class CSVHeaderTest
+{
+    public void testIntegerColumnWidensToNumber()
+    {
+        CSVHeader header = new CSVHeader(new String[] {"price"});
+        assertEquals(Integer.valueOf(1), header.toValue(0, "1"));
+        assertEquals(Double.valueOf(2.5), header.toValue(0, "2.5"));
+        assertEquals(Integer.valueOf(3), header.toValue(0, "3"));
+        assertEquals(Double.valueOf(4.25), header.toValue(0, "4.25"));
+        assertEquals("n/a", header.toValue(0, "n/a"));
+        assertEquals(null, header.toValue(0, ""));
+    }
+
+    public void testValueNotMatchingColumnIsString()
+    {
+        CSVHeader header = new CSVHeader(new String[] {"flag", "name"});
+        assertEquals(Boolean.TRUE, header.toValue(0, "true"));
+        assertEquals("7", header.toValue(0, "7"));
+        assertEquals("abc", header.toValue(1, "abc"));
+        assertEquals("12", header.toValue(1, "12"));
+    }
+}
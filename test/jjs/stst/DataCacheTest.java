@@ -0,0 +1,132 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.json.JSONObject;
+
+public class DataCacheTest
+{
+    private static File newDataFile(String text) throws IOException
+    {
+        File f = File.createTempFile("stst", ".json");
+        f.deleteOnExit();
+        Files.write(f.toPath(), text.getBytes("UTF-8"));
+        return f;
+    }
+
+    private static JSONObject dataOfSize(int chars)
+    {
+        char[] value = new char[chars];
+        Arrays.fill(value, 'x');
+        return new JSONObject().put("v", new String(value));
+    }
+
+    public void testKeyIdentifiesFileAndParse() throws IOException
+    {
+        File f = newDataFile("{\"a\":1}");
+        DataCache.Key key = DataCache.keyOf(f, "UTF-8", null);
+        assertEquals(key, DataCache.keyOf(new File(f.getParentFile(), "./" + f.getName()), "UTF-8", null));
+        assertTrue("encoding not in key", !key.equals(DataCache.keyOf(f, "ISO-8859-1", null)));
+        DataCache.Key projected = DataCache.keyOf(f, "UTF-8", new HashSet<String>(Arrays.asList("a")));
+        assertTrue("projection not in key", !key.equals(projected));
+        assertEquals(projected, DataCache.keyOf(f, "UTF-8", new HashSet<String>(Arrays.asList("a"))));
+
+        DataCache cache = new DataCache(1024 * 1024);
+        cache.put(key, new JSONObject("{\"a\":1}"));
+        assertTrue("data not cached", cache.get(DataCache.keyOf(f, "UTF-8", null)) != null);
+
+        Files.write(f.toPath(), "{\"a\":22}".getBytes("UTF-8"));
+        assertTrue("changed file found", cache.get(DataCache.keyOf(f, "UTF-8", null)) == null);
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+    }
+
+    public void testChangedFileNotAdded() throws IOException
+    {
+        File f = newDataFile("{\"a\":1}");
+        DataCache.Key key = DataCache.keyOf(f, "UTF-8", null);
+        Files.write(f.toPath(), "{\"a\":22}".getBytes("UTF-8"));
+        DataCache cache = new DataCache(1024 * 1024);
+        cache.put(key, new JSONObject("{\"a\":1}"));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testGetReturnsCopy() throws IOException
+    {
+        File f = newDataFile("{\"a\":1}");
+        DataCache cache = new DataCache(1024 * 1024);
+        cache.put(DataCache.keyOf(f, "UTF-8", null), new JSONObject("{\"a\":1}"));
+        JSONObject data = cache.get(DataCache.keyOf(f, "UTF-8", null));
+        data.put("b", 2);
+        assertEquals("{\"a\":1}", cache.get(DataCache.keyOf(f, "UTF-8", null)).toString());
+    }
+
+    public void testLeastRecentlyUsedEvicted() throws IOException
+    {
+        long size = DataCache.sizeOf(dataOfSize(1000));
+        DataCache cache = new DataCache(size * 4);
+        DataCache.Key[] keys = new DataCache.Key[5];
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = DataCache.keyOf(newDataFile("{}"), "UTF-8", null);
+        }
+        for (int i = 0; i < 4; i++)
+        {
+            cache.put(keys[i], dataOfSize(1000));
+        }
+        assertEquals(4, cache.getEntryCount());
+        assertEquals(size * 4, cache.getBytes());
+        // use the first so the second is the least recently used
+        assertTrue("first not cached", cache.get(keys[0]) != null);
+        cache.put(keys[4], dataOfSize(1000));
+        assertEquals(1L, cache.getEvictions());
+        assertEquals(size * 4, cache.getBytes());
+        assertTrue("second not evicted", cache.get(keys[1]) == null);
+        for (int i : new int[] {0, 2, 3, 4})
+        {
+            assertTrue("evicted " + i, cache.get(keys[i]) != null);
+        }
+    }
+
+    public void testLargeDataNotCached() throws IOException
+    {
+        long size = DataCache.sizeOf(dataOfSize(1000));
+        DataCache cache = new DataCache(size * 4 - 1);
+        cache.put(DataCache.keyOf(newDataFile("{}"), "UTF-8", null), dataOfSize(1000));
+        assertEquals(0, cache.getEntryCount());
+    }
+}
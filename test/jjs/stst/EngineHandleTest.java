@@ -0,0 +1,93 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.stringtemplate.v4.STGroup;
+
+public class EngineHandleTest
+{
+    private static EngineHandle newHandle(final File dir)
+    {
+        EngineHandle.GroupFactory factory = new EngineHandle.GroupFactory()
+        {
+            public STGroup newGroup()
+            {
+                STGroup group = RenderEvents.newGroupDir(dir.getPath(), "UTF-8", '$', '$');
+                RenderEngine.configureGroup(group, "");
+                return group;
+            }
+        };
+        return new EngineHandle(new RenderEngine(factory.newGroup(), false, -1), factory);
+    }
+
+    private static void write(File dir, String name, String text) throws IOException
+    {
+        File f = new File(dir, name);
+        f.deleteOnExit();
+        Files.write(f.toPath(), text.getBytes("UTF-8"));
+    }
+
+    private static String render(EngineHandle handle, String name)
+    {
+        StringWriter out = new StringWriter();
+        handle.get().render(name, new JSONObject("{\"x\":1}"), out);
+        return out.toString();
+    }
+
+    public void testReloadChecksTemplatesNotYetUsed() throws IOException
+    {
+        File dir = RenderEngineTest.newTemplateDir("a.st", "a(x) ::= <<a$x$>>\n");
+        EngineHandle handle = newHandle(dir);
+        assertEquals("a1", render(handle, "a"));
+        RenderEngine first = handle.get();
+
+        write(dir, "a.st", "a(x) ::= <<A$x$>>\n");
+        write(dir, "b.st", "b(x) ::= <<b$x$ $>>\n");
+        List<String> errors = handle.reload();
+        assertTrue("broken template not found", !errors.isEmpty());
+        assertTrue("engine replaced", handle.get() == first);
+        assertEquals(1L, handle.getFailedReloads());
+
+        write(dir, "b.st", "b(x) ::= <<b$x$>>\n");
+        errors = handle.reload();
+        assertEquals(0, errors.size());
+        assertEquals("A1", render(handle, "a"));
+        assertEquals("b1", render(handle, "b"));
+        assertEquals(1L, handle.getReloads());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.ErrorBuffer;
+
+public class GroupRegistryTest
+{
+    private static File newTenant(String text) throws IOException
+    {
+        return RenderEngineTest.newTemplateDir("a.st", "a(x) ::= <<" + text + " $x$>>\n",
+                                               "b.st", "b(x) ::= <<$a(x)$ $x$>>\n");
+    }
+
+    private static STGroup get(GroupRegistry registry, File dir)
+    {
+        return registry.getGroupDir(dir.getPath(), "UTF-8", '$', '$', false, "", new ErrorBuffer());
+    }
+
+    public void testSameSettingsShareGroup() throws IOException
+    {
+        File dir = newTenant("one");
+        GroupRegistry registry = new GroupRegistry(1024 * 1024);
+        STGroup group = get(registry, dir);
+        assertTrue("group not shared", get(registry, new File(dir, ".")) == group);
+        STGroup other = registry.getGroupDir(dir.getPath(), "UTF-8", '<', '>', false, "", new ErrorBuffer());
+        assertTrue("delimiters not in key", other != group);
+        assertEquals(2L, registry.getLoads());
+        assertEquals(1L, registry.getHits());
+    }
+
+    public void testGroupLoadedWhenMade() throws IOException
+    {
+        File dir = RenderEngineTest.newTemplateDir("good.st", "good(x) ::= <<$x$>>\n", "bad.st", "bad(x) ::= <<$x$ $>>\n");
+        GroupRegistry registry = new GroupRegistry(1024 * 1024);
+        AtomicInteger firstErrors = new AtomicInteger();
+        AtomicInteger laterErrors = new AtomicInteger();
+        STGroup group = registry.getGroupDir(dir.getPath(), "UTF-8", '$', '$', false, "",
+                                             new RenderEngineTest.CountingListener(firstErrors));
+        assertTrue("templates not loaded", group.rawGetTemplate("/good") != null);
+        assertTrue("size not counted", registry.getBytes() > 0);
+        assertTrue("errors not reported", firstErrors.get() > 0);
+        STGroup later = registry.getGroupDir(dir.getPath(), "UTF-8", '$', '$', false, "",
+                                             new RenderEngineTest.CountingListener(laterErrors));
+        assertTrue("group not shared", later == group);
+        assertEquals(0, laterErrors.get());
+    }
+
+    public void testLeastRecentlyUsedEvicted() throws IOException
+    {
+        File a = newTenant("a");
+        File b = newTenant("b");
+        File c = newTenant("c");
+        GroupRegistry sizing = new GroupRegistry(1024 * 1024);
+        get(sizing, a);
+        long size = sizing.getBytes();
+
+        GroupRegistry registry = new GroupRegistry(size * 2);
+        final List<STGroup> removed = new ArrayList<STGroup>();
+        registry.addRemovalListener(new GroupRegistry.RemovalListener()
+        {
+            @Override
+            public void removed(STGroup group)
+            {
+                removed.add(group);
+            }
+        });
+        STGroup groupA = get(registry, a);
+        STGroup groupB = get(registry, b);
+        assertEquals(size * 2, registry.getBytes());
+        get(registry, a);
+        get(registry, c);
+        assertEquals(1L, registry.getEvictions());
+        assertEquals(1, removed.size());
+        assertTrue("b not removed", removed.get(0) == groupB);
+        assertEquals(2, registry.getGroupCount());
+        assertTrue("a evicted", get(registry, a) == groupA);
+        assertTrue("b not evicted", get(registry, b) != groupB);
+        assertEquals(4L, registry.getLoads());
+        assertEquals(size * 2, registry.getBytes());
+    }
+}
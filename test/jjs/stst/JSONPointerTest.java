@@ -0,0 +1,59 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import org.json.JSONTokener;
+
+public class JSONPointerTest
+{
+    private static Object seek(String pointer, String json)
+    {
+        JSONTokener x = new JSONTokener(json);
+        if (!new JSONPointer(pointer).seek(x))
+        {
+            return null;
+        }
+        return x.nextValue();
+    }
+
+    public void testKeysComparedWhileRead()
+    {
+        String json = "{\"ab\": 1, \"abcd\": 2, \"a\\u0062c\": 3, \"a\\\"b\": {\"x\": [4, 5]}, abc2: 6, 'q': 7}";
+        assertEquals(3, seek("/abc", json));
+        assertEquals(1, seek("/ab", json));
+        assertEquals(2, seek("/abcd", json));
+        assertEquals(5, seek("/a\"b/x/1", json));
+        assertEquals(6, seek("/abc2", json));
+        assertEquals(7, seek("/q", json));
+        assertTrue("found missing key", seek("/a", json) == null);
+        assertTrue("found missing key", seek("/abcde", json) == null);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.json.JSONObject;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.ErrorBuffer;
+
+public class RecordPipelineTest
+{
+    private static RecordPipeline newPipeline()
+    {
+        STGroup group = new SharedGroups.GroupString("test", "row(x) ::= <<$x$,>>\n", '$', '$');
+        RenderEngine.configureGroup(group, "");
+        return new RecordPipeline(new RenderEngine(group, false, -1), "row", 2, 4);
+    }
+
+    // records with x from 1 to count then the given error
+    private static Iterator<Object> failingRecords(final int count, final Throwable error)
+    {
+        return new Iterator<Object>()
+        {
+            private int n = 0;
+
+            public boolean hasNext()
+            {
+                return true;
+            }
+
+            public Object next()
+            {
+                if (n == count)
+                {
+                    if (error instanceof Error)
+                    {
+                        throw (Error)error;
+                    }
+                    throw (RuntimeException)error;
+                }
+                n++;
+                return new JSONObject().put("x", n);
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static Throwable runFailing(final Throwable error) throws InterruptedException
+    {
+        final Throwable[] thrown = new Throwable[1];
+        Thread t = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    newPipeline().run(failingRecords(50, error), new StringWriter(), new ErrorBuffer());
+                }
+                catch (Throwable ex)
+                {
+                    thrown[0] = ex;
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        t.join(30000);
+        assertTrue("pipeline did not end", !t.isAlive());
+        return thrown[0];
+    }
+
+    public void testRenderInOrder() throws Exception
+    {
+        StringWriter out = new StringWriter();
+        Iterator<JSONObject> records = Arrays.asList(new JSONObject("{\"x\":1}"), new JSONObject("{\"x\":2}"),
+            new JSONObject("{\"x\":3}")).iterator();
+        assertEquals(3L, newPipeline().run(records, out, new ErrorBuffer()));
+        assertEquals("1,2,3,", out.toString());
+    }
+
+    public void testLineWrappingRejected()
+    {
+        STGroup group = new SharedGroups.GroupString("test", "row(x) ::= <<$x$,>>\n", '$', '$');
+        RenderEngine.configureGroup(group, "");
+        try
+        {
+            new RecordPipeline(new RenderEngine(group, false, 40), "row", 2, 4);
+            assertTrue("wrapping engine accepted", false);
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+        new RecordPipeline(new RenderEngine(group, true, 40), "row", 2, 4);
+    }
+
+    public void testReadExceptionEndsRun() throws Exception
+    {
+        RuntimeException error = new DataException("bad record");
+        assertTrue("exception not thrown", runFailing(error) == error);
+    }
+
+    public void testReadErrorEndsRun() throws Exception
+    {
+        Error error = new OutOfMemoryError("test");
+        assertTrue("error not thrown", runFailing(error) == error);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.json.JSONObject;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.misc.ErrorBuffer;
+
+public class RenderCacheTest
+{
+    private static RenderEngine newEngine(File dir)
+    {
+        STGroup group = RenderEvents.newGroupDir(dir.getPath(), "UTF-8", '$', '$');
+        RenderEngine.configureGroup(group, "");
+        return new RenderEngine(group, false, -1);
+    }
+
+    private static String render(RenderCache cache, RenderEngine engine) throws IOException
+    {
+        StringWriter out = new StringWriter();
+        cache.render(engine, "t", new JSONObject("{\"x\":1}"), out, new ErrorBuffer());
+        return out.toString();
+    }
+
+    public void testClearRemovesOnlyTheGroupsEntries() throws IOException
+    {
+        File dir = RenderEngineTest.newTemplateDir("t.st", "t(x) ::= <<$x$>>\n");
+        RenderEngine a = newEngine(dir);
+        RenderEngine b = newEngine(dir);
+        RenderCache cache = new RenderCache(1024 * 1024);
+        assertEquals("1", render(cache, a));
+        assertEquals("1", render(cache, b));
+        assertEquals(2, cache.getEntryCount());
+        long bytes = cache.getBytes();
+
+        cache.clear(a.getGroup());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(bytes / 2, cache.getBytes());
+        assertEquals("1", render(cache, b));
+        assertEquals(1L, cache.getHits());
+        assertEquals("1", render(cache, a));
+        assertEquals(3L, cache.getMisses());
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.misc.STMessage;
+
+public class RenderEngineTest
+{
+    private static final int SUB_TEMPLATES = 100;
+    private static final int THREADS = 16;
+
+    static File newTemplateDir(String... nameAndText) throws IOException
+    {
+        File dir = Files.createTempDirectory("stst").toFile();
+        dir.deleteOnExit();
+        for (int i = 0; i < nameAndText.length; i += 2)
+        {
+            File f = new File(dir, nameAndText[i]);
+            f.deleteOnExit();
+            Files.write(f.toPath(), nameAndText[i + 1].getBytes("UTF-8"));
+        }
+        return dir;
+    }
+
+    // main calls each of the sub templates
+    private static File newCallingTemplates() throws IOException
+    {
+        List<String> files = new ArrayList<String>();
+        StringBuilder main = new StringBuilder("main(x) ::= <<");
+        for (int i = 1; i <= SUB_TEMPLATES; i++)
+        {
+            files.add("sub" + i + ".st");
+            files.add("sub" + i + "(x) ::= <<" + i + "$x$>>\n");
+            main.append("$sub").append(i).append("(x)$,");
+        }
+        files.add("main.st");
+        files.add(main.append(">>\n").toString());
+        return newTemplateDir(files.toArray(new String[files.size()]));
+    }
+
+    public void testInstancesDontShareArguments() throws IOException
+    {
+        File dir = newTemplateDir("t.st", "$x$ $y$");
+        STGroup group = RenderEvents.newRawGroupDir(dir.getPath(), "UTF-8", '$', '$');
+        RenderEngine.configureGroup(group, "");
+        RenderEngine engine = new RenderEngine(group, false, -1);
+        // adding to an instance from the group defines the argument in the shared compiled template
+        group.getInstanceOf("t").add("x", 0);
+        CompiledST shared = group.lookupTemplate("t");
+        Object sharedArgs = shared.formalArguments;
+
+        ST st1 = engine.getInstanceOf("t");
+        ST st2 = engine.getInstanceOf("t");
+        engine.bindAttributes(st1, new JSONObject("{\"x\":1,\"y\":\"a\"}"));
+        engine.bindAttributes(st2, new JSONObject("{\"x\":\"b\",\"y\":2}"));
+        assertTrue("compiled template changed", shared.formalArguments == sharedArgs);
+        assertTrue("instances share arguments", st1.impl.formalArguments != st2.impl.formalArguments);
+        assertEquals("1 a", st1.render());
+        assertEquals("b 2", st2.render());
+    }
+
+    public void testConcurrentRendersOfColdGroup() throws Exception
+    {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1; i <= SUB_TEMPLATES; i++)
+        {
+            expected.append(i).append("v,");
+        }
+        File dir = newCallingTemplates();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try
+        {
+            for (int round = 0; round < 10; round++)
+            {
+                final AtomicInteger errors = new AtomicInteger();
+                final STErrorListener listener = new CountingListener(errors);
+                STGroup group = RenderEvents.newGroupDir(dir.getPath(), "UTF-8", '$', '$');
+                RenderEngine.configureGroup(group, "");
+                // templates loaded twice are reported to the group listener
+                group.setListener(listener);
+                final RenderEngine engine = new RenderEngine(group, false, -1);
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<String>> results = new ArrayList<Future<String>>();
+                for (int t = 0; t < THREADS; t++)
+                {
+                    results.add(executor.submit(new Callable<String>()
+                    {
+                        @Override
+                        public String call() throws Exception
+                        {
+                            start.await();
+                            StringWriter out = new StringWriter();
+                            engine.render("main", new JSONObject("{\"x\":\"v\"}"), out, listener);
+                            return out.toString();
+                        }
+                    }));
+                }
+                start.countDown();
+                for (Future<String> result : results)
+                {
+                    assertEquals(expected.toString(), result.get());
+                }
+                assertEquals(0, errors.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testRejectsGroupThatIsNotShared()
+    {
+        try
+        {
+            new RenderEngine(new STGroupString("t() ::= <<x>>"), false, -1);
+            assertTrue("plain group accepted", false);
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    public void testFrozenGroupDoesNotRememberUnknownNames() throws IOException
+    {
+        File dir = newTemplateDir("t.st", "t(x) ::= <<$x$$u()$>>\n");
+        final int[] size = new int[1];
+        STGroup group = new SharedGroups.GroupDir(dir.getPath(), "UTF-8", '$', '$')
+        {
+            @Override
+            public synchronized void freeze()
+            {
+                super.freeze();
+                size[0] = templates.size();
+            }
+
+            @Override
+            public CompiledST lookupTemplate(String name)
+            {
+                CompiledST code = super.lookupTemplate(name);
+                if (isFrozen())
+                {
+                    assertEquals(size[0], templates.size());
+                }
+                return code;
+            }
+        };
+        STGroup imported = new SharedGroups.GroupString("imported", "u() ::= <<!>>\n", '$', '$');
+        group.importTemplates(imported);
+        RenderEngine.configureGroup(group, "");
+        assertTrue("not loaded", RenderEngine.loadTemplates(group));
+        assertTrue("not frozen", ((SharedGroup)group).isFrozen());
+        RenderEngine engine = new RenderEngine(group, false, -1);
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue("unknown name found", !group.isDefined("missing" + i));
+        }
+        StringWriter out = new StringWriter();
+        engine.render("t", new JSONObject("{\"x\":\"a\"}"), out);
+        assertEquals("a!", out.toString());
+    }
+
+    static class CountingListener implements STErrorListener
+    {
+        private final AtomicInteger count;
+
+        CountingListener(AtomicInteger count)
+        {
+            this.count = count;
+        }
+
+        @Override
+        public void compileTimeError(STMessage msg)
+        {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void runTimeError(STMessage msg)
+        {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void IOError(STMessage msg)
+        {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void internalError(STMessage msg)
+        {
+            count.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.stringtemplate.v4.STGroup;
+
+public class RenderInterpreterTest
+{
+    private static RenderEngine newEngine(String templates)
+    {
+        STGroup group = new SharedGroups.GroupString("test", templates, '$', '$');
+        RenderEngine.configureGroup(group, "");
+        return new RenderEngine(group, false, -1);
+    }
+
+    // each record's n is the number of records read when it is rendered
+    private static Iterator<Object> countingRecords(int count, final int[] read)
+    {
+        List<Object> records = new ArrayList<Object>();
+        for (int i = 0; i < count; i++)
+        {
+            JSONObject record = new JSONObject();
+            record.put("keep", i % 2);
+            record.put("n", new Object()
+            {
+                @Override
+                public String toString()
+                {
+                    return String.valueOf(read[0]);
+                }
+            });
+            records.add(record);
+        }
+        final Iterator<Object> it = records.iterator();
+        return new Iterator<Object>()
+        {
+            public boolean hasNext()
+            {
+                return it.hasNext();
+            }
+
+            public Object next()
+            {
+                read[0]++;
+                return it.next();
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void testFilteredStreamMappedLazily()
+    {
+        RenderEngine engine = newEngine("main(rows) ::= <<$rows:row()$>>\nrow(r) ::= <<$r.n$,>>\n");
+        int[] read = new int[1];
+        JSONObject data = new JSONObject();
+        data.put("rows", new RecordFilter("keep = 1").filter(engine.getGroup(), countingRecords(6, read)));
+        StringWriter out = new StringWriter();
+        engine.render("main", data, out);
+        assertEquals("2,4,6,", out.toString());
+    }
+
+    public void testMappedArrayThroughTemplateMap() throws IOException
+    {
+        File file = File.createTempFile("stst", ".data");
+        file.deleteOnExit();
+        MappedObject root = (MappedObject)MappedJSON.parse(
+            new StringReader("{\"rows\":[{\"n\":\"a\"},null,{\"n\":\"b\"},{\"n\":\"c\"}]}"), file).getRoot();
+        RenderEngine engine = newEngine("main(rows) ::= <<$rows:row(),alt()$|$rows:{r|$i$=$r.n$}; separator=\",\"$|"
+            + "$length(rows:row())$ $last(rows:row())$>>\nrow(r) ::= <<$r.n$>>\nalt(r) ::= <<[$r.n$]>>\n");
+        JSONObject data = new JSONObject();
+        data.put("rows", root.get("rows"));
+        StringWriter out = new StringWriter();
+        engine.render("main", data, out);
+        assertEquals("a[b]c|1=a,2=b,3=c|4 c", out.toString());
+    }
+}
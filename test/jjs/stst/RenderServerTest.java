@@ -0,0 +1,157 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+
+import org.stringtemplate.v4.AttributeRenderer;
+import org.stringtemplate.v4.STGroup;
+
+public class RenderServerTest
+{
+    private static RenderServer newServer(File dataDir, DataCache cache) throws IOException
+    {
+        File dir = RenderEngineTest.newTemplateDir("t.st", "t(a,b) ::= <<$a$ $b$>>\n");
+        STGroup group = RenderEvents.newGroupDir(dir.getPath(), "UTF-8", '$', '$');
+        RenderEngine.configureGroup(group, "");
+        RenderServer server = new RenderServer(new RenderEngine(group, false, -1));
+        if (dataDir != null)
+        {
+            server.setDataFiles(dataDir, cache);
+        }
+        server.start(0);
+        return server;
+    }
+
+    // status and response text
+    private static String post(RenderServer server, String path, String body) throws IOException
+    {
+        URL url = new URL("http://localhost:" + server.getPort() + path);
+        HttpURLConnection c = (HttpURLConnection)url.openConnection();
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        OutputStream os = c.getOutputStream();
+        os.write(body.getBytes("UTF-8"));
+        os.close();
+        int status = c.getResponseCode();
+        InputStream is = status < 400 ? c.getInputStream() : c.getErrorStream();
+        return status + " " + FileUtil.getStreamAsString(is, "UTF-8");
+    }
+
+    public void testRenderWithDataFile() throws IOException
+    {
+        File dataDir = RenderEngineTest.newTemplateDir("d.json", "{\"a\":\"x\",\"b\":\"y\"}");
+        DataCache cache = new DataCache(1024 * 1024);
+        RenderServer server = newServer(dataDir, cache);
+        try
+        {
+            assertEquals("200 1 2", post(server, "/render/t", "{\"a\":1,\"b\":2}"));
+            assertEquals("200 x y", post(server, "/render/t?data=d.json", ""));
+            assertEquals("200 x 2", post(server, "/render/t?data=d.json", "{\"b\":2}"));
+            assertEquals(1L, cache.getMisses());
+            assertEquals(1L, cache.getHits());
+            assertEquals("404 No such data file ../d.json", post(server, "/render/t?data=..%2Fd.json", ""));
+            assertEquals("404 No such data file e.json", post(server, "/render/t?data=e.json", ""));
+        }
+        finally
+        {
+            server.stop(0);
+        }
+    }
+
+    public void testTemplateOutsideDirectoryNotFound() throws IOException
+    {
+        File parent = RenderEngineTest.newTemplateDir("outside.st", "outside() ::= <<secret>>\n");
+        File dir = new File(parent, "templates");
+        dir.mkdir();
+        dir.deleteOnExit();
+        STGroup group = RenderEvents.newGroupDir(dir.getPath(), "UTF-8", '$', '$');
+        RenderEngine.configureGroup(group, "");
+        RenderServer server = new RenderServer(new RenderEngine(group, false, -1));
+        server.start(0);
+        try
+        {
+            assertEquals("404 No such template ../outside", post(server, "/render/..%2Foutside", "{}"));
+            assertEquals("404 No such template a.b", post(server, "/render/a.b", "{}"));
+            assertEquals("404 No such template /outside", post(server, "/render//outside", "{}"));
+        }
+        finally
+        {
+            server.stop(0);
+        }
+    }
+
+    public void testErrorBeforeOutputIs500() throws IOException
+    {
+        File dir = RenderEngineTest.newTemplateDir("t.st", "t(a) ::= <<$a$>>\n");
+        STGroup group = RenderEvents.newGroupDir(dir.getPath(), "UTF-8", '$', '$');
+        RenderEngine.configureGroup(group, "");
+        group.registerRenderer(String.class, new AttributeRenderer()
+        {
+            @Override
+            public String toString(Object o, String formatString, Locale locale)
+            {
+                throw new IllegalStateException("bad " + o);
+            }
+        });
+        RenderServer server = new RenderServer(new RenderEngine(group, false, -1));
+        server.start(0);
+        try
+        {
+            String response = post(server, "/render/t", "{\"a\":\"x\"}");
+            assertTrue(response, response.startsWith("500 Error rendering /render/t: ") && response.endsWith("bad x\n"));
+            assertEquals("200 1", post(server, "/render/t", "{\"a\":1}"));
+        }
+        finally
+        {
+            server.stop(0);
+        }
+    }
+
+    public void testDataFilesNotAllowed() throws IOException
+    {
+        RenderServer server = newServer(null, null);
+        try
+        {
+            assertEquals("404 No such data file d.json", post(server, "/render/t?data=d.json", ""));
+        }
+        finally
+        {
+            server.stop(0);
+        }
+    }
+}
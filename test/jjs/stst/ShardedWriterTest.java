@@ -0,0 +1,141 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+public class ShardedWriterTest
+{
+    // fails the first write once it is allowed to
+    private static class FailingStream extends OutputStream
+    {
+        final CountDownLatch fail = new CountDownLatch(1);
+        volatile boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            try
+            {
+                fail.await();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("disk full");
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    public void testPatternCheckedBeforeWriting()
+    {
+        ShardedWriter.checkPattern("out.txt");
+        ShardedWriter.checkPattern("out-%03d.txt");
+        ShardedWriter.checkPattern("100%%-%d.txt");
+        assertEquals("100%-7.txt", ShardedWriter.getFileName("100%%-%d.txt", 7));
+        String[] bad = {"report 100%.txt", "out-%s.txt", "out-%d-%d.txt", "100%%.txt", "out-%"};
+        for (String pattern : bad)
+        {
+            try
+            {
+                ShardedWriter.checkPattern(pattern);
+                assertTrue(pattern + " accepted", false);
+            }
+            catch (IllegalArgumentException expected)
+            {
+            }
+        }
+    }
+
+    public void testWriteErrorWithFullQueue() throws Exception
+    {
+        FailingStream file = new FailingStream();
+        final ShardedWriter.ShardThread writer = new ShardedWriter.ShardThread(file, "test");
+        writer.start();
+        final IOException[] error = new IOException[1];
+        // many more chunks than the queue holds
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                OutputStream out = new ShardedWriter.QueuedOutputStream(writer);
+                try
+                {
+                    try
+                    {
+                        byte[] bytes = new byte[1024 * 1024];
+                        for (int i = 0; i < 4; i++)
+                        {
+                            out.write(bytes);
+                        }
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                    writer.finish();
+                }
+                catch (IOException ex)
+                {
+                    error[0] = ex;
+                }
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+        // fail the write only once the producer is waiting for room in the queue
+        while (producer.getState() != Thread.State.WAITING && producer.isAlive())
+        {
+            Thread.sleep(10);
+        }
+        file.fail.countDown();
+        producer.join(30000);
+        assertTrue("producer blocked after a write error", !producer.isAlive());
+        assertTrue("write error not reported", error[0] != null);
+        writer.join(30000);
+        assertTrue("file not closed", file.closed);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package jjs.stst;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the tests without needing a test framework. Every class named *Test under the
+ * given directory is created and each of its public no argument methods named test*
+ * is called. A test fails by throwing. The exit status is 1 if any test failed.
+ */
+public class TestRunner
+{
+    public static void main(String[] args) throws Exception
+    {
+        List<String> classNames = new ArrayList<String>();
+        File root = new File(args[0]);
+        findTests(root, root, classNames);
+        Collections.sort(classNames);
+        int run = 0;
+        int failed = 0;
+        for (String className : classNames)
+        {
+            Class<?> cls = Class.forName(className);
+            List<Method> methods = new ArrayList<Method>();
+            for (Method m : cls.getMethods())
+            {
+                if (m.getName().startsWith("test") && m.getParameterTypes().length == 0 &&
+                    !Modifier.isStatic(m.getModifiers()))
+                {
+                    methods.add(m);
+                }
+            }
+            for (Method m : methods)
+            {
+                run++;
+                try
+                {
+                    m.invoke(cls.getDeclaredConstructor().newInstance());
+                }
+                catch (InvocationTargetException e)
+                {
+                    failed++;
+                    System.out.println("FAILED " + cls.getSimpleName() + "." + m.getName());
+                    e.getCause().printStackTrace(System.out);
+                }
+            }
+        }
+        System.out.println(run + " tests, " + failed + " failed");
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    private static void findTests(File root, File dir, List<String> classNames)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        for (File f : files)
+        {
+            if (f.isDirectory())
+            {
+                findTests(root, f, classNames);
+            }
+            else if (f.getName().endsWith("Test.class"))
+            {
+                String path = f.getPath().substring(root.getPath().length() + 1);
+                classNames.add(path.substring(0, path.length() - ".class".length()).replace(File.separatorChar, '.'));
+            }
+        }
+    }
+
+    /**
+     * Throw if the values are not equal
+     */
+    public static void assertEquals(Object expected, Object actual)
+    {
+        if (expected == null ? actual != null : !expected.equals(actual))
+        {
+            throw new AssertionError("expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Throw with the message if the condition is false
+     */
+    public static void assertTrue(String message, boolean condition)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
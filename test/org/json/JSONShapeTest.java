@@ -0,0 +1,78 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2015, John Snyders
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.json;
+
+import static jjs.stst.TestRunner.assertEquals;
+import static jjs.stst.TestRunner.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class JSONShapeTest {
+    private static final int THREADS = 8;
+    private static final int KEYS = 200;
+
+    public void testConcurrentTransitionsShareShapes() throws Exception {
+        final JSONShape root = JSONShape.newRoot();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<JSONShape>>> results = new ArrayList<Future<List<JSONShape>>>();
+            for (int t = 0; t < THREADS; t += 1) {
+                results.add(executor.submit(new Callable<List<JSONShape>>() {
+                    @Override
+                    public List<JSONShape> call() throws Exception {
+                        start.await();
+                        List<JSONShape> shapes = new ArrayList<JSONShape>();
+                        for (int i = 0; i < KEYS; i += 1) {
+                            shapes.add(root.with("k" + i).with("v"));
+                        }
+                        return shapes;
+                    }
+                }));
+            }
+            start.countDown();
+            List<JSONShape> first = results.get(0).get();
+            for (Future<List<JSONShape>> result : results) {
+                List<JSONShape> shapes = result.get();
+                for (int i = 0; i < KEYS; i += 1) {
+                    assertTrue("shape " + i + " not shared", shapes.get(i) == first.get(i));
+                }
+            }
+            assertEquals(1 + 2 * KEYS, root.getShapeCount());
+            assertTrue("not found", root.find("k0").find("v") == first.get(0));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}